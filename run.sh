@@ -7,4 +7,14 @@ JAVA=${JAVA:-java}
 LANGUAGES=${LANGUAGES:-en zh-hans zh-hant it}
 PORT=${PORT:-8888}
 
-exec ${JAVA} -Xmx7G -ea ${JAVA_ARGS} -cp ${SEMPREDIR}/libsempre/*:${SEMPREDIR}/lib/* edu.stanford.nlp.sempre.TokenizerServer --port ${PORT} ${LANGUAGES}
+# listen on ${PORT} unless the arguments pick the transports
+case " ${EXTRA_ARGS} " in
+*" --port "*|*" --unix-socket "*|*" --stdio "*)
+  PORT_ARGS=
+  ;;
+*)
+  PORT_ARGS="--port ${PORT}"
+  ;;
+esac
+
+exec ${JAVA} -Xmx7G -ea ${JAVA_ARGS} -cp ${SEMPREDIR}/libsempre/*:${SEMPREDIR}/lib/* edu.stanford.nlp.sempre.TokenizerServer ${EXTRA_ARGS} ${PORT_ARGS} ${LANGUAGES}
@@ -0,0 +1,86 @@
+#!/usr/bin/python3
+
+# Benchmark the tokenizer over different transports
+#
+# Usage: benchmark-tokenizer.py [--transport tcp|unix|stdio] [--address <host:port or path>]
+#        [--window <requests in flight>] [--repeat <n>] < data/test-tokenizer-en-us.yml
+#
+# The stdio transport starts its own tokenizer with run.sh, the others connect to a running one.
+
+import argparse
+import json
+import os
+import socket
+import subprocess
+import sys
+import time
+import yaml
+
+parser = argparse.ArgumentParser()
+parser.add_argument('--transport', choices=['tcp', 'unix', 'stdio'], default='tcp')
+parser.add_argument('--address')
+parser.add_argument('--window', type=int, default=16)
+parser.add_argument('--repeat', type=int, default=10)
+args = parser.parse_args()
+
+requests = []
+for line in yaml.safe_load(sys.stdin):
+    msg = dict(languageTag=line['locale'], utterance=line['input'])
+    if 'expect' in line:
+        msg['expect'] = line['expect']
+    requests.append(msg)
+requests = requests * args.repeat
+
+process = None
+if args.transport == 'tcp':
+    host, port = (args.address or '127.0.0.1:8888').rsplit(':', 1)
+    conn = socket.create_connection((host, int(port)))
+    infile = conn.makefile('rb')
+    send = conn.sendall
+elif args.transport == 'unix':
+    conn = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+    conn.connect(args.address or '/tmp/almond-tokenizer.sock')
+    infile = conn.makefile('rb')
+    send = conn.sendall
+else:
+    srcdir = os.path.join(os.path.dirname(os.path.abspath(__file__)), '..')
+    process = subprocess.Popen([os.path.join(srcdir, 'run.sh'), '--stdio'], cwd=srcdir,
+                               stdin=subprocess.PIPE, stdout=subprocess.PIPE)
+    infile = process.stdout
+    def send(data):
+        process.stdin.write(data)
+        process.stdin.flush()
+
+def request(i):
+    msg = dict(requests[i % len(requests)])
+    msg['req'] = i
+    send((json.dumps(msg) + '\n').encode('utf-8'))
+
+# warm up, and wait for the server to be ready
+request(0)
+json.loads(infile.readline())
+
+sent = {}
+latencies = []
+start = time.perf_counter()
+next_req = 0
+while len(latencies) < len(requests):
+    while next_req < len(requests) and len(sent) < args.window:
+        sent[next_req] = time.perf_counter()
+        request(next_req)
+        next_req += 1
+    response = json.loads(infile.readline())
+    latencies.append(time.perf_counter() - sent.pop(response['req']))
+elapsed = time.perf_counter() - start
+
+if process is not None:
+    process.stdin.close()
+    process.wait()
+
+latencies.sort()
+print('transport: %s' % args.transport)
+print('requests: %d in %.2f s, %.1f requests/s' % (len(latencies), elapsed, len(latencies) / elapsed))
+print('latency: mean %.2f ms, p50 %.2f ms, p99 %.2f ms' % (
+    1000 * sum(latencies) / len(latencies),
+    1000 * latencies[len(latencies) // 2],
+    1000 * latencies[min(len(latencies) - 1, int(len(latencies) * 0.99))]))
@@ -29,7 +29,16 @@ else
     ./scripts/test-tokenizer.py < $srcdir/data/test-tokenizer-en-us.yml
     ./scripts/test-tokenizer.py < $srcdir/data/test-tokenizer-zh-cn.yml
     ./scripts/test-tokenizer.py < $srcdir/data/test-tokenizer-it.yml
+    ./scripts/test-tokenizer.py --binary < $srcdir/data/test-tokenizer-en-us.yml
+    ./scripts/test-tokenizer.py --binary --no-newline < $srcdir/data/test-tokenizer-it.yml
 fi
 
 kill $serverpid
 serverpid=
+
+if test "$1" != "--interactive" ; then
+    # check that the hand-written JSON serializer matches Jackson
+    for f in $srcdir/data/test-tokenizer-*.yml ; do
+        ./scripts/yaml-to-requests.py < $f
+    done | java -ea -cp "$srcdir/libsempre/*:$srcdir/lib/*" edu.stanford.nlp.sempre.OutputSerializer en zh-hans zh-hant it
+fi
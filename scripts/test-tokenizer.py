@@ -4,19 +4,141 @@ import json
 import yaml
 import sys
 import socket
+import struct
+
+binary = '--binary' in sys.argv[1:]
+# end the handshake at the closing brace, instead of ending its line
+no_newline = '--no-newline' in sys.argv[1:]
+
+def write_varint(buf, value):
+    value &= 0xFFFFFFFF
+    while value & ~0x7F:
+        buf.append((value & 0x7F) | 0x80)
+        value >>= 7
+    buf.append(value)
+
+def write_string(buf, string):
+    if string is None:
+        write_varint(buf, 0)
+        return
+    encoded = string.encode('utf-8')
+    write_varint(buf, len(encoded) + 1)
+    buf += encoded
+
+class FrameReader:
+    def __init__(self, payload):
+        self.payload = payload
+        self.offset = 0
+
+    def byte(self):
+        b = self.payload[self.offset]
+        self.offset += 1
+        return b
+
+    def varint(self):
+        value = 0
+        shift = 0
+        while True:
+            b = self.byte()
+            value |= (b & 0x7F) << shift
+            shift += 7
+            if not b & 0x80:
+                break
+        if value & 0x80000000:
+            value -= 0x100000000
+        return value
+
+    def double(self):
+        value, = struct.unpack('>d', self.payload[self.offset:self.offset+8])
+        self.offset += 8
+        return value
+
+    def string(self):
+        length = self.varint()
+        if length == 0:
+            return None
+        value = self.payload[self.offset:self.offset+length-1].decode('utf-8')
+        self.offset += length - 1
+        return value
+
+def read_exactly(connfile, n):
+    data = connfile.read(n)
+    if len(data) < n:
+        raise EOFError()
+    return data
+
+def read_binary_response(connfile):
+    length, = struct.unpack('>I', read_exactly(connfile, 4))
+    frame = FrameReader(read_exactly(connfile, length))
+    if frame.byte() == 1:
+        return dict(req=frame.varint(), error=frame.string())
+
+    result = dict(req=frame.varint())
+    table = [frame.string() for i in range(frame.varint())]
+    def read_list():
+        count = frame.varint()
+        if count == -1:
+            return None
+        return [table[frame.varint()] for i in range(count)]
+    result['tokens'] = read_list()
+    for field in ('tokensNoQuotes', 'rawTokens'):
+        value = read_list()
+        result[field] = result['tokens'] if value is None else value
+    result['pos'] = read_list()
+    result['constituencyParse'] = read_list()
+    result['sentiment'] = table[frame.varint()]
+
+    values = {}
+    for i in range(frame.varint()):
+        key = table[frame.varint()]
+        valueType = frame.byte()
+        if valueType == 0:
+            values[key] = table[frame.varint()]
+        elif valueType == 1:
+            values[key] = frame.double()
+        elif valueType == 2:
+            values[key] = dict(value=frame.double(), unit=frame.string())
+        elif valueType == 3:
+            values[key] = dict(year=frame.varint(), month=frame.varint(), day=frame.varint(),
+                               hour=frame.varint(), minute=frame.varint(), second=frame.double())
+        elif valueType == 4:
+            values[key] = dict(hour=frame.varint(), minute=frame.varint(), second=frame.double())
+        else:
+            values[key] = None
+    result['values'] = values
+    if frame.offset < len(frame.payload) and frame.byte() & 1:
+        result['degraded'] = True
+    return result
 
 with socket.create_connection(('127.0.0.1', 8888)) as conn:
     i = 0
-    connfile = conn.makefile()
+    if binary:
+        connfile = conn.makefile('rb')
+        conn.send(b'{"protocol":"binary-v1"}' if no_newline else b'{"protocol":"binary-v1"}\n')
+        ack = json.loads(connfile.readline())
+        if ack['protocol'] != 'binary-v1':
+            print('Server does not support the binary protocol', file=sys.stderr)
+            sys.exit(1)
+    else:
+        connfile = conn.makefile()
     loaded = yaml.safe_load(sys.stdin)
     for line in loaded:
-        if 'expect' in line:
-            msg = json.dumps(dict(languageTag=line['locale'], utterance=line['input'], expect=line['expect'], req=i))
+        if binary:
+            msg = bytearray()
+            write_varint(msg, i)
+            write_string(msg, line['locale'])
+            write_string(msg, line['input'])
+            write_string(msg, line.get('expect'))
+            conn.send(struct.pack('>I', len(msg)) + msg)
+            result = read_binary_response(connfile)
         else:
-            msg = json.dumps(dict(languageTag=line['locale'], utterance=line['input'], req=i))
-        #print(msg, file=sys.stderr)
-        conn.send((msg + '\n').encode('utf-8'))
-        result = json.loads(connfile.readline())
+            if 'expect' in line:
+                msg = json.dumps(dict(languageTag=line['locale'], utterance=line['input'], expect=line['expect'], req=i))
+            else:
+                msg = json.dumps(dict(languageTag=line['locale'], utterance=line['input'], req=i))
+            #print(msg, file=sys.stderr)
+            conn.send((msg + '\n').encode('utf-8'))
+            result = json.loads(connfile.readline())
         if 'error' in result:
             print('Returned error', file=sys.stderr)
             print(result, file=sys.stderr)
@@ -0,0 +1,14 @@
+#!/usr/bin/python3
+
+# Convert a test-tokenizer YAML file to tokenizer requests, one JSON object per line
+
+import json
+import yaml
+import sys
+
+loaded = yaml.safe_load(sys.stdin)
+for i, line in enumerate(loaded):
+    msg = dict(languageTag=line['locale'], utterance=line['input'], req=i)
+    if 'expect' in line:
+        msg['expect'] = line['expect']
+    print(json.dumps(msg))
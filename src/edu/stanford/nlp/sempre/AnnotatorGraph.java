@@ -0,0 +1,320 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.util.ArrayCoreMap;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Runs a chain of CoreNLP annotators, running the branches that do not depend
+ * on each other concurrently.
+ *
+ * Two annotators are independent when neither reads what the other writes,
+ * and they do not write the same annotations, according to their requires()
+ * and requirementsSatisfied(). Annotators that declare nothing, and those
+ * that produce the tokens or the sentences, are assumed to depend on
+ * everything. The chain runs in order up to the first annotator
+ * after which the rest splits into independent branches (for example, our
+ * entity annotators on one side, and the parser and the sentiment model on the
+ * other), then the branches run at the same time.
+ *
+ * The first branch runs on the annotation itself, on the calling thread, and
+ * each other branch runs on a copy of the annotation, its sentences and its
+ * tokens, on one of the helper threads, so that no CoreMap is written and read
+ * by two threads at once. Once all branches are done, what the other branches
+ * wrote is copied back to the annotation. If no helper is free, the calling
+ * thread runs the other branches itself, so a busy server loses nothing.
+ */
+public class AnnotatorGraph {
+  private final List<Annotator> annotators;
+  private final List<String> annotatorNames;
+  private final Set<String> optional;
+  private final Executor helpers;
+  private final List<Set<Class<?>>> writes = new ArrayList<>();
+
+  // what the copies of the annotation are made of
+  private static final List<Class<?>> STRUCTURE = Arrays.asList(CoreAnnotations.TokensAnnotation.class,
+      CoreAnnotations.SentencesAnnotation.class);
+
+  // the annotators run in order before the branches
+  private final int forkIndex;
+  // the indices of the annotators of each branch, in order
+  private final List<List<Integer>> branches = new ArrayList<>();
+
+  /**
+   * @param annotators the annotators, in the order they must run
+   * @param annotatorNames the name of each annotator
+   * @param extraReads annotations read by some annotators (by name) in addition to what
+   * their requires() declares
+   * @param extraWrites annotations written by some annotators (by name) in addition to what
+   * their requirementsSatisfied() declares
+   * @param optional the annotators that requests can skip
+   * @param helpers the threads that run the branches other than the first
+   */
+  public AnnotatorGraph(List<Annotator> annotators, List<String> annotatorNames,
+      Map<String, List<Class<?>>> extraReads, Map<String, List<Class<?>>> extraWrites, Collection<String> optional,
+      Executor helpers) {
+    this.annotators = annotators;
+    this.annotatorNames = annotatorNames;
+    this.optional = new HashSet<>(optional);
+    this.helpers = helpers;
+
+    int n = annotators.size();
+    List<Set<Class<?>>> reads = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      Set<Class<?>> read = new HashSet<>(annotators.get(i).requires());
+      read.addAll(extraReads.getOrDefault(annotatorNames.get(i), Collections.emptyList()));
+      reads.add(read);
+      Set<Class<?>> written = new HashSet<>(annotators.get(i).requirementsSatisfied());
+      written.addAll(extraWrites.getOrDefault(annotatorNames.get(i), Collections.emptyList()));
+      writes.add(written);
+    }
+    boolean[][] dependent = new boolean[n][n];
+    for (int i = 0; i < n; i++) {
+      for (int j = i + 1; j < n; j++) {
+        boolean independent = !reads.get(i).isEmpty() && !writes.get(i).isEmpty() &&
+            !reads.get(j).isEmpty() && !writes.get(j).isEmpty() &&
+            Collections.disjoint(writes.get(i), STRUCTURE) && Collections.disjoint(writes.get(j), STRUCTURE) &&
+            Collections.disjoint(reads.get(j), writes.get(i)) &&
+            Collections.disjoint(reads.get(i), writes.get(j)) &&
+            Collections.disjoint(writes.get(i), writes.get(j));
+        dependent[i][j] = dependent[j][i] = !independent;
+      }
+    }
+
+    // find the first point after which the annotators form more than one
+    // connected component, each component is a branch
+    int fork = n;
+    for (int start = 0; start < n - 1 && branches.isEmpty(); start++) {
+      List<List<Integer>> components = components(dependent, start, n);
+      if (components.size() > 1) {
+        fork = start;
+        branches.addAll(components);
+      }
+    }
+    forkIndex = fork;
+  }
+
+  private static List<List<Integer>> components(boolean[][] dependent, int start, int end) {
+    int[] component = new int[end];
+    Arrays.fill(component, -1);
+    List<List<Integer>> components = new ArrayList<>();
+    for (int i = start; i < end; i++) {
+      if (component[i] >= 0)
+        continue;
+      List<Integer> members = new ArrayList<>();
+      Deque<Integer> stack = new ArrayDeque<>();
+      component[i] = components.size();
+      stack.push(i);
+      while (!stack.isEmpty()) {
+        int k = stack.pop();
+        members.add(k);
+        for (int j = start; j < end; j++) {
+          if (component[j] < 0 && dependent[k][j]) {
+            component[j] = components.size();
+            stack.push(j);
+          }
+        }
+      }
+      Collections.sort(members);
+      components.add(members);
+    }
+    return components;
+  }
+
+  /**
+   * The names of the annotators of each concurrent branch, for logging.
+   */
+  public List<List<String>> getBranches() {
+    List<List<String>> names = new ArrayList<>();
+    for (List<Integer> branch : branches) {
+      List<String> branchNames = new ArrayList<>();
+      for (int i : branch)
+        branchNames.add(annotatorNames.get(i));
+      names.add(branchNames);
+    }
+    return names;
+  }
+
+  private void run(int i, Annotation annotation, BooleanSupplier cancelled, boolean skipOptional) {
+    if (skipOptional && optional.contains(annotatorNames.get(i)))
+      return;
+    if (cancelled.getAsBoolean())
+      throw new CancellationException();
+    annotators.get(i).annotate(annotation);
+  }
+
+  private void runBranch(List<Integer> branch, Annotation annotation, BooleanSupplier cancelled,
+      boolean skipOptional) {
+    for (int i : branch)
+      run(i, annotation, cancelled, skipOptional);
+  }
+
+  private boolean isSkipped(List<Integer> branch, boolean skipOptional) {
+    if (!skipOptional)
+      return false;
+    for (int i : branch) {
+      if (!optional.contains(annotatorNames.get(i)))
+        return false;
+    }
+    return true;
+  }
+
+  // a branch that runs on a copy of the annotation, on a helper or on the calling thread
+  private class Fork implements Runnable {
+    final List<Integer> branch;
+    final Annotation copy;
+    final BooleanSupplier cancelled;
+    final boolean skipOptional;
+    final AtomicBoolean started = new AtomicBoolean(false);
+    final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    Fork(List<Integer> branch, Annotation copy, BooleanSupplier cancelled, boolean skipOptional) {
+      this.branch = branch;
+      this.copy = copy;
+      this.cancelled = cancelled;
+      this.skipOptional = skipOptional;
+    }
+
+    @Override
+    public void run() {
+      // whoever gets there first runs the branch
+      if (!started.compareAndSet(false, true))
+        return;
+      try {
+        runBranch(branch, copy, cancelled, skipOptional);
+        done.complete(null);
+      } catch (Throwable t) {
+        done.completeExceptionally(t);
+      }
+    }
+
+    // make sure the branch does not run, unless it started already
+    void abandon() {
+      if (started.compareAndSet(false, true))
+        done.complete(null);
+    }
+  }
+
+  /**
+   * Run the annotators on the annotation.
+   *
+   * @param skipOptional whether to skip the optional annotators
+   * @throws CancellationException if cancelled returns true, between annotators
+   */
+  public void annotate(Annotation annotation, BooleanSupplier cancelled, boolean skipOptional) {
+    for (int i = 0; i < forkIndex; i++)
+      run(i, annotation, cancelled, skipOptional);
+    if (branches.isEmpty())
+      return;
+
+    List<Fork> forks = new ArrayList<>();
+    for (int b = 1; b < branches.size(); b++) {
+      if (isSkipped(branches.get(b), skipOptional))
+        continue;
+      Fork fork = new Fork(branches.get(b), copy(annotation), cancelled, skipOptional);
+      forks.add(fork);
+      try {
+        helpers.execute(fork);
+      } catch (RejectedExecutionException e) {
+        // run it below
+      }
+    }
+
+    Throwable error = null;
+    try {
+      runBranch(branches.get(0), annotation, cancelled, skipOptional);
+      // run the branches that no helper has started yet
+      for (Fork fork : forks)
+        fork.run();
+    } catch (Throwable t) {
+      error = t;
+      for (Fork fork : forks)
+        fork.abandon();
+    }
+    for (Fork fork : forks) {
+      try {
+        fork.done.join();
+      } catch (CompletionException e) {
+        if (error == null)
+          error = e.getCause();
+      } catch (CancellationException e) {
+        if (error == null)
+          error = e;
+      }
+    }
+    if (error instanceof RuntimeException)
+      throw (RuntimeException) error;
+    if (error instanceof Error)
+      throw (Error) error;
+
+    for (Fork fork : forks) {
+      Set<Class<?>> written = new HashSet<>();
+      for (int i : fork.branch) {
+        if (!skipOptional || !optional.contains(annotatorNames.get(i)))
+          written.addAll(writes.get(i));
+      }
+      merge(fork.copy, annotation, written);
+    }
+  }
+
+  // copy back what a branch wrote in a copy of the annotation
+  private static void merge(Annotation from, Annotation to, Set<Class<?>> keys) {
+    copyKeys(from, to, keys);
+    List<CoreMap> fromSentences = from.get(CoreAnnotations.SentencesAnnotation.class);
+    List<CoreMap> toSentences = to.get(CoreAnnotations.SentencesAnnotation.class);
+    for (int i = 0; i < Math.min(fromSentences.size(), toSentences.size()); i++)
+      copyKeys(fromSentences.get(i), toSentences.get(i), keys);
+    List<CoreLabel> fromTokens = from.get(CoreAnnotations.TokensAnnotation.class);
+    List<CoreLabel> toTokens = to.get(CoreAnnotations.TokensAnnotation.class);
+    for (int i = 0; i < Math.min(fromTokens.size(), toTokens.size()); i++)
+      copyKeys(fromTokens.get(i), toTokens.get(i), keys);
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static void copyKeys(CoreMap from, CoreMap to, Collection<Class<?>> keys) {
+    for (Class key : keys) {
+      if (from.containsKey(key))
+        to.set(key, from.get(key));
+    }
+  }
+
+  // copy the annotation, its sentences and its tokens, sharing the values
+  private static Annotation copy(Annotation annotation) {
+    Annotation copy = new Annotation(annotation.get(CoreAnnotations.TextAnnotation.class));
+    copyKeys(annotation, copy, annotation.keySet());
+
+    Map<CoreLabel, CoreLabel> tokens = new IdentityHashMap<>();
+    List<CoreLabel> copiedTokens = new ArrayList<>();
+    for (CoreLabel token : annotation.get(CoreAnnotations.TokensAnnotation.class)) {
+      CoreLabel copiedToken = new CoreLabel(token);
+      tokens.put(token, copiedToken);
+      copiedTokens.add(copiedToken);
+    }
+    copy.set(CoreAnnotations.TokensAnnotation.class, copiedTokens);
+
+    List<CoreMap> copiedSentences = new ArrayList<>();
+    for (CoreMap sentence : annotation.get(CoreAnnotations.SentencesAnnotation.class)) {
+      CoreMap copiedSentence = new ArrayCoreMap(sentence.size());
+      copyKeys(sentence, copiedSentence, sentence.keySet());
+      List<CoreLabel> sentenceTokens = new ArrayList<>();
+      for (CoreLabel token : sentence.get(CoreAnnotations.TokensAnnotation.class))
+        sentenceTokens.add(tokens.getOrDefault(token, token));
+      copiedSentence.set(CoreAnnotations.TokensAnnotation.class, sentenceTokens);
+      copiedSentences.add(copiedSentence);
+    }
+    copy.set(CoreAnnotations.SentencesAnnotation.class, copiedSentences);
+    return copy;
+  }
+}
@@ -0,0 +1,509 @@
+package edu.stanford.nlp.sempre;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import edu.stanford.nlp.util.logging.Redwood;
+
+/**
+ * Tokenize a whole dataset offline.
+ *
+ * The input contains one request per line, in the same JSON format accepted by
+ * TokenizerServer, and the output contains one response per line, in the same
+ * format returned by TokenizerServer.
+ *
+ * Next to the output, we keep a manifest that maps the hash of each input line,
+ * and the hash of the configuration that was used to analyze it, to the location
+ * of the response in the output file. When the same dataset is tokenized again,
+ * rows whose input and configuration did not change are copied from the previous
+ * output, and only the rest goes through CoreNLP.
+ *
+ * The configuration hash covers data/regex_patterns, the compiled code of
+ * every class of this package, including the per-language ones, the CoreNLP
+ * properties of the languages, and the jars on the class path, which hold
+ * CoreNLP, Tint and their models, so modifying any of them and rebuilding is
+ * enough to invalidate the previous rows. The jars are hashed by the CRC of
+ * each of their entries, which they record, rather than read in full.
+ *
+ * @author gcampagn
+ */
+public class BatchTokenizer {
+  private static final Redwood.RedwoodChannels log = Redwood.channels(BatchTokenizer.class);
+
+  // how many rows we keep in flight at once
+  private static final int WINDOW_SIZE = 1024;
+
+  // the package whose compiled code is part of the configuration
+  private static final String CODE_PACKAGE = BatchTokenizer.class.getPackage().getName().replace('.', '/') + "/";
+
+  private final ObjectMapper object = new ObjectMapper();
+  private final ObjectReader inputReader;
+  private final ObjectWriter errorWriter;
+  private final TokenizerService service;
+  private final Map<LocaleTag, String> configHashes = new HashMap<>();
+
+  private static class ManifestEntry {
+    final String configHash;
+    final long offset;
+    final int length;
+
+    ManifestEntry(String configHash, long offset, int length) {
+      this.configHash = configHash;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  private static class Analyzed {
+    final TokenizerServer.Output output;
+    final byte[] line;
+
+    Analyzed(TokenizerServer.Output output, byte[] line) {
+      this.output = output;
+      this.line = line;
+    }
+  }
+
+  private static class Row {
+    final int req;
+    final String inputHash;
+    final String configHash;
+    final ManifestEntry reused;
+    final CompletableFuture<Analyzed> analyzed;
+
+    Row(int req, String inputHash, String configHash, ManifestEntry reused, CompletableFuture<Analyzed> analyzed) {
+      this.req = req;
+      this.inputHash = inputHash;
+      this.configHash = configHash;
+      this.reused = reused;
+      this.analyzed = analyzed;
+    }
+  }
+
+  public static class Report {
+    long rows;
+    long reused;
+    long inputChanged;
+    long configChanged;
+    long failed;
+
+    long readNanos;
+    long reuseNanos;
+    long writeNanos;
+    long columnarNanos;
+    long totalNanos;
+    final AtomicLong analyzeNanos = new AtomicLong();
+    final AtomicLong serializeNanos = new AtomicLong();
+
+    void print() {
+      Redwood.startTrack("Batch tokenization report");
+      log.logf("rows: %d", rows);
+      log.logf("reused from previous output: %d", reused);
+      log.logf("re-analyzed because the input is new or changed: %d", inputChanged);
+      log.logf("re-analyzed because the configuration changed: %d", configChanged);
+      log.logf("failed: %d", failed);
+      log.logf("total time: %.1f s", totalNanos / 1e9);
+      log.logf("reading and hashing input: %.1f s", readNanos / 1e9);
+      log.logf("copying reused outputs: %.1f s", reuseNanos / 1e9);
+      log.logf("analyzing (cumulative over all threads): %.1f s", analyzeNanos.get() / 1e9);
+      log.logf("serializing (cumulative over all threads): %.1f s", serializeNanos.get() / 1e9);
+      log.logf("writing output and manifest: %.1f s", writeNanos / 1e9);
+      log.logf("writing columnar output: %.1f s", columnarNanos / 1e9);
+      Redwood.endTrack("Batch tokenization report");
+    }
+  }
+
+  public BatchTokenizer(String[] localeTags) {
+    object.getFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    inputReader = object.reader().withType(TokenizerServer.Input.class);
+    errorWriter = object.writer().withType(TokenizerServer.Error.class);
+
+    // the batch is bounded by the window already, don't reject anything
+    TokenizerService.Options options = new TokenizerService.Options();
+    options.queueCapacity = Integer.MAX_VALUE;
+    service = new TokenizerService(options, localeTags);
+    String hash = hashConfiguration(new String[] { CoreNLPAnalyzer.REGEX_PATTERNS_FILE });
+    for (LocaleTag locale : service.getLocales())
+      configHashes.put(locale, hash + "-" + locale);
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String toHex(byte[] digest) {
+    StringBuilder builder = new StringBuilder(digest.length * 2);
+    for (byte b : digest)
+      builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    return builder.toString();
+  }
+
+  private static String hashConfiguration(String[] files) {
+    MessageDigest digest = newDigest();
+    try {
+      digestClasses(digest);
+      digestLibraries(digest);
+      for (String resource : CoreNLPAnalyzer.PROPERTIES_RESOURCES)
+        digestResource(digest, resource);
+      for (String file : files) {
+        digest.update(file.getBytes(StandardCharsets.UTF_8));
+        digest.update(Files.readAllBytes(Paths.get(file)));
+      }
+    } catch (IOException | URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+    return toHex(digest.digest());
+  }
+
+  // hash the name and content of every class file of the package (and its
+  // subpackages, and nested classes), in the directory or jar it was loaded
+  // from, in a stable order
+  private static void digestClasses(MessageDigest digest) throws IOException, URISyntaxException {
+    CodeSource source = BatchTokenizer.class.getProtectionDomain().getCodeSource();
+    if (source == null)
+      throw new FileNotFoundException("Cannot locate the code of " + BatchTokenizer.class.getName());
+    Path location = Paths.get(source.getLocation().toURI());
+
+    SortedMap<String, byte[]> classFiles = new TreeMap<>();
+    if (Files.isDirectory(location)) {
+      Path root = location.resolve(CODE_PACKAGE);
+      try (Stream<Path> paths = Files.walk(root)) {
+        for (Path path : (Iterable<Path>) paths::iterator) {
+          if (Files.isRegularFile(path) && path.getFileName().toString().endsWith(".class"))
+            classFiles.put(location.relativize(path).toString().replace(File.separatorChar, '/'),
+                Files.readAllBytes(path));
+        }
+      }
+    } else {
+      try (ZipFile jar = new ZipFile(location.toFile())) {
+        for (ZipEntry entry : Collections.list(jar.entries())) {
+          if (!entry.isDirectory() && entry.getName().startsWith(CODE_PACKAGE) && entry.getName().endsWith(".class")) {
+            try (InputStream stream = jar.getInputStream(entry)) {
+              classFiles.put(entry.getName(), stream.readAllBytes());
+            }
+          }
+        }
+      }
+    }
+    if (classFiles.isEmpty())
+      throw new FileNotFoundException("No class files under " + CODE_PACKAGE + " in " + location);
+    for (Map.Entry<String, byte[]> entry : classFiles.entrySet()) {
+      digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+      digest.update(entry.getValue());
+    }
+  }
+
+  // hash the name, and the name, size and CRC of every entry, of each jar on
+  // the class path, in a stable order; the jars are found by name, so moving
+  // the checkout does not change the hash
+  private static void digestLibraries(MessageDigest digest) throws IOException {
+    SortedMap<String, File> jars = new TreeMap<>();
+    for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      File file = new File(entry);
+      if (file.isFile() && file.getName().endsWith(".jar"))
+        jars.put(file.getName(), file);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(2 * Long.BYTES);
+    for (Map.Entry<String, File> jar : jars.entrySet()) {
+      digest.update(jar.getKey().getBytes(StandardCharsets.UTF_8));
+      try (ZipFile zip = new ZipFile(jar.getValue())) {
+        SortedMap<String, ZipEntry> entries = new TreeMap<>();
+        for (ZipEntry entry : Collections.list(zip.entries()))
+          entries.put(entry.getName(), entry);
+        for (ZipEntry entry : entries.values()) {
+          digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+          buffer.clear();
+          buffer.putLong(entry.getSize()).putLong(entry.getCrc()).flip();
+          digest.update(buffer);
+        }
+      }
+    }
+  }
+
+  // hash the content of a resource of the class path, if it exists
+  private static void digestResource(MessageDigest digest, String name) throws IOException {
+    try (InputStream stream = Thread.currentThread().getContextClassLoader().getResourceAsStream(name)) {
+      if (stream == null)
+        return;
+      digest.update(name.getBytes(StandardCharsets.UTF_8));
+      digest.update(stream.readAllBytes());
+    }
+  }
+
+  private static Map<String, ManifestEntry> readManifest(Path manifest) throws IOException {
+    Map<String, ManifestEntry> entries = new HashMap<>();
+    try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] parts = line.split("\t");
+        if (parts.length != 4)
+          throw new IOException("Invalid manifest line: " + line);
+        entries.put(parts[0], new ManifestEntry(parts[1], Long.parseLong(parts[2]), Integer.parseInt(parts[3])));
+      }
+    }
+    return entries;
+  }
+
+  private byte[] toLine(ObjectWriter writer, Object value) throws JsonProcessingException {
+    byte[] json = writer.writeValueAsBytes(value);
+    byte[] line = Arrays.copyOf(json, json.length + 1);
+    line[json.length] = '\n';
+    return line;
+  }
+
+  private Analyzed analyze(TokenizerServer.Input input, Report report) {
+    try {
+      long start = System.nanoTime();
+      Seq2SeqTokenizer.Result result = service.process(input.localeTag, input.utterance, input.expect);
+      long analyzed = System.nanoTime();
+      report.analyzeNanos.addAndGet(analyzed - start);
+
+      TokenizerServer.Output output = new TokenizerServer.Output(input.req, result);
+      byte[] line = OutputSerializer.serialize(input.req, result).toByteArray();
+      report.serializeNanos.addAndGet(System.nanoTime() - analyzed);
+      return new Analyzed(output, line);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private byte[] error(int req, String message) {
+    try {
+      return toLine(errorWriter, new TokenizerServer.Error(req, message));
+    } catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static List<String> toStringList(JsonNode node) {
+    List<String> list = new ArrayList<>(node.size());
+    for (JsonNode element : node)
+      list.add(element.asText());
+    return list;
+  }
+
+  private void addColumnarRow(ColumnarOutputWriter columnar, TokenizerServer.Output output) throws IOException {
+    Map<String, String> values = new LinkedHashMap<>();
+    for (Map.Entry<String, Object> entry : output.values.entrySet())
+      values.put(entry.getKey(), object.writeValueAsString(entry.getValue()));
+    columnar.addRow(output.req, output.tokens, output.rawTokens, output.tokensNoQuotes, output.pos, values,
+        output.sentiment);
+  }
+
+  private void addColumnarRow(ColumnarOutputWriter columnar, byte[] line) throws IOException {
+    JsonNode output = object.readTree(line);
+    Map<String, String> values = new LinkedHashMap<>();
+    Iterator<Map.Entry<String, JsonNode>> it = output.get("values").fields();
+    while (it.hasNext()) {
+      Map.Entry<String, JsonNode> entry = it.next();
+      values.put(entry.getKey(), entry.getValue().toString());
+    }
+    columnar.addRow(output.get("req").asInt(), toStringList(output.get("tokens")),
+        toStringList(output.get("rawTokens")), toStringList(output.get("tokensNoQuotes")),
+        toStringList(output.get("pos")), values, output.get("sentiment").asText());
+  }
+
+  private Row errorRow(int req, String message) {
+    return new Row(req, null, null, null, CompletableFuture.completedFuture(new Analyzed(null, error(req, message))));
+  }
+
+  private Row prepareRow(String line, MessageDigest digest, Map<String, ManifestEntry> previous, Report report) {
+    String inputHash = toHex(digest.digest(line.getBytes(StandardCharsets.UTF_8)));
+
+    TokenizerServer.Input input;
+    try {
+      input = inputReader.readValue(line);
+    } catch (IOException e) {
+      return errorRow(0, "Invalid JSON input: " + e.getMessage());
+    }
+    if (input.localeTag == null)
+      return errorRow(input.req, "Missing locale tag");
+    LocaleTag locale = service.resolveLocale(input.localeTag);
+    if (locale == null)
+      return errorRow(input.req, "Unsupported locale tag");
+
+    String configHash = configHashes.get(locale);
+    ManifestEntry entry = previous.get(inputHash);
+    if (entry != null && entry.configHash.equals(configHash))
+      return new Row(input.req, inputHash, configHash, entry, null);
+
+    if (entry != null)
+      report.configChanged++;
+    else
+      report.inputChanged++;
+    return new Row(input.req, inputHash, configHash, null,
+        CompletableFuture.supplyAsync(() -> analyze(input, report), service.getExecutor(locale)));
+  }
+
+  /**
+   * Tokenize the input file into the output file.
+   *
+   * If both the output file and the manifest file exist, they are taken as the
+   * result of a previous run, and unchanged rows are reused. Both files are
+   * replaced atomically at the end, the manifest after the output, and the old
+   * manifest is removed first, so that a crash in between never leaves a
+   * manifest that points into a different output.
+   *
+   * If columnarFile is not null, the successful outputs are also written there,
+   * in the format of ColumnarOutputWriter.
+   */
+  public Report run(Path inputFile, Path outputFile, Path manifestFile, Path columnarFile) throws IOException {
+    Report report = new Report();
+    long start = System.nanoTime();
+
+    Map<String, ManifestEntry> previous = Collections.emptyMap();
+    if (Files.exists(outputFile) && Files.exists(manifestFile))
+      previous = readManifest(manifestFile);
+
+    Path tmpOutput = outputFile.resolveSibling(outputFile.getFileName() + ".tmp");
+    Path tmpManifest = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+
+    MessageDigest digest = newDigest();
+    try (BufferedReader reader = Files.newBufferedReader(inputFile, StandardCharsets.UTF_8);
+        FileChannel oldOutput = previous.isEmpty() ? null : FileChannel.open(outputFile, StandardOpenOption.READ);
+        OutputStream output = new BufferedOutputStream(Files.newOutputStream(tmpOutput));
+        Writer manifest = Files.newBufferedWriter(tmpManifest, StandardCharsets.UTF_8);
+        ColumnarOutputWriter columnar = columnarFile != null ? new ColumnarOutputWriter(columnarFile) : null) {
+
+      List<Row> window = new ArrayList<>(WINDOW_SIZE);
+      long offset = 0;
+      boolean eof = false;
+      while (!eof) {
+        long readStart = System.nanoTime();
+        window.clear();
+        while (window.size() < WINDOW_SIZE) {
+          String line = reader.readLine();
+          if (line == null) {
+            eof = true;
+            break;
+          }
+          if (line.trim().isEmpty())
+            continue;
+          window.add(prepareRow(line, digest, previous, report));
+        }
+        report.readNanos += System.nanoTime() - readStart;
+
+        for (Row row : window) {
+          report.rows++;
+
+          // errors are not recorded in the manifest, so they are retried on the next run
+          boolean cacheable = row.inputHash != null;
+          byte[] bytes;
+          TokenizerServer.Output analyzedOutput = null;
+          if (row.reused != null) {
+            long reuseStart = System.nanoTime();
+            bytes = new byte[row.reused.length];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+              if (oldOutput.read(buffer, row.reused.offset + buffer.position()) < 0)
+                throw new EOFException("Previous output is shorter than its manifest");
+            }
+            report.reused++;
+            report.reuseNanos += System.nanoTime() - reuseStart;
+          } else {
+            try {
+              Analyzed analyzed = row.analyzed.join();
+              bytes = analyzed.line;
+              analyzedOutput = analyzed.output;
+            } catch (CompletionException e) {
+              Throwable cause = e.getCause() != null ? e.getCause() : e;
+              cause.printStackTrace();
+              bytes = error(row.req, cause.toString());
+              cacheable = false;
+            }
+            if (!cacheable)
+              report.failed++;
+          }
+
+          long writeStart = System.nanoTime();
+          output.write(bytes);
+          if (cacheable)
+            manifest.write(row.inputHash + "\t" + row.configHash + "\t" + offset + "\t" + bytes.length + "\n");
+          offset += bytes.length;
+          report.writeNanos += System.nanoTime() - writeStart;
+
+          if (columnar != null && cacheable) {
+            long columnarStart = System.nanoTime();
+            if (analyzedOutput != null)
+              addColumnarRow(columnar, analyzedOutput);
+            else
+              addColumnarRow(columnar, bytes);
+            report.columnarNanos += System.nanoTime() - columnarStart;
+          }
+        }
+      }
+    }
+
+    Files.deleteIfExists(manifestFile);
+    Files.move(tmpOutput, outputFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    Files.move(tmpManifest, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    report.totalNanos = System.nanoTime() - start;
+    return report;
+  }
+
+  public void close() {
+    service.close();
+  }
+
+  public static void main(String[] args) {
+    String input = null, output = null, manifest = null, columnar = null;
+
+    int i = 0;
+    for (; i < args.length - 1; i += 2) {
+      if ("--input".equals(args[i]))
+        input = args[i + 1];
+      else if ("--output".equals(args[i]))
+        output = args[i + 1];
+      else if ("--manifest".equals(args[i]))
+        manifest = args[i + 1];
+      else if ("--columnar".equals(args[i]))
+        columnar = args[i + 1];
+      else
+        break;
+    }
+    args = Arrays.copyOfRange(args, i, args.length);
+    if (input == null || output == null || args.length == 0) {
+      System.err.println("Usage: BatchTokenizer --input <file> --output <file> [--manifest <file>] [--columnar <file>] <locale>...");
+      System.exit(1);
+    }
+    if (manifest == null)
+      manifest = output + ".manifest";
+
+    BatchTokenizer batch = new BatchTokenizer(args);
+    try {
+      Report report = batch.run(Paths.get(input), Paths.get(output), Paths.get(manifest),
+          columnar != null ? Paths.get(columnar) : null);
+      report.print();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      batch.close();
+    }
+  }
+}
@@ -0,0 +1,320 @@
+package edu.stanford.nlp.sempre;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A compact alternative to the newline-delimited JSON protocol.
+ *
+ * A client opts in by sending {"protocol":"binary-v1"} as the first message on
+ * the connection. The server acknowledges with a JSON line naming the protocol
+ * it picked, {"protocol":"binary-v1"} or {"protocol":"json"} if the requested
+ * protocol is not supported. After a binary-v1 acknowledgment, both directions
+ * use length-prefixed frames: a 4 byte big-endian length, followed by the payload.
+ * Whitespace after the client's handshake, like the newline that ends the JSON
+ * line, is skipped; a frame length cannot start with a whitespace byte, because
+ * frames are smaller than 16 MB.
+ *
+ * Integers are unsigned LEB128 varints of their 32-bit two's complement value,
+ * and doubles are 8 bytes, big-endian.
+ * Strings are a varint holding the UTF-8 length + 1, followed by the bytes;
+ * a length of 0 is null.
+ *
+ * A request payload is: req, languageTag, utterance, expect, and optionally
+ * timeout (as an integer, in milliseconds, 0 for none) and priority (as a
+ * string, possibly null).
+ *
+ * A response payload starts with a type byte (0 for outputs, 1 for errors),
+ * followed by req. Errors are followed by the error message. Outputs are
+ * followed by a string table (count, then strings) that holds all the strings
+ * in the response once, then tokens, tokensNoQuotes, rawTokens, pos and
+ * constituencyParse as lists of indices into the table (count, then indices),
+ * the sentiment as an index, and the values (count, then key index, value type
+ * and value), and finally a byte of flags (bit 0 is set if the output is
+ * degraded, see TokenizerServer.Output). tokensNoQuotes and rawTokens are
+ * replaced by the count 0xFFFFFFFF (as a varint) when they are identical to tokens.
+ */
+public class BinaryProtocol {
+  public static final String NAME = "binary-v1";
+
+  // refuse frames that are obviously garbage, rather than allocating them
+  private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+  private static final int SAME_AS_TOKENS = -1;
+
+  static final byte RESPONSE_OUTPUT = 0;
+  static final byte RESPONSE_ERROR = 1;
+
+  static final byte FLAG_DEGRADED = 1;
+
+  static final byte VALUE_STRING = 0;
+  static final byte VALUE_NUMBER = 1;
+  static final byte VALUE_MEASURE = 2;
+  static final byte VALUE_DATE = 3;
+  static final byte VALUE_TIME = 4;
+  static final byte VALUE_NULL = 5;
+
+  private BinaryProtocol() { }
+
+  private static class FrameBuilder extends ByteArrayOutputStream {
+    FrameBuilder() {
+      super(256);
+      // placeholder for the length
+      count = 4;
+    }
+
+    void writeVarint(int value) {
+      while ((value & ~0x7F) != 0) {
+        write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      write(value);
+    }
+
+    void writeDouble(double value) {
+      long bits = Double.doubleToLongBits(value);
+      for (int shift = 56; shift >= 0; shift -= 8)
+        write((int) (bits >>> shift));
+    }
+
+    void writeString(String string) {
+      if (string == null) {
+        writeVarint(0);
+        return;
+      }
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      writeVarint(bytes.length + 1);
+      write(bytes, 0, bytes.length);
+    }
+
+    void finish(OutputStream out) throws IOException {
+      int length = count - 4;
+      buf[0] = (byte) (length >>> 24);
+      buf[1] = (byte) (length >>> 16);
+      buf[2] = (byte) (length >>> 8);
+      buf[3] = (byte) length;
+      out.write(buf, 0, count);
+    }
+  }
+
+  private static class StringTable {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+
+    int add(String string) {
+      Integer id = ids.get(string);
+      if (id == null) {
+        id = strings.size();
+        ids.put(string, id);
+        strings.add(string);
+      }
+      return id;
+    }
+
+    void addAll(List<String> list) {
+      for (String string : list)
+        add(string);
+    }
+  }
+
+  private static void writeList(FrameBuilder frame, StringTable table, List<String> list) {
+    frame.writeVarint(list.size());
+    for (String string : list)
+      frame.writeVarint(table.add(string));
+  }
+
+  private static void writeValue(FrameBuilder frame, StringTable table, Object value) {
+    if (value == null) {
+      frame.write(VALUE_NULL);
+    } else if (value instanceof Number) {
+      frame.write(VALUE_NUMBER);
+      frame.writeDouble(((Number) value).doubleValue());
+    } else if (value instanceof NumberValue) {
+      NumberValue number = (NumberValue) value;
+      frame.write(VALUE_MEASURE);
+      frame.writeDouble(number.value);
+      frame.writeString(number.unit);
+    } else if (value instanceof DateValue) {
+      DateValue date = (DateValue) value;
+      frame.write(VALUE_DATE);
+      frame.writeVarint(date.year);
+      frame.writeVarint(date.month);
+      frame.writeVarint(date.day);
+      frame.writeVarint(date.hour);
+      frame.writeVarint(date.minute);
+      frame.writeDouble(date.second);
+    } else if (value instanceof TimeValue) {
+      TimeValue time = (TimeValue) value;
+      frame.write(VALUE_TIME);
+      frame.writeVarint(time.hour);
+      frame.writeVarint(time.minute);
+      frame.writeDouble(time.second);
+    } else {
+      frame.write(VALUE_STRING);
+      frame.writeVarint(table.add(value.toString()));
+    }
+  }
+
+  public static void writeOutput(OutputStream out, TokenizerServer.Output output) throws IOException {
+    // collect the strings first, so the table can precede the lists
+    StringTable table = new StringTable();
+    table.addAll(output.tokens);
+    table.addAll(output.tokensNoQuotes);
+    table.addAll(output.rawTokens);
+    table.addAll(output.pos);
+    table.addAll(output.constituencyParse);
+    table.add(output.sentiment);
+    for (Map.Entry<String, Object> entry : output.values.entrySet()) {
+      table.add(entry.getKey());
+      if (entry.getValue() instanceof String)
+        table.add((String) entry.getValue());
+    }
+
+    FrameBuilder frame = new FrameBuilder();
+    frame.write(RESPONSE_OUTPUT);
+    frame.writeVarint(output.req);
+
+    frame.writeVarint(table.strings.size());
+    for (String string : table.strings)
+      frame.writeString(string);
+
+    writeList(frame, table, output.tokens);
+    if (output.tokensNoQuotes.equals(output.tokens))
+      frame.writeVarint(SAME_AS_TOKENS);
+    else
+      writeList(frame, table, output.tokensNoQuotes);
+    if (output.rawTokens.equals(output.tokens))
+      frame.writeVarint(SAME_AS_TOKENS);
+    else
+      writeList(frame, table, output.rawTokens);
+    writeList(frame, table, output.pos);
+    writeList(frame, table, output.constituencyParse);
+    frame.writeVarint(table.add(output.sentiment));
+
+    frame.writeVarint(output.values.size());
+    for (Map.Entry<String, Object> entry : output.values.entrySet()) {
+      frame.writeVarint(table.add(entry.getKey()));
+      writeValue(frame, table, entry.getValue());
+    }
+    frame.write(output.degraded != null ? FLAG_DEGRADED : 0);
+
+    frame.finish(out);
+  }
+
+  public static void writeError(OutputStream out, TokenizerServer.Error error) throws IOException {
+    FrameBuilder frame = new FrameBuilder();
+    frame.write(RESPONSE_ERROR);
+    frame.writeVarint(error.req);
+    frame.writeString(error.error);
+    frame.finish(out);
+  }
+
+  /**
+   * Reads request frames from a connection.
+   *
+   * The frame buffer is reused from one request to the next, and requests
+   * are decoded straight from it.
+   */
+  public static class InputReader {
+    private final InputStream in;
+    private byte[] buffer = new byte[4096];
+    private int position;
+    private int limit;
+    // the first byte after the whitespace that follows the handshake, or -1
+    private int pending = -1;
+    private boolean started;
+
+    public InputReader(InputStream in) {
+      this.in = in;
+    }
+
+    private boolean fill(int length, boolean eofAllowed) throws IOException {
+      if (buffer.length < length)
+        buffer = new byte[Math.max(length, 2 * buffer.length)];
+      int read = 0;
+      if (pending >= 0 && length > 0) {
+        buffer[read++] = (byte) pending;
+        pending = -1;
+      }
+      while (read < length) {
+        int n = in.read(buffer, read, length - read);
+        if (n < 0) {
+          if (read == 0 && eofAllowed)
+            return false;
+          throw new EOFException();
+        }
+        read += n;
+      }
+      position = 0;
+      limit = length;
+      return true;
+    }
+
+    private int readVarint() throws IOException {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        if (position >= limit)
+          throw new IOException("Truncated frame");
+        int b = buffer[position++] & 0xFF;
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0)
+          return value;
+      }
+      throw new IOException("Malformed varint");
+    }
+
+    private String readString() throws IOException {
+      int length = readVarint();
+      if (length == 0)
+        return null;
+      length--;
+      if (length > limit - position)
+        throw new IOException("Truncated frame");
+      String string = new String(buffer, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return string;
+    }
+
+    // skip the whitespace left after the handshake, keeping the byte after it
+    private boolean skipWhitespace() throws IOException {
+      int b;
+      do {
+        b = in.read();
+      } while (b == ' ' || b == '\t' || b == '\r' || b == '\n');
+      pending = b;
+      return b >= 0;
+    }
+
+    /**
+     * Read one request frame.
+     *
+     * @return the request, or null at the end of the stream
+     */
+    public TokenizerServer.Input read() throws IOException {
+      if (!started) {
+        started = true;
+        if (!skipWhitespace())
+          return null;
+      }
+      if (!fill(4, true))
+        return null;
+      int length = ((buffer[0] & 0xFF) << 24) | ((buffer[1] & 0xFF) << 16) | ((buffer[2] & 0xFF) << 8)
+          | (buffer[3] & 0xFF);
+      if (length < 0 || length > MAX_FRAME_SIZE)
+        throw new IOException("Invalid frame length " + length);
+      fill(length, false);
+
+      TokenizerServer.Input input = new TokenizerServer.Input();
+      input.req = readVarint();
+      input.localeTag = readString();
+      input.utterance = readString();
+      input.expect = readString();
+      if (position < limit)
+        input.timeout = readVarint();
+      if (position < limit)
+        input.priority = readString();
+      return input;
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package edu.stanford.nlp.sempre;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import edu.stanford.nlp.sempre.ColumnarOutputWriter.Column;
+
+/**
+ * Read a file produced by ColumnarOutputWriter.
+ *
+ * The file is memory-mapped, and strings are decoded lazily from the shared
+ * dictionary the first time they are accessed. Loaders that build their own
+ * vocabulary can use the dictionary ids directly, with getId() and getWord().
+ */
+public class ColumnarOutputReader implements Closeable, Iterable<ColumnarOutputReader.Row> {
+  private final FileChannel channel;
+  private final int rowCount;
+  private final IntBuffer dictionaryOffsets;
+  private final ByteBuffer dictionaryData;
+  private final IntBuffer reqs;
+  private final IntBuffer[] offsets = new IntBuffer[Column.values().length];
+  private final IntBuffer[] ids = new IntBuffer[Column.values().length];
+  private final String[] decoded;
+
+  public class Row {
+    private final int row;
+
+    private Row(int row) {
+      this.row = row;
+    }
+
+    public int getReq() {
+      return reqs.get(row);
+    }
+
+    public List<String> get(Column column) {
+      return getColumn(column, row);
+    }
+
+    public List<String> getTokens() {
+      return get(Column.TOKENS);
+    }
+
+    public List<String> getRawTokens() {
+      return get(Column.RAW_TOKENS);
+    }
+
+    public List<String> getTokensNoQuotes() {
+      return get(Column.TOKENS_NO_QUOTES);
+    }
+
+    public List<String> getPos() {
+      return get(Column.POS);
+    }
+
+    /**
+     * The entity values, as JSON text, keyed by entity token.
+     */
+    public Map<String, String> getValues() {
+      List<String> keys = get(Column.ENTITY_KEYS);
+      List<String> values = get(Column.ENTITY_VALUES);
+      Map<String, String> map = new LinkedHashMap<>();
+      for (int i = 0; i < keys.size(); i++)
+        map.put(keys.get(i), values.get(i));
+      return map;
+    }
+
+    public String getSentiment() {
+      return get(Column.SENTIMENT).get(0);
+    }
+  }
+
+  public ColumnarOutputReader(Path path) throws IOException {
+    channel = FileChannel.open(path, StandardOpenOption.READ);
+
+    ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, ColumnarOutputWriter.HEADER_SIZE);
+    byte[] magic = new byte[ColumnarOutputWriter.MAGIC.length];
+    header.get(magic);
+    if (!Arrays.equals(magic, ColumnarOutputWriter.MAGIC))
+      throw new IOException("Not a columnar tokenizer output file");
+    int version = header.getInt();
+    if (version != ColumnarOutputWriter.VERSION)
+      throw new IOException("Unsupported columnar format version " + version);
+    rowCount = header.getInt();
+    int dictionarySize = header.getInt();
+    int columnCount = header.getInt();
+    if (columnCount != Column.values().length)
+      throw new IOException("Unexpected number of columns " + columnCount);
+
+    long dictionaryOffsetsPos = header.getLong();
+    long dictionaryDataPos = header.getLong();
+    long reqsPos = header.getLong();
+    long[] columnPos = new long[2 * columnCount];
+    for (int i = 0; i < columnPos.length; i++)
+      columnPos[i] = header.getLong();
+
+    dictionaryOffsets = map(dictionaryOffsetsPos, 4L * (dictionarySize + 1)).asIntBuffer();
+    dictionaryData = map(dictionaryDataPos, dictionaryOffsets.get(dictionarySize));
+    reqs = map(reqsPos, 4L * rowCount).asIntBuffer();
+    for (Column column : Column.values()) {
+      int idx = column.ordinal();
+      offsets[idx] = map(columnPos[2 * idx], 4L * (rowCount + 1)).asIntBuffer();
+      ids[idx] = map(columnPos[2 * idx + 1], 4L * offsets[idx].get(rowCount)).asIntBuffer();
+    }
+
+    decoded = new String[dictionarySize];
+  }
+
+  private MappedByteBuffer map(long position, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+  }
+
+  public int size() {
+    return rowCount;
+  }
+
+  public int getDictionarySize() {
+    return decoded.length;
+  }
+
+  public String getWord(int id) {
+    String word = decoded[id];
+    if (word == null) {
+      int begin = dictionaryOffsets.get(id);
+      int end = dictionaryOffsets.get(id + 1);
+      byte[] bytes = new byte[end - begin];
+      ByteBuffer slice = dictionaryData.duplicate();
+      slice.position(begin);
+      slice.get(bytes);
+      word = new String(bytes, StandardCharsets.UTF_8);
+      decoded[id] = word;
+    }
+    return word;
+  }
+
+  public int getLength(Column column, int row) {
+    IntBuffer columnOffsets = offsets[column.ordinal()];
+    return columnOffsets.get(row + 1) - columnOffsets.get(row);
+  }
+
+  public int getId(Column column, int row, int index) {
+    return ids[column.ordinal()].get(offsets[column.ordinal()].get(row) + index);
+  }
+
+  private List<String> getColumn(Column column, int row) {
+    int length = getLength(column, row);
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        if (index < 0 || index >= length)
+          throw new IndexOutOfBoundsException(String.valueOf(index));
+        return getWord(getId(column, row, index));
+      }
+
+      @Override
+      public int size() {
+        return length;
+      }
+    };
+  }
+
+  public Row getRow(int row) {
+    if (row < 0 || row >= rowCount)
+      throw new IndexOutOfBoundsException(String.valueOf(row));
+    return new Row(row);
+  }
+
+  @Override
+  public Iterator<Row> iterator() {
+    return new Iterator<Row>() {
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < rowCount;
+      }
+
+      @Override
+      public Row next() {
+        if (next >= rowCount)
+          throw new NoSuchElementException();
+        return new Row(next++);
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
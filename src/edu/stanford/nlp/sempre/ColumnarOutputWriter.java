@@ -0,0 +1,206 @@
+package edu.stanford.nlp.sempre;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Write tokenizer outputs to a columnar binary file, which can be memory-mapped
+ * and iterated with ColumnarOutputReader without parsing any JSON.
+ *
+ * All strings, across all columns, are stored once in a shared dictionary, and
+ * each column is an array of dictionary ids with per-row offsets. Entity values
+ * are stored as JSON text, in the same format the tokenizer service returns them.
+ *
+ * The layout is (all numbers are big-endian):
+ * <pre>
+ *   magic (8 bytes), version, row count, dictionary size, column count (ints)
+ *   dictionary offsets, dictionary data, request ids (longs, absolute positions)
+ *   for each column: row offsets, ids (longs, absolute positions)
+ *   dictionary offsets: (dictionary size + 1) ints into the dictionary data
+ *   dictionary data: UTF-8 bytes
+ *   request ids: row count ints
+ *   for each column: (row count + 1) ints into the ids, then the ids
+ * </pre>
+ *
+ * Rows are buffered on disk while they are added, so memory use is
+ * proportional to the size of the dictionary, not the number of rows. The file
+ * only appears at its path once it is complete.
+ *
+ * Each array of ints is mapped as a whole by the reader, and a mapping cannot
+ * exceed 2 GB, so the rows, the strings of the dictionary and the ids of each
+ * column are limited to MAX_LENGTH, and the dictionary data to 2 GB.
+ */
+public class ColumnarOutputWriter implements Closeable {
+  static final byte[] MAGIC = "ALMNDCOL".getBytes(StandardCharsets.US_ASCII);
+  static final int VERSION = 1;
+
+  public enum Column {
+    TOKENS,
+    RAW_TOKENS,
+    TOKENS_NO_QUOTES,
+    POS,
+    ENTITY_KEYS,
+    ENTITY_VALUES,
+    SENTIMENT
+  }
+
+  static final int MAX_LENGTH = Integer.MAX_VALUE / 4 - 1;
+
+  static final int HEADER_SIZE = MAGIC.length + 4 * 4 + 3 * 8 + Column.values().length * 2 * 8;
+
+  private final Path path;
+  private final Path tmpDir;
+  private final Map<String, Integer> dictionary = new HashMap<>();
+  private final List<String> dictionaryStrings = new ArrayList<>();
+  private final DataOutputStream reqs;
+  private final DataOutputStream[] offsets = new DataOutputStream[Column.values().length];
+  private final DataOutputStream[] ids = new DataOutputStream[Column.values().length];
+  private final long[] columnSizes = new long[Column.values().length];
+  private int rowCount = 0;
+  private boolean closed = false;
+
+  public ColumnarOutputWriter(Path path) throws IOException {
+    this.path = path;
+    Path parent = path.toAbsolutePath().getParent();
+    this.tmpDir = Files.createTempDirectory(parent, path.getFileName() + ".");
+
+    reqs = openTemp("reqs");
+    for (Column column : Column.values()) {
+      offsets[column.ordinal()] = openTemp(column + ".offsets");
+      ids[column.ordinal()] = openTemp(column + ".ids");
+    }
+  }
+
+  private DataOutputStream openTemp(String name) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpDir.resolve(name))));
+  }
+
+  private int intern(String string) {
+    Integer id = dictionary.get(string);
+    if (id == null) {
+      id = dictionaryStrings.size();
+      dictionary.put(string, id);
+      dictionaryStrings.add(string);
+    }
+    return id;
+  }
+
+  private void addColumn(Column column, Collection<String> strings) throws IOException {
+    int idx = column.ordinal();
+    offsets[idx].writeInt((int) columnSizes[idx]);
+    for (String string : strings)
+      ids[idx].writeInt(intern(string));
+    columnSizes[idx] += strings.size();
+  }
+
+  /**
+   * Add one row.
+   *
+   * values maps each entity token (such as NUMBER_0) to the JSON encoding of its value.
+   */
+  public void addRow(int req, List<String> tokens, List<String> rawTokens, List<String> tokensNoQuotes,
+      List<String> pos, Map<String, String> values, String sentiment) throws IOException {
+    // in the order of Column
+    List<Collection<String>> columns = Arrays.asList(tokens, rawTokens, tokensNoQuotes, pos, values.keySet(),
+        values.values(), Collections.singletonList(sentiment));
+
+    // check before writing anything, so that the rows added so far still
+    // make a valid file; every string of the row might be new to the dictionary
+    if (rowCount == MAX_LENGTH)
+      throw new IOException("Too many rows for the columnar format");
+    long rowSize = 0;
+    for (Column column : Column.values()) {
+      int size = columns.get(column.ordinal()).size();
+      if (columnSizes[column.ordinal()] + size > MAX_LENGTH)
+        throw new IOException("Column " + column + " too large for the columnar format");
+      rowSize += size;
+    }
+    if (dictionaryStrings.size() + rowSize > MAX_LENGTH)
+      throw new IOException("Dictionary too large for the columnar format");
+
+    reqs.writeInt(req);
+    for (Column column : Column.values())
+      addColumn(column, columns.get(column.ordinal()));
+    rowCount++;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+
+    Path tmpOutput = tmpDir.resolve("output");
+    try {
+      reqs.close();
+      for (Column column : Column.values()) {
+        offsets[column.ordinal()].writeInt((int) columnSizes[column.ordinal()]);
+        offsets[column.ordinal()].close();
+        ids[column.ordinal()].close();
+      }
+      write(tmpOutput);
+      Files.move(tmpOutput, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmpOutput);
+      Files.deleteIfExists(tmpDir.resolve("reqs"));
+      for (Column column : Column.values()) {
+        Files.deleteIfExists(tmpDir.resolve(column + ".offsets"));
+        Files.deleteIfExists(tmpDir.resolve(column + ".ids"));
+      }
+      Files.deleteIfExists(tmpDir);
+    }
+  }
+
+  private void write(Path output) throws IOException {
+    byte[][] encoded = new byte[dictionaryStrings.size()][];
+    long dictionaryDataSize = 0;
+    for (int i = 0; i < encoded.length; i++) {
+      encoded[i] = dictionaryStrings.get(i).getBytes(StandardCharsets.UTF_8);
+      dictionaryDataSize += encoded[i].length;
+    }
+    if (dictionaryDataSize > Integer.MAX_VALUE)
+      throw new IOException("Dictionary too large for the columnar format");
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output)))) {
+      long position = HEADER_SIZE;
+
+      out.write(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(rowCount);
+      out.writeInt(encoded.length);
+      out.writeInt(Column.values().length);
+
+      out.writeLong(position);
+      position += 4L * (encoded.length + 1);
+      out.writeLong(position);
+      position += dictionaryDataSize;
+      out.writeLong(position);
+      position += 4L * rowCount;
+      for (Column column : Column.values()) {
+        out.writeLong(position);
+        position += 4L * (rowCount + 1);
+        out.writeLong(position);
+        position += 4L * columnSizes[column.ordinal()];
+      }
+
+      int offset = 0;
+      for (byte[] string : encoded) {
+        out.writeInt(offset);
+        offset += string.length;
+      }
+      out.writeInt(offset);
+      for (byte[] string : encoded)
+        out.write(string);
+
+      Files.copy(tmpDir.resolve("reqs"), out);
+      for (Column column : Column.values()) {
+        Files.copy(tmpDir.resolve(column + ".offsets"), out);
+        Files.copy(tmpDir.resolve(column + ".ids"), out);
+      }
+    }
+  }
+}
@@ -1,16 +1,28 @@
 package edu.stanford.nlp.sempre;
 
 import java.io.*;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import edu.stanford.nlp.ling.CoreAnnotations.*;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.AnnotationPipeline;
+import edu.stanford.nlp.pipeline.Annotator;
 import edu.stanford.nlp.pipeline.StanfordCoreNLP;
 import edu.stanford.nlp.sempre.italian.ItalianTokenizerBlankWorkaround;
 import edu.stanford.nlp.sentiment.SentimentCoreAnnotations;
+import edu.stanford.nlp.trees.TreeCoreAnnotations;
 import edu.stanford.nlp.util.CoreMap;
 import edu.stanford.nlp.util.logging.Redwood;
 
@@ -26,7 +38,43 @@ public class CoreNLPAnalyzer {
   private static final Redwood.RedwoodChannels log = Redwood.channels(CoreNLPAnalyzer.class);
 
   private static final String default_annotators = "tokenize,quote2,ssplit,pos,lemma," +
-      "ner,quote_ner,custom_regexp_ner,custom_numeric_ner,phone_ner,url_ner,parse,sentiment";
+      "ner,token_features,quote_ner,custom_regexp_ner,custom_numeric_ner,phone_ner,parse,sentiment";
+
+  static final String REGEX_PATTERNS_FILE = "./data/regex_patterns";
+
+  // the CoreNLP properties of the languages, loaded from the class path
+  static final List<String> PROPERTIES_RESOURCES = Arrays.asList("StanfordCoreNLP-italian.properties",
+      "StanfordCoreNLP-german.properties", "StanfordCoreNLP-french.properties",
+      "StanfordCoreNLP-chinese.properties", "StanfordCoreNLP-spanish.properties");
+
+  // the annotators that can be skipped for a quicker analysis, at the cost of
+  // the sentiment
+  private static final List<String> PARSE_ANNOTATORS = Arrays.asList("parse", "sentiment");
+
+  // our entity annotators, which run after the masked spans are put back
+  private static final List<String> ENTITY_ANNOTATORS = Arrays.asList("token_features", "quote_ner",
+      "custom_regexp_ner", "custom_numeric_ner", "phone_ner");
+
+  // the annotators that start a stage, in staged execution, and the name of the stage;
+  // each stage loads different models: the tagger, the NER CRF, and the parser
+  private static final Map<String, String> STAGE_STARTS = new HashMap<>();
+  static {
+    STAGE_STARTS.put("pos", "tag");
+    STAGE_STARTS.put("ner", "ner");
+    STAGE_STARTS.put("parse", "parse");
+  }
+
+  // what the parser and the sentiment model read and write, but do not declare
+  // in requires() and requirementsSatisfied()
+  private static final Map<String, List<Class<?>>> EXTRA_READS = new HashMap<>();
+  private static final Map<String, List<Class<?>>> EXTRA_WRITES = new HashMap<>();
+  static {
+    EXTRA_WRITES.put("parse", Arrays.asList(TreeCoreAnnotations.TreeAnnotation.class,
+        TreeCoreAnnotations.BinarizedTreeAnnotation.class));
+    EXTRA_READS.put("sentiment", Arrays.asList(TreeCoreAnnotations.BinarizedTreeAnnotation.class));
+    EXTRA_WRITES.put("sentiment", Arrays.asList(SentimentCoreAnnotations.SentimentClass.class,
+        SentimentCoreAnnotations.SentimentAnnotatedTree.class));
+  }
 
   private static final Pattern INTEGER_PATTERN = Pattern.compile("[0-9]+");
   private static final Pattern YEAR_PATTERN = Pattern.compile("[0-9]{4}");
@@ -41,10 +89,28 @@ public class CoreNLPAnalyzer {
   private static final OpenCC openCC_s2t = new OpenCC("s2t");
 
   private final StanfordCoreNLP pipeline;
+  // the annotators of the pipeline, so they can be run one at a time
+  private final List<Annotator> annotators;
+  private final List<String> annotatorNames;
+  // the stages the annotators run in, or null to run them on the calling thread
+  private StagedPipeline stages;
+  // the independent branches of annotators, or null to run them in order
+  private AnnotatorGraph graph;
   private final boolean isEnglish;
   private final boolean convertTraditionalChinese;
+  // the tokens skipped by our entity annotators, in the documents of this analyzer
+  private final TokenFeaturesAnnotator.SkipCounters skipCounters = new TokenFeaturesAnnotator.SkipCounters();
 
   public CoreNLPAnalyzer(LocaleTag localeTag) {
+    this(localeTag, false);
+  }
+
+  /**
+   * @param maskSpans replace quoted strings, URLs, email addresses and phone
+   * numbers with a placeholder token while the statistical annotators run (see
+   * SpanMaskingAnnotator); only English and Italian are masked
+   */
+  public CoreNLPAnalyzer(LocaleTag localeTag, boolean maskSpans) {
     Properties props = new Properties();
     String annotators = default_annotators;
     
@@ -65,7 +131,7 @@ public class CoreNLPAnalyzer {
     case "it":
       loadResource("StanfordCoreNLP-italian.properties", props);
       props.put("ita_toksent.ssplitOnlyOnNewLine", "true");
-      annotators = "ita_toksent,ita_tok_workaround,mergesent,quote2,pos,ita_morpho,ita_lemma,ner,quote_ner,custom_regexp_ner,custom_numeric_ner,phone_ner,url_ner,parse,sentiment";
+      annotators = "ita_toksent,ita_tok_workaround,mergesent,quote2,pos,ita_morpho,ita_lemma,ner,token_features,quote_ner,custom_regexp_ner,custom_numeric_ner,phone_ner,parse,sentiment";
       break;
 
     case "de":
@@ -89,6 +155,8 @@ public class CoreNLPAnalyzer {
       log.errf("Unrecognized language %s, analysis will not work!", localeTag.getLanguage());
     }
 
+    if (maskSpans && SpanMaskingAnnotator.supportsLanguage(localeTag.getLanguage()))
+      annotators = maskSpans(annotators);
     props.put("annotators", annotators);
 
     // disable ssplit (even though we need it to run the rest of the annotators)
@@ -103,18 +171,110 @@ public class CoreNLPAnalyzer {
     props.put("customAnnotatorClass.ita_tok_workaround", ItalianTokenizerBlankWorkaround.class.getCanonicalName());
     props.put("customAnnotatorClass.mergesent", MergeSentencesAnnotator.class.getCanonicalName());
     props.put("customAnnotatorClass.quote2", QuotedStringAnnotator.class.getCanonicalName());
+    props.put("customAnnotatorClass.token_features", TokenFeaturesAnnotator.class.getCanonicalName());
     props.put("customAnnotatorClass.quote_ner", QuotedStringEntityAnnotator.class.getCanonicalName());
     props.put("customAnnotatorClass.phone_ner", PhoneNumberEntityAnnotator.class.getCanonicalName());
-    props.put("customAnnotatorClass.url_ner", URLEntityAnnotator.class.getCanonicalName());
     props.put("customAnnotatorClass.custom_regexp_ner", RegexpEntityAnnotator.class.getCanonicalName());
     props.put("customAnnotatorClass.custom_numeric_ner", NumericEntityAnnotator.class.getCanonicalName());
-    props.put("custom_regexp_ner.patterns", "./data/regex_patterns");
+    props.put("custom_regexp_ner.patterns", REGEX_PATTERNS_FILE);
     props.put("custom_numeric_ner.language", localeTag.getLanguage());
+    props.put("customAnnotatorClass.mask", SpanMaskingAnnotator.class.getCanonicalName());
+    props.put("customAnnotatorClass.unmask", SpanUnmaskingAnnotator.class.getCanonicalName());
+    props.put("mask.patterns", REGEX_PATTERNS_FILE);
+    props.put("mask.language", localeTag.getLanguage());
 
     // ask for binary tree parses
     props.put("parse.binaryTrees", "true");
 
     pipeline = new StanfordCoreNLP(props);
+    annotatorNames = Arrays.asList(annotators.split(","));
+    this.annotators = getAnnotators(pipeline, annotatorNames.size());
+  }
+
+  // mask before the tagger, and put the tokens back after the sentiment model,
+  // moving our entity annotators after that
+  private static String maskSpans(String annotators) {
+    List<String> names = new ArrayList<>(Arrays.asList(annotators.split(",")));
+    if (!names.contains("pos") || !names.contains("sentiment"))
+      return annotators;
+    names.removeAll(ENTITY_ANNOTATORS);
+    names.add(names.indexOf("pos"), "mask");
+    names.add(names.indexOf("sentiment") + 1, "unmask");
+    names.addAll(names.indexOf("unmask") + 1, ENTITY_ANNOTATORS);
+    return String.join(",", names);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Annotator> getAnnotators(AnnotationPipeline pipeline, int expectedCount) {
+    // CoreNLP does not expose the list, so we have to dig it out
+    try {
+      Field field = AnnotationPipeline.class.getDeclaredField("annotators");
+      field.setAccessible(true);
+      List<Annotator> annotators = (List<Annotator>) field.get(pipeline);
+      if (annotators.size() != expectedCount) {
+        log.errf("Expected %d CoreNLP annotators, found %d, analysis will not be cancellable", expectedCount,
+            annotators.size());
+        return null;
+      }
+      return annotators;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.errf("Cannot access the CoreNLP annotators, analysis will not be cancellable: %s", e);
+      return null;
+    }
+  }
+
+  /**
+   * Run the annotators in stages, each with its own threads, instead of on the
+   * thread that calls analyze().
+   *
+   * The stages are called tokenize, tag, ner and parse.
+   *
+   * @param stageThreads the number of threads of each stage, by name
+   * @param defaultThreads the number of threads of the stages not in stageThreads
+   * @param capacity the number of requests that can wait in front of each stage
+   * @return false if the annotators cannot be run separately, in which case
+   * they keep running on the calling thread
+   */
+  public boolean startStages(Map<String, Integer> stageThreads, int defaultThreads, int capacity) {
+    if (annotators == null)
+      return false;
+    stages = new StagedPipeline(annotators, annotatorNames, STAGE_STARTS, stageThreads, defaultThreads, capacity,
+        PARSE_ANNOTATORS);
+    return true;
+  }
+
+  /**
+   * Run the independent branches of the annotators concurrently, the first on
+   * the thread that calls analyze(), the others on the helpers.
+   *
+   * @return false if the annotators cannot be run separately, or none of them
+   * are independent
+   */
+  public boolean startParallel(Executor helpers) {
+    if (annotators == null)
+      return false;
+    AnnotatorGraph graph = new AnnotatorGraph(annotators, annotatorNames, EXTRA_READS, EXTRA_WRITES,
+        PARSE_ANNOTATORS, helpers);
+    if (graph.getBranches().isEmpty())
+      return false;
+    log.logf("Running concurrently: %s", graph.getBranches());
+    this.graph = graph;
+    return true;
+  }
+
+  /**
+   * The state of each stage, or null if the annotators do not run in stages.
+   */
+  public Map<String, Object> getStagesSnapshot() {
+    return stages != null ? stages.snapshot() : null;
+  }
+
+  /**
+   * The tokens seen and skipped by each of our entity annotators, in the
+   * utterances analyzed so far.
+   */
+  public Map<String, Object> getPrefilterSnapshot() {
+    return skipCounters.snapshot();
   }
 
   private static void loadResource(String name, Properties into) {
@@ -129,6 +289,18 @@ public class CoreNLPAnalyzer {
   private static final Pattern WHITE_SPACE_PATTERN = Pattern.compile("\\p{IsWhite_Space}*");
 
   public LanguageInfo analyze(String utterance, String expected) {
+    return analyze(utterance, expected, () -> false, false);
+  }
+
+  /**
+   * Analyze the utterance, checking between annotators whether the analysis is
+   * still needed.
+   *
+   * @param skipParse skip the constituency parser and the sentiment model, which
+   * are the slowest on long sentences; the sentiment is then always neutral
+   * @throws CancellationException if cancelled returns true
+   */
+  public LanguageInfo analyze(String utterance, String expected, BooleanSupplier cancelled, boolean skipParse) {
     if (WHITE_SPACE_PATTERN.matcher(utterance).matches()) {
         // CoreNLP chokes on sentences that are composed exclusively of blanks
         // return early in that case, the tokenization has 0 tokens
@@ -146,7 +318,23 @@ public class CoreNLPAnalyzer {
     // Run Stanford CoreNLP
 
     // Work around CoreNLP issue #622
-    Annotation annotation = pipeline.process(utterance + " ");
+    Annotation annotation = new Annotation(utterance + " ");
+    annotation.set(TokenFeaturesAnnotator.SkipCountersAnnotation.class, skipCounters);
+    if (stages != null) {
+      stages.annotate(annotation, cancelled, skipParse);
+    } else if (graph != null) {
+      graph.annotate(annotation, cancelled, skipParse);
+    } else if (annotators != null) {
+      for (int i = 0; i < annotators.size(); i++) {
+        if (skipParse && PARSE_ANNOTATORS.contains(annotatorNames.get(i)))
+          continue;
+        if (cancelled.getAsBoolean())
+          throw new CancellationException();
+        annotators.get(i).annotate(annotation);
+      }
+    } else {
+      pipeline.annotate(annotation);
+    }
 
     CoreMap sentence = annotation.get(SentencesAnnotation.class).get(0);
     String sentiment = sentence.get(SentimentCoreAnnotations.SentimentClass.class);
@@ -0,0 +1,76 @@
+package edu.stanford.nlp.sempre;
+
+/**
+ * Estimate how expensive a request is going to be, before analyzing it.
+ *
+ * Most annotators are linear in the length of the sentence, but the
+ * constituency parser (and the sentiment model that runs on its trees) are
+ * not, so a long paragraph costs much more than several short commands.
+ * Costs are relative: 1 is a typical short command, of about 8 tokens.
+ */
+public class CostModel {
+  private CostModel() { }
+
+  private static final double TYPICAL_TOKENS = 8;
+
+  // the fraction of the cost of a typical command that does not depend on length
+  private static final double FIXED_COST = 0.3;
+  // the fraction of the cost of a typical command that is linear in the length
+  private static final double LINEAR_COST = 0.5;
+  // the fraction of the cost of a typical command that is cubic in the length (parsing)
+  private static final double CUBIC_COST = 0.2;
+
+  /**
+   * Estimate the number of tokens in the utterance, without tokenizing it.
+   *
+   * Words are counted as runs of letters or digits, and each ideograph counts
+   * as its own token, which is close enough for Chinese.
+   */
+  public static int estimateTokens(String utterance) {
+    if (utterance == null)
+      return 0;
+    int tokens = 0;
+    boolean inWord = false;
+    for (int i = 0; i < utterance.length(); ) {
+      int codePoint = utterance.codePointAt(i);
+      i += Character.charCount(codePoint);
+
+      if (Character.isIdeographic(codePoint)) {
+        tokens++;
+        inWord = false;
+      } else if (Character.isLetterOrDigit(codePoint)) {
+        if (!inWord)
+          tokens++;
+        inWord = true;
+      } else {
+        // punctuation is its own token, whitespace is not
+        if (!Character.isWhitespace(codePoint))
+          tokens++;
+        inWord = false;
+      }
+    }
+    return tokens;
+  }
+
+  // relative cost of the pipeline of each language, for a sentence of the same length
+  private static double languageFactor(LocaleTag locale) {
+    switch (locale.getLanguage()) {
+    case "it":
+      // the Tint annotators run in addition to the usual ones
+      return 1.5;
+    case "zh":
+      // segmentation, and the Traditional Chinese conversion
+      return 1.3;
+    default:
+      return 1;
+    }
+  }
+
+  /**
+   * Estimate the relative cost of analyzing the utterance in the given locale.
+   */
+  public static double estimate(LocaleTag locale, String utterance) {
+    double length = estimateTokens(utterance) / TYPICAL_TOKENS;
+    return languageFactor(locale) * (FIXED_COST + LINEAR_COST * length + CUBIC_COST * length * length * length);
+  }
+}
@@ -0,0 +1,358 @@
+package edu.stanford.nlp.sempre;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Match a token against an ordered list of entity patterns, such as those of
+ * data/regex_patterns, in one pass.
+ *
+ * The first pattern (in file order) that matches the whole token wins. To
+ * avoid running every regular expression on every token, each pattern is
+ * indexed by the characters it can start with, and by the ASCII characters
+ * that any match must contain (the @ of an email address, the . of a URL), and
+ * the token is scanned once to find which patterns can possibly match. Most
+ * words then do not run any regular expression at all.
+ */
+public class EntityPatternMatcher {
+  public static class Match {
+    public final String type;
+    // the first group of the pattern, or the whole token if it has no group
+    public final String value;
+
+    Match(String type, String value) {
+      this.type = type;
+      this.value = value;
+    }
+  }
+
+  private static class Rule {
+    final String type;
+    final Pattern pattern;
+    // the ASCII characters that any match contains, as two bitmasks
+    final long requiredLow;
+    final long requiredHigh;
+    // the same, as features of TokenFeaturesAnnotator
+    final int requiredFeatures;
+
+    Rule(String type, Pattern pattern) {
+      this.type = type;
+      this.pattern = pattern;
+      long[] required = RequiredChars.of(pattern);
+      this.requiredLow = required[0];
+      this.requiredHigh = required[1];
+      int features = 0;
+      for (char c = 0; c < ASCII; c++) {
+        long bit = c < 64 ? required[0] & (1L << c) : required[1] & (1L << (c - 64));
+        if (bit != 0)
+          features |= TokenFeaturesAnnotator.ofChar(c) & ~TokenFeaturesAnnotator.UPPER;
+      }
+      this.requiredFeatures = features;
+    }
+  }
+
+  private static final int ASCII = 128;
+
+  private final List<Rule> rules = new ArrayList<>();
+  // the rules that can match a token starting with each ASCII character,
+  // and at index ASCII, those that can match a token starting with anything else
+  private final List<List<Rule>> rulesByFirstChar = new ArrayList<>();
+
+  /**
+   * @param patterns the patterns, by entity type, in order of priority
+   */
+  public EntityPatternMatcher(LinkedHashMap<String, Pattern> patterns) {
+    for (Map.Entry<String, Pattern> entry : patterns.entrySet())
+      rules.add(new Rule(entry.getKey(), entry.getValue()));
+
+    for (int c = 0; c < ASCII; c++) {
+      List<Rule> candidates = new ArrayList<>();
+      for (Rule rule : rules) {
+        // if the engine wanted to read past the first character, a longer
+        // token starting with it could match
+        Matcher matcher = rule.pattern.matcher(String.valueOf((char) c));
+        if (matcher.matches() || matcher.hitEnd())
+          candidates.add(rule);
+      }
+      rulesByFirstChar.add(candidates);
+    }
+    rulesByFirstChar.add(rules);
+  }
+
+  /**
+   * Read a file of entity types and regular expressions, separated by a tab,
+   * in order of priority. Empty lines and lines starting with # are ignored.
+   */
+  public static EntityPatternMatcher load(String file) {
+    LinkedHashMap<String, Pattern> patterns = new LinkedHashMap<>();
+    try {
+      for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#"))
+          continue;
+        String[] parts = line.split("\t");
+        patterns.put(parts[0], Pattern.compile(parts[1]));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new EntityPatternMatcher(patterns);
+  }
+
+  public List<String> getTypes() {
+    List<String> types = new ArrayList<>();
+    for (Rule rule : rules)
+      types.add(rule.type);
+    return types;
+  }
+
+  /**
+   * Whether a word with the given features (see TokenFeaturesAnnotator) could
+   * match any pattern.
+   */
+  public boolean mightMatch(int features) {
+    for (Rule rule : rules) {
+      if ((rule.requiredFeatures & ~features) == 0)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Find the first pattern that matches the whole word.
+   *
+   * @return the match, or null if no pattern matches
+   */
+  public Match match(String word) {
+    if (word.isEmpty())
+      return null;
+    long low = 0, high = 0;
+    for (int i = 0; i < word.length(); i++) {
+      char c = word.charAt(i);
+      if (c < 64)
+        low |= 1L << c;
+      else if (c < ASCII)
+        high |= 1L << (c - 64);
+    }
+
+    char first = word.charAt(0);
+    for (Rule rule : rulesByFirstChar.get(first < ASCII ? first : ASCII)) {
+      if ((rule.requiredLow & ~low) != 0 || (rule.requiredHigh & ~high) != 0)
+        continue;
+      Matcher matcher = rule.pattern.matcher(word);
+      if (matcher.matches())
+        return new Match(rule.type, matcher.groupCount() > 0 ? matcher.group(1) : matcher.group());
+    }
+    return null;
+  }
+
+  /**
+   * A conservative reading of a regular expression, to find the literal
+   * characters that every match contains: literals count unless they are
+   * optional, in a character class or in a lookaround, and of alternatives only
+   * the literals common to all of them count. Anything unusual (inline flags,
+   * quoting) gives up and requires nothing.
+   */
+  static class RequiredChars {
+    private static class GiveUp extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+    }
+
+    private final String regex;
+    private int pos = 0;
+
+    private RequiredChars(String regex) {
+      this.regex = regex;
+    }
+
+    static long[] of(Pattern pattern) {
+      if (pattern.flags() != 0)
+        return new long[2];
+      try {
+        RequiredChars parser = new RequiredChars(pattern.pattern());
+        long[] required = parser.alternation();
+        return parser.pos == parser.regex.length() ? required : new long[2];
+      } catch (GiveUp | IndexOutOfBoundsException e) {
+        return new long[2];
+      }
+    }
+
+    private long[] alternation() {
+      long[] required = sequence();
+      while (pos < regex.length() && regex.charAt(pos) == '|') {
+        pos++;
+        long[] other = sequence();
+        required[0] &= other[0];
+        required[1] &= other[1];
+      }
+      return required;
+    }
+
+    private long[] sequence() {
+      long[] required = new long[2];
+      while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+        long[] atom = atom();
+        if (!optionalQuantifier()) {
+          required[0] |= atom[0];
+          required[1] |= atom[1];
+        }
+      }
+      return required;
+    }
+
+    private static long[] literal(char c) {
+      long[] required = new long[2];
+      if (c < 64)
+        required[0] = 1L << c;
+      else if (c < ASCII)
+        required[1] = 1L << (c - 64);
+      return required;
+    }
+
+    private long[] atom() {
+      char c = regex.charAt(pos++);
+      switch (c) {
+      case '(': {
+        boolean lookaround = false;
+        if (regex.charAt(pos) == '?') {
+          char kind = regex.charAt(pos + 1);
+          if (kind == ':') {
+            pos += 2;
+          } else if (kind == '=' || kind == '!') {
+            pos += 2;
+            lookaround = true;
+          } else if (kind == '<' && (regex.charAt(pos + 2) == '=' || regex.charAt(pos + 2) == '!')) {
+            pos += 3;
+            lookaround = true;
+          } else {
+            // inline flags, named or atomic groups
+            throw new GiveUp();
+          }
+        }
+        long[] required = alternation();
+        if (regex.charAt(pos++) != ')')
+          throw new GiveUp();
+        return lookaround ? new long[2] : required;
+      }
+      case '[': {
+        // a class of one character is a literal, others require nothing
+        int start = pos;
+        if (regex.charAt(pos) == '^')
+          pos++;
+        if (regex.charAt(pos) == ']')
+          pos++;
+        int depth = 1;
+        while (depth > 0) {
+          char d = regex.charAt(pos++);
+          if (d == '\\')
+            pos++;
+          else if (d == '[')
+            depth++;
+          else if (d == ']')
+            depth--;
+        }
+        String body = regex.substring(start, pos - 1);
+        if (body.length() == 1 && body.charAt(0) != '^')
+          return literal(body.charAt(0));
+        if (body.length() == 2 && body.charAt(0) == '\\' && !Character.isLetterOrDigit(body.charAt(1)))
+          return literal(body.charAt(1));
+        return new long[2];
+      }
+      case '\\': {
+        char escaped = regex.charAt(pos++);
+        if (escaped == 'Q')
+          throw new GiveUp();
+        if ((escaped == 'p' || escaped == 'P') && regex.charAt(pos) == '{')
+          pos = regex.indexOf('}', pos) + 1;
+        else if (escaped == 'k')
+          throw new GiveUp();
+        if (Character.isLetterOrDigit(escaped))
+          return new long[2];
+        return literal(escaped);
+      }
+      case '.':
+      case '^':
+      case '$':
+        return new long[2];
+      default:
+        return literal(c);
+      }
+    }
+
+    // skip the quantifier after an atom, if any, and return whether it makes the atom optional
+    private boolean optionalQuantifier() {
+      if (pos >= regex.length())
+        return false;
+      char c = regex.charAt(pos);
+      boolean optional;
+      if (c == '?' || c == '*') {
+        pos++;
+        optional = true;
+      } else if (c == '+') {
+        pos++;
+        optional = false;
+      } else if (c == '{') {
+        int end = regex.indexOf('}', pos);
+        optional = regex.substring(pos + 1, end).startsWith("0");
+        pos = end + 1;
+      } else {
+        return false;
+      }
+      // lazy or possessive
+      if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+'))
+        pos++;
+      return optional;
+    }
+  }
+
+  // compare with running every pattern on every token, as RegexpEntityAnnotator
+  // and URLEntityAnnotator used to
+  public static void main(String[] args) throws IOException {
+    EntityPatternMatcher matcher = load(args.length > 0 ? args[0] : CoreNLPAnalyzer.REGEX_PATTERNS_FILE);
+
+    List<String> tokens = new ArrayList<>();
+    if (args.length > 1) {
+      for (String line : Files.readAllLines(Paths.get(args[1]), StandardCharsets.UTF_8))
+        tokens.addAll(Arrays.asList(line.trim().split("\\s+")));
+    } else {
+      String[] sample = ("remind me to call mom at 5 pm tomorrow , and tweet `` hello world '' with #hashtag " +
+          "send an email to bob@example.com about the report.pdf from @alice and check www.example.com " +
+          "or https://github.com/stanford-oval , it costs $ 25 and 3.5 % more than last year").split(" ");
+      for (int i = 0; i < 20000; i++)
+        tokens.add(sample[i % sample.length]);
+    }
+
+    for (int round = 0; round < 5; round++) {
+      long start = System.nanoTime();
+      int found = 0;
+      for (String token : tokens) {
+        String type = null;
+        for (Rule rule : matcher.rules) {
+          if (rule.pattern.matcher(token).matches())
+            type = rule.type;
+        }
+        if (type != null)
+          found++;
+      }
+      long loops = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      int foundOnce = 0;
+      for (String token : tokens) {
+        if (matcher.match(token) != null)
+          foundOnce++;
+      }
+      long once = System.nanoTime() - start;
+
+      System.out.printf("%d tokens, %d entities: every pattern %.1f ns/token, one pass %d entities %.1f ns/token (%.1fx)%n",
+          tokens.size(), found, (double) loops / tokens.size(), foundOnce, (double) once / tokens.size(),
+          (double) loops / once);
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package edu.stanford.nlp.sempre;
 
 import java.util.List;
+import java.util.function.BooleanSupplier;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
@@ -97,4 +98,8 @@ public class Example {
   public void preprocess(CoreNLPAnalyzer analyzer) {
     this.languageInfo = analyzer.analyze(this.utterance, this.expected);
   }
+
+  public void preprocess(CoreNLPAnalyzer analyzer, BooleanSupplier cancelled, boolean skipParse) {
+    this.languageInfo = analyzer.analyze(this.utterance, this.expected, cancelled, skipParse);
+  }
 }
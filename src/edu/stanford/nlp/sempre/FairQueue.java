@@ -0,0 +1,181 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+
+/**
+ * A queue that is fair across flows, with two priority classes.
+ *
+ * Within a class, items are ordered by weighted fair queueing: each item gets
+ * a virtual finish time, its flow's previous finish time (or the current
+ * virtual time, if the flow was idle) plus its cost divided by the flow's
+ * weight, and items come out by increasing finish time. A flow that enqueues
+ * thousands of items at once therefore only gets its share, and a flow that
+ * shows up later is served right away.
+ *
+ * Alternatively, the queue can order items shortest job first, by cost
+ * regardless of flow, for lanes of expensive requests where a short request
+ * should not wait behind a long one. Items age so that they are not starved:
+ * they are ordered by the logarithm of their cost, and waiting AGING_NANOS
+ * makes up for twice the cost. Costs can grow with the cube of the length, so
+ * aging on the cost itself would let a long item wait for minutes; this way,
+ * an item a thousand times more expensive waits about 5 seconds at most.
+ *
+ * Interactive items always come out before bulk ones, except that when both
+ * are waiting, one bulk item is let through after every BULK_INTERVAL
+ * interactive ones, so bulk work is slowed down but never starved.
+ *
+ * Not thread-safe.
+ */
+public class FairQueue<T> {
+  public enum Priority {
+    INTERACTIVE, BULK;
+
+    /**
+     * Parse the priority field of a request; null means interactive.
+     */
+    public static Priority fromString(String priority) {
+      if (priority == null || "interactive".equals(priority))
+        return INTERACTIVE;
+      if ("bulk".equals(priority))
+        return BULK;
+      throw new IllegalArgumentException("Invalid priority " + priority);
+    }
+  }
+
+  static final int BULK_INTERVAL = 8;
+  static final double AGING_NANOS = 500e6;
+
+  private static class Entry<T> {
+    final T item;
+    final Object flow;
+    final double finish;
+    final long sequence;
+
+    Entry(T item, Object flow, double finish, long sequence) {
+      this.item = item;
+      this.flow = flow;
+      this.finish = finish;
+      this.sequence = sequence;
+    }
+  }
+
+  private static class FlowState {
+    double lastFinish;
+    int queued;
+  }
+
+  private class PriorityClass {
+    final PriorityQueue<Entry<T>> queue = new PriorityQueue<>((a, b) -> {
+      int cmp = Double.compare(a.finish, b.finish);
+      return cmp != 0 ? cmp : Long.compare(a.sequence, b.sequence);
+    });
+    final Map<Object, FlowState> flows = new HashMap<>();
+    double virtualTime = 0;
+
+    void add(T item, Object flow, double cost, double weight, long sequence) {
+      FlowState state = flows.computeIfAbsent(flow, (key) -> new FlowState());
+      double start = Math.max(virtualTime, state.lastFinish);
+      state.lastFinish = start + cost / weight;
+      state.queued++;
+      if (shortestJobFirst)
+        queue.add(new Entry<>(item, flow, Math.log(cost) / Math.log(2) + System.nanoTime() / AGING_NANOS, sequence));
+      else
+        queue.add(new Entry<>(item, flow, state.lastFinish, sequence));
+    }
+
+    T poll() {
+      Entry<T> entry = queue.poll();
+      FlowState state = flows.get(entry.flow);
+      virtualTime = Math.max(virtualTime, shortestJobFirst ? state.lastFinish : entry.finish);
+      state.queued--;
+      // forget idle flows, so the map does not grow with every connection ever seen;
+      // an idle flow restarts from the virtual time anyway
+      if (state.queued == 0 && state.lastFinish <= virtualTime)
+        flows.remove(entry.flow);
+      return entry.item;
+    }
+  }
+
+  private final boolean shortestJobFirst;
+  private final PriorityClass interactive = new PriorityClass();
+  private final PriorityClass bulk = new PriorityClass();
+  private int interactiveStreak = 0;
+  private long sequence = 0;
+
+  FairQueue() {
+    this(false);
+  }
+
+  FairQueue(boolean shortestJobFirst) {
+    this.shortestJobFirst = shortestJobFirst;
+  }
+
+  /**
+   * Add an item.
+   *
+   * @param flow the key of the flow the item belongs to, such as its connection
+   * @param cost the relative cost of the item, 1 for an average item
+   * @param weight the relative share of the flow, 1 for an average flow
+   */
+  void add(T item, Object flow, double cost, double weight, Priority priority) {
+    (priority == Priority.BULK ? bulk : interactive).add(item, flow, cost, weight, sequence++);
+  }
+
+  private PriorityClass next() {
+    if (interactive.queue.isEmpty())
+      return bulk.queue.isEmpty() ? null : bulk;
+    if (!bulk.queue.isEmpty() && interactiveStreak >= BULK_INTERVAL)
+      return bulk;
+    return interactive;
+  }
+
+  /**
+   * Return the next item, without removing it, or null if the queue is empty.
+   */
+  T peek() {
+    PriorityClass next = next();
+    return next == null ? null : next.queue.peek().item;
+  }
+
+  /**
+   * Remove and return the next item, or null if the queue is empty.
+   */
+  T poll() {
+    PriorityClass next = next();
+    if (next == null)
+      return null;
+    if (next == interactive && !bulk.queue.isEmpty())
+      interactiveStreak++;
+    else
+      interactiveStreak = 0;
+    return next.poll();
+  }
+
+  int size() {
+    return interactive.queue.size() + bulk.queue.size();
+  }
+
+  int size(Priority priority) {
+    return (priority == Priority.BULK ? bulk : interactive).queue.size();
+  }
+
+  boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * The number of flows with items in the queue.
+   */
+  int flowCount() {
+    Set<Object> flows = new HashSet<>();
+    for (Map.Entry<Object, FlowState> entry : interactive.flows.entrySet()) {
+      if (entry.getValue().queued > 0)
+        flows.add(entry.getKey());
+    }
+    for (Map.Entry<Object, FlowState> entry : bulk.flows.entrySet()) {
+      if (entry.getValue().queued > 0)
+        flows.add(entry.getKey());
+    }
+    return flows.size();
+  }
+}
@@ -0,0 +1,294 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.stanford.nlp.sempre.FairQueue.Priority;
+
+/**
+ * A fixed pool of worker threads, shared by several lanes of work.
+ *
+ * Each lane has a bounded queue and a guaranteed number of workers. When a
+ * worker is free, it first serves the lanes that are using less than their
+ * guarantee, and only then lets the other lanes borrow the idle capacity.
+ * Because tasks are not preempted, a lane whose workers were lent out waits at
+ * most for one task to finish before it gets them back.
+ *
+ * Within a lane, tasks are queued in a FairQueue, by flow (for example, by
+ * client connection) and by priority.
+ *
+ * TokenizerService uses one lane per locale, so a flood of requests in one
+ * language cannot starve the others.
+ */
+public class LaneScheduler {
+  // the flow of tasks submitted without one
+  private static final Object DEFAULT_FLOW = new Object();
+
+  // the interval over which the minimum queue delay is taken, as in CoDel
+  private static final long DELAY_WINDOW_NANOS = 100000000L;
+
+  private final List<Lane> lanes = new ArrayList<>();
+  private final List<Thread> workers = new ArrayList<>();
+  private boolean shutdown = false;
+
+  private static class Task {
+    final Runnable runnable;
+    final long enqueueTime;
+
+    Task(Runnable runnable) {
+      this.runnable = runnable;
+      this.enqueueTime = System.nanoTime();
+    }
+  }
+
+  public class Lane implements Executor {
+    private final String name;
+    private final int guaranteed;
+    private final int capacity;
+    private final FairQueue<Task> queue;
+    private int running = 0;
+    // the minimum wait of the tasks that started in the current window, and
+    // in the window before it
+    private long windowStart = System.nanoTime();
+    private long windowMinWait = Long.MAX_VALUE;
+    private long previousMinWait = Long.MAX_VALUE;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    private Lane(String name, int guaranteed, int capacity, boolean shortestJobFirst) {
+      this.name = name;
+      this.guaranteed = guaranteed;
+      this.capacity = capacity;
+      this.queue = new FairQueue<>(shortestJobFirst);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Queue an interactive task on this lane, in the default flow.
+     *
+     * @throws RejectedExecutionException if the queue of the lane is full, or
+     * the scheduler is shut down
+     */
+    @Override
+    public void execute(Runnable runnable) {
+      execute(runnable, DEFAULT_FLOW, 1, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Queue the task on this lane.
+     *
+     * @param flow the key of the flow the task belongs to, such as its connection
+     * @param cost the relative cost of the task, as estimated by CostModel
+     * @throws RejectedExecutionException if the queue of the lane is full, or
+     * the scheduler is shut down
+     */
+    public void execute(Runnable runnable, Object flow, double cost, Priority priority) {
+      synchronized (LaneScheduler.this) {
+        if (shutdown || queue.size() >= capacity) {
+          rejected.increment();
+          throw new RejectedExecutionException("Too many requests queued for " + name);
+        }
+        queue.add(new Task(runnable), flow, cost, 1, priority);
+        submitted.increment();
+        LaneScheduler.this.notify();
+      }
+    }
+
+    /**
+     * How long tasks have been waiting in this lane recently, in nanoseconds.
+     *
+     * Like CoDel, this is the minimum wait of the tasks that started in the
+     * last few hundred milliseconds, which only stays high while there is a
+     * standing queue, not after a burst. It is 0 when nothing is queued, and
+     * when no task started in that time, it is how long the next task has been
+     * waiting already, so that it keeps growing when no task can start at all.
+     */
+    public double getQueueDelayNanos() {
+      synchronized (LaneScheduler.this) {
+        Task next = queue.peek();
+        if (next == null)
+          return 0;
+        long now = System.nanoTime();
+        long recentMinWait = Long.MAX_VALUE;
+        if (now - windowStart < 2 * DELAY_WINDOW_NANOS)
+          recentMinWait = windowMinWait;
+        if (now - windowStart < DELAY_WINDOW_NANOS)
+          recentMinWait = Math.min(recentMinWait, previousMinWait);
+        if (recentMinWait == Long.MAX_VALUE)
+          return now - next.enqueueTime;
+        return recentMinWait;
+      }
+    }
+
+    // record the wait of a task that starts, with the lock held
+    private void recordWait(long now, long wait) {
+      if (now - windowStart >= DELAY_WINDOW_NANOS) {
+        // the window that ends becomes the previous one, if it was the last
+        previousMinWait = now - windowStart < 2 * DELAY_WINDOW_NANOS ? windowMinWait : Long.MAX_VALUE;
+        windowStart = now;
+        windowMinWait = wait;
+      } else {
+        windowMinWait = Math.min(windowMinWait, wait);
+      }
+      waitNanos.add(wait);
+    }
+
+    /**
+     * The number of tasks waiting for a worker.
+     */
+    public int getQueueDepth() {
+      synchronized (LaneScheduler.this) {
+        return queue.size();
+      }
+    }
+
+    Map<String, Object> snapshot() {
+      int queuedInteractive, queuedBulk, flows, running;
+      synchronized (LaneScheduler.this) {
+        queuedInteractive = queue.size(Priority.INTERACTIVE);
+        queuedBulk = queue.size(Priority.BULK);
+        flows = queue.flowCount();
+        running = this.running;
+      }
+      long started = this.started.sum();
+
+      Map<String, Object> snapshot = new LinkedHashMap<>();
+      snapshot.put("guaranteedWorkers", guaranteed);
+      snapshot.put("running", running);
+      snapshot.put("queued", queuedInteractive + queuedBulk);
+      snapshot.put("queuedInteractive", queuedInteractive);
+      snapshot.put("queuedBulk", queuedBulk);
+      snapshot.put("queuedFlows", flows);
+      snapshot.put("submitted", submitted.sum());
+      snapshot.put("rejected", rejected.sum());
+      snapshot.put("meanWaitMs", started > 0 ? waitNanos.sum() / 1e6 / started : 0.0);
+      return snapshot;
+    }
+  }
+
+  /**
+   * @param threads the number of workers shared by all lanes
+   */
+  public LaneScheduler(int threads) {
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread(this::work, "tokenizer-worker-" + i);
+      // like the pool this replaces, workers do not keep the JVM alive
+      worker.setDaemon(true);
+      workers.add(worker);
+    }
+    for (Thread worker : workers)
+      worker.start();
+  }
+
+  public int getThreads() {
+    return workers.size();
+  }
+
+  /**
+   * Add a lane.
+   *
+   * @param share the fraction of the workers the lane is guaranteed (at least one)
+   * @param capacity the number of tasks that can wait in the lane
+   * @param shortestJobFirst whether to order tasks by cost rather than fairly by flow
+   */
+  public synchronized Lane addLane(String name, double share, int capacity, boolean shortestJobFirst) {
+    int guaranteed = Math.max(1, (int) Math.round(share * workers.size()));
+    Lane lane = new Lane(name, guaranteed, capacity, shortestJobFirst);
+    lanes.add(lane);
+    return lane;
+  }
+
+  // pick the next task, or return null if there is none
+  private Lane pickLane() {
+    Lane best = null;
+    boolean bestWithinGuarantee = false;
+    for (Lane lane : lanes) {
+      if (lane.queue.isEmpty())
+        continue;
+      boolean withinGuarantee = lane.running < lane.guaranteed;
+      if (best == null || (withinGuarantee && !bestWithinGuarantee)) {
+        best = lane;
+        bestWithinGuarantee = withinGuarantee;
+        continue;
+      }
+      if (withinGuarantee != bestWithinGuarantee)
+        continue;
+
+      if (withinGuarantee) {
+        // everyone is entitled, serve the oldest request first
+        if (lane.queue.peek().enqueueTime - best.queue.peek().enqueueTime < 0)
+          best = lane;
+      } else {
+        // borrowing, serve the lane that is using the least of its guarantee
+        long cmp = (long) lane.running * best.guaranteed - (long) best.running * lane.guaranteed;
+        if (cmp < 0 || (cmp == 0 && lane.queue.peek().enqueueTime - best.queue.peek().enqueueTime < 0))
+          best = lane;
+      }
+    }
+    return best;
+  }
+
+  private void work() {
+    while (true) {
+      Lane lane;
+      Task task;
+      synchronized (this) {
+        while ((lane = pickLane()) == null) {
+          if (shutdown)
+            return;
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        task = lane.queue.poll();
+        lane.running++;
+        long now = System.nanoTime();
+        lane.recordWait(now, now - task.enqueueTime);
+      }
+
+      lane.started.increment();
+      try {
+        task.runnable.run();
+      } catch (Throwable t) {
+        System.err.println("Uncaught exception in tokenizer worker: " + t);
+        t.printStackTrace(System.err);
+      } finally {
+        synchronized (this) {
+          lane.running--;
+        }
+      }
+    }
+  }
+
+  /**
+   * The state of each lane, keyed by name, in a form that can be serialized as JSON.
+   */
+  public Map<String, Object> snapshot() {
+    List<Lane> lanes;
+    synchronized (this) {
+      lanes = new ArrayList<>(this.lanes);
+    }
+    Map<String, Object> snapshot = new LinkedHashMap<>();
+    for (Lane lane : lanes)
+      snapshot.put(lane.name, lane.snapshot());
+    return snapshot;
+  }
+
+  /**
+   * Stop accepting tasks. The tasks already queued are still run.
+   */
+  public synchronized void shutdown() {
+    shutdown = true;
+    notifyAll();
+  }
+}
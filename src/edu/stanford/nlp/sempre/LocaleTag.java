@@ -1,6 +1,7 @@
 package edu.stanford.nlp.sempre;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import com.google.common.base.Joiner;
 
 public class LocaleTag {
@@ -9,6 +10,11 @@ public class LocaleTag {
   private final String script;
   private final String region;
   private final String[] parts;
+  private volatile LocaleTag[] fallbacks;
+
+  // tags as sent by clients, so each one is parsed once
+  private static final int MAX_INTERNED = 1024;
+  private static final Map<String, LocaleTag> interned = new ConcurrentHashMap<>();
 
   private static final Map<String, String> SCRIPTS = new HashMap<>();
   static {
@@ -73,6 +79,27 @@ public class LocaleTag {
     this(Arrays.asList(tag.toLowerCase().split("-")));
   }
 
+  /**
+   * Return a shared LocaleTag for the given tag.
+   *
+   * The tag is only parsed the first time it is seen, and the fallbacks
+   * of the shared instance are only computed once.
+   */
+  public static LocaleTag intern(String tag) {
+    LocaleTag locale = interned.get(tag);
+    if (locale != null)
+      return locale;
+
+    locale = new LocaleTag(tag);
+    // don't let clients grow the table without bounds with garbage tags
+    if (interned.size() < MAX_INTERNED) {
+      LocaleTag existing = interned.putIfAbsent(tag, locale);
+      if (existing != null)
+        return existing;
+    }
+    return locale;
+  }
+
   public String toString() {
     return this.tag;
   }
@@ -95,12 +122,23 @@ public class LocaleTag {
     return this.region;
   }
 
+  /**
+   * Return this tag and its less specific versions, from the most specific to the
+   * least specific.
+   *
+   * The array is shared, and must not be modified.
+   */
   public LocaleTag[] getFallbacks() {
+    LocaleTag[] fallbacks = this.fallbacks;
+    if (fallbacks != null)
+      return fallbacks;
+
     List<String> partList = Arrays.asList(parts);
-    LocaleTag[] fallbacks = new LocaleTag[partList.size()];
+    fallbacks = new LocaleTag[partList.size()];
 
     for (int i = 0; i < fallbacks.length; i++)
       fallbacks[i] = new LocaleTag(partList.subList(0, partList.size()-i));
+    this.fallbacks = fallbacks;
     return fallbacks;
   }
 }
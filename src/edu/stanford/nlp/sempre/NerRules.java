@@ -0,0 +1,202 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+
+/**
+ * A table of deterministic NER rules over the word classes of the tokens
+ * (month, number, currency sign, part of speech...), like those of the
+ * NumberSequenceClassifiers, compiled into an index from each class to the
+ * rules that a token of that class can fire, so that a token only looks at
+ * those rules.
+ *
+ * The rules of a table are tried in the order they were added, on each token
+ * in turn, and the first one that fires on a token gives its answer; a rule
+ * can let the rules after it fire too, and a rule that gives no answer just
+ * stops the rules after it. A rule fires on the tokens of one of its classes
+ * whose neighbors have the given classes and answers.
+ *
+ * The table is filled once, and can then be applied by any number of
+ * threads.
+ */
+public class NerRules {
+  private final List<Rule> rules = new ArrayList<>();
+  // for each class, the rules that fire on it, as a bitset of their indices
+  private long[][] index;
+
+  /**
+   * A rule, which is built by adding conditions and answers.
+   */
+  public static class Rule {
+    private final int classes;
+    // the classes that the tokens at some offsets must have one of
+    private int[] offsets = new int[0];
+    private int[] offsetClasses = new int[0];
+    // the answers that the tokens at some offsets must have one of
+    private int[] answerOffsets = new int[0];
+    private String[][] answerValues = new String[0][];
+    // the answers given to the tokens at some offsets, if they have one of the classes
+    private int[] markOffsets = new int[0];
+    private int[] markClasses = new int[0];
+    private String[] markAnswers = new String[0];
+    // the answers to change, going back from the token, while they have one of the classes
+    private int spreadClasses;
+    private String spreadFrom, spreadTo;
+    private boolean continues;
+
+    private Rule(int classes) {
+      this.classes = classes;
+    }
+
+    /**
+     * The token at the offset must have one of the classes.
+     */
+    public Rule with(int offset, int classes) {
+      offsets = append(offsets, offset);
+      offsetClasses = append(offsetClasses, classes);
+      return this;
+    }
+
+    /**
+     * The token at the offset must have one of the answers; outside of the
+     * sentence, the answer is the background symbol.
+     */
+    public Rule answered(int offset, String... answers) {
+      answerOffsets = append(answerOffsets, offset);
+      answerValues = Arrays.copyOf(answerValues, answerValues.length + 1);
+      answerValues[answerValues.length - 1] = answers;
+      return this;
+    }
+
+    /**
+     * Give the answer to the token.
+     */
+    public Rule answer(String answer) {
+      return mark(0, answer);
+    }
+
+    /**
+     * Give the answer to the token at the offset.
+     */
+    public Rule mark(int offset, String answer) {
+      return markIf(offset, -1, answer);
+    }
+
+    /**
+     * Give the answer to the token at the offset if it has one of the classes.
+     */
+    public Rule markIf(int offset, int classes, String answer) {
+      markOffsets = append(markOffsets, offset);
+      markClasses = append(markClasses, classes);
+      markAnswers = Arrays.copyOf(markAnswers, markAnswers.length + 1);
+      markAnswers[markAnswers.length - 1] = answer;
+      return this;
+    }
+
+    /**
+     * Going back from the token, change the answers from one to the other
+     * while the tokens have one of the classes and the first answer.
+     */
+    public Rule spreadBack(int classes, String from, String to) {
+      spreadClasses = classes;
+      spreadFrom = from;
+      spreadTo = to;
+      return this;
+    }
+
+    /**
+     * Let the rules after this one fire too.
+     */
+    public Rule andContinue() {
+      continues = true;
+      return this;
+    }
+
+    private static int[] append(int[] array, int value) {
+      array = Arrays.copyOf(array, array.length + 1);
+      array[array.length - 1] = value;
+      return array;
+    }
+
+    private boolean matches(int[] classes, String[] answers, int i, String background) {
+      for (int k = 0; k < offsets.length; k++) {
+        int j = i + offsets[k];
+        if (j < 0 || j >= classes.length || (classes[j] & offsetClasses[k]) == 0)
+          return false;
+      }
+      for (int k = 0; k < answerOffsets.length; k++) {
+        int j = i + answerOffsets[k];
+        String answer = j >= 0 && j < answers.length ? answers[j] : background;
+        boolean found = false;
+        for (String value : answerValues[k])
+          found |= value.equals(answer);
+        if (!found)
+          return false;
+      }
+      return true;
+    }
+
+    private void fire(int[] classes, String[] answers, int i) {
+      for (int k = 0; k < markOffsets.length; k++) {
+        int j = i + markOffsets[k];
+        if (j >= 0 && j < answers.length && (classes[j] & markClasses[k]) != 0)
+          answers[j] = markAnswers[k];
+      }
+      if (spreadFrom != null) {
+        for (int j = i - 1; j >= 0 && (classes[j] & spreadClasses) != 0 && spreadFrom.equals(answers[j]); j--)
+          answers[j] = spreadTo;
+      }
+    }
+  }
+
+  /**
+   * Add a rule, after the others, that fires on the tokens of one of the
+   * classes.
+   */
+  public Rule on(int classes) {
+    Rule rule = new Rule(classes);
+    rules.add(rule);
+    return rule;
+  }
+
+  /**
+   * Build the index, once the last rule is added.
+   */
+  public void compile() {
+    index = new long[Integer.SIZE][(rules.size() + Long.SIZE - 1) / Long.SIZE];
+    for (int r = 0; r < rules.size(); r++) {
+      for (int c = 0; c < Integer.SIZE; c++) {
+        if ((rules.get(r).classes & (1 << c)) != 0)
+          index[c][r / Long.SIZE] |= 1L << r;
+      }
+    }
+  }
+
+  /**
+   * Apply the rules to the tokens that have no answer yet, in order: each one
+   * gets the background symbol, unless a rule gives it another answer.
+   *
+   * @param classes the classes of each token
+   * @param answers the answers of the tokens, filled in place
+   */
+  public void apply(int[] classes, String[] answers, String background) {
+    tokens:
+    for (int i = 0; i < answers.length; i++) {
+      if (answers[i] != null)
+        continue;
+      answers[i] = background;
+      for (int w = 0; w < index[0].length; w++) {
+        long candidates = 0;
+        for (int bits = classes[i]; bits != 0; bits &= bits - 1)
+          candidates |= index[Integer.numberOfTrailingZeros(bits)][w];
+        for (; candidates != 0; candidates &= candidates - 1) {
+          Rule rule = rules.get(w * Long.SIZE + Long.numberOfTrailingZeros(candidates));
+          if (!rule.matches(classes, answers, i, background))
+            continue;
+          rule.fire(classes, answers, i);
+          if (!rule.continues)
+            continue tokens;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,412 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+
+/**
+ * A transducer from spelled-out numbers ("two hundred thirty-five",
+ * "duecentotrentacinque", "twenty-first") to their values, compiled from the
+ * table of the number words of a language.
+ *
+ * The words are paths in a trie of characters, and the state at the end of a
+ * word holds what the word does to the number read so far, which is kept as a
+ * total and a current group: a unit adds to the group ("seven", "twenty"), a
+ * multiplier multiplies it ("hundred", "dozen"), and a scale ("thousand",
+ * "million") adds the group times itself to the total and starts a new group.
+ * Numbers written in digits are read as units. An ordinal word reads like the
+ * cardinal of the same value and ends the number.
+ *
+ * A language writes numbers either as separate words, in which case the text
+ * is split on spaces and hyphens, words that are not in the table are
+ * skipped, and a word can be misspelled by one edit (see OneEditIndex); or as
+ * compounds ("duecentotrentacinque"), in which case spaces and hyphens are
+ * ignored, the text is segmented into words of the table, longest first, and
+ * the number is the first segmentation that reads the whole text, or else
+ * that reads furthest into it.
+ *
+ * Reading a number walks its characters without building any string, in
+ * time linear in its length. The grammar is filled once, and can then be read
+ * by any number of threads.
+ */
+public class NumberGrammar {
+  private static final int UNIT = 0;
+  private static final int MULTIPLIER = 1;
+  private static final int SCALE = 2;
+  // added to the kind of an ordinal word
+  private static final int ORDINAL = 4;
+
+  // numbers with at most this many digits are read exactly without Double.parseDouble
+  private static final int MAX_EXACT_DIGITS = 15;
+  private static final double[] POWERS_OF_10 = new double[MAX_EXACT_DIGITS + 1];
+  static {
+    POWERS_OF_10[0] = 1;
+    for (int i = 1; i < POWERS_OF_10.length; i++)
+      POWERS_OF_10[i] = POWERS_OF_10[i - 1] * 10;
+  }
+  private static final String CURRENCY_SIGNS = "$\u00A3\u00A5\u20AC#";
+
+  private final boolean compound;
+  // the words and the index of their entry, in the order they were added
+  private final Map<String, Integer> cardinals = new LinkedHashMap<>();
+  private final Map<String, Integer> ordinals = new LinkedHashMap<>();
+  private int[] kinds = new int[16];
+  private double[] values = new double[16];
+  private int size = 0;
+
+  // the words, each leading to its entry + 1
+  private WordTrie trie;
+  // the words, to match them despite a typo in a language of separate words
+  private OneEditIndex<Integer> cardinalWords;
+  private OneEditIndex<Integer> allWords;
+  // the length of the longest word
+  private int maxWordLength;
+
+  /**
+   * @param compound whether the language writes numbers as one word
+   */
+  public NumberGrammar(boolean compound) {
+    this.compound = compound;
+  }
+
+  /**
+   * Add a word that adds its value to the number ("seven", "twenty").
+   */
+  public void addUnit(String word, double value) {
+    cardinals.put(word, entry(UNIT, value));
+  }
+
+  /**
+   * Add a word that multiplies the number: below 1000 it multiplies the
+   * current group ("hundred", "dozen"), from 1000 on it is a scale
+   * ("thousand").
+   */
+  public void addMultiplier(String word, double value) {
+    cardinals.put(word, entry(value < 1000 ? MULTIPLIER : SCALE, value));
+  }
+
+  /**
+   * Add an ordinal word, which reads like a unit below 100 ("twentieth") and
+   * like a multiplier from 100 on ("hundredth", "millionth").
+   */
+  public void addOrdinal(String word, double value) {
+    int kind = value < 100 ? UNIT : value < 1000 ? MULTIPLIER : SCALE;
+    ordinals.put(word, entry(kind | ORDINAL, value));
+  }
+
+  private int entry(int kind, double value) {
+    if (size == kinds.length) {
+      kinds = Arrays.copyOf(kinds, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    kinds[size] = kind;
+    values[size] = value;
+    return size++;
+  }
+
+  /**
+   * Build the transducer, once the last word is added.
+   */
+  public void compile() {
+    trie = new WordTrie(true);
+    Map<String, Integer> all = new LinkedHashMap<>(ordinals);
+    for (Map.Entry<String, Integer> entry : cardinals.entrySet())
+      all.putIfAbsent(entry.getKey(), entry.getValue());
+    for (Map.Entry<String, Integer> entry : all.entrySet()) {
+      trie.add(entry.getKey(), entry.getValue() + 1);
+      maxWordLength = Math.max(maxWordLength, entry.getKey().length());
+    }
+    if (!compound) {
+      cardinalWords = new OneEditIndex<>(cardinals);
+      allWords = new OneEditIndex<>(all);
+    }
+  }
+
+  /**
+   * The value of the cardinal number in the text, or NaN if there is none.
+   */
+  public double parse(String text) {
+    return compound ? parseCompound(text, false) : parseWords(text, false);
+  }
+
+  /**
+   * The value of the ordinal number in the text, or NaN if there is none.
+   */
+  public double parseOrdinal(String text) {
+    return compound ? parseCompound(text, true) : parseWords(text, true);
+  }
+
+  private boolean isOrdinal(int entry) {
+    return (kinds[entry] & ORDINAL) != 0;
+  }
+
+  // the total after reading the word of the entry
+  private double totalAfter(int entry, double total, double current) {
+    double value = values[entry];
+    switch (kinds[entry] & ~ORDINAL) {
+    case SCALE:
+      // "thousand million", "mille miliardi"
+      if (current == 0 && total > 0 && total < value)
+        return total * value;
+      return total + (current == 0 ? 1 : current) * value;
+    default:
+      return total;
+    }
+  }
+
+  // the current group after reading the word of the entry
+  private double currentAfter(int entry, double current) {
+    double value = values[entry];
+    switch (kinds[entry] & ~ORDINAL) {
+    case UNIT:
+      return current + value;
+    case MULTIPLIER:
+      return (current == 0 ? 1 : current) * value;
+    default:
+      return 0;
+    }
+  }
+
+  private double parseWords(String text, boolean ordinal) {
+    double total = 0, current = 0;
+    boolean found = false;
+    int n = text.length();
+    for (int start = 0; start < n;) {
+      if (isSeparator(text.charAt(start))) {
+        start++;
+        continue;
+      }
+      int end = start;
+      while (end < n && !isSeparator(text.charAt(end)))
+        end++;
+      double number = digits(text, start, end);
+      if (!Double.isNaN(number)) {
+        current += number;
+        found = true;
+      } else {
+        int entry = lookup(text, start, end, ordinal);
+        if (entry >= 0) {
+          total = totalAfter(entry, total, current);
+          current = currentAfter(entry, current);
+          found = true;
+          if (isOrdinal(entry))
+            return total + current;
+        }
+      }
+      start = end;
+    }
+    return found && !ordinal ? total + current : Double.NaN;
+  }
+
+  // the entry of the word between start and end, maybe misspelled, or -1
+  private int lookup(String text, int start, int end, boolean ordinal) {
+    int entry = trie.get(text, start, end) - 1;
+    if (entry >= 0 && (ordinal || !isOrdinal(entry)))
+      return entry;
+    Integer match = (ordinal ? allWords : cardinalWords).matchValue(text, start, end);
+    return match == null ? -1 : match;
+  }
+
+  // the value of a word written in digits, maybe with a currency sign before
+  // and letters after ("$5", "4ghz", ".5"), or NaN
+  private static double digits(String text, int start, int end) {
+    int i = start;
+    if (CURRENCY_SIGNS.indexOf(text.charAt(i)) >= 0)
+      i++;
+    int from = i;
+    i = skipDigits(text, i, end);
+    boolean integer = i > from;
+    if (i < end && text.charAt(i) == '.') {
+      int fraction = i + 1;
+      i = skipDigits(text, fraction, end);
+      if (!integer && i == fraction)
+        return Double.NaN;
+    } else if (!integer) {
+      return Double.NaN;
+    }
+    int to = i;
+    while (i < end && isLetter(text.charAt(i)))
+      i++;
+    return i == end ? decimal(text, from, to) : Double.NaN;
+  }
+
+  // the marks of the positions of a compound: reached by a reading, where a
+  // reading can end, and from where the rest can be read to the target
+  private static final byte REACHED = 1, END = 2, LIVE = 4;
+
+  private double parseCompound(String text, boolean ordinal) {
+    int n = text.length();
+    // first mark the positions that readings get to, and where they can end
+    byte[] marks = new byte[n + 1];
+    int target = -1;
+    marks[skipSeparators(text, 0)] = REACHED;
+    for (int i = 0; i < n; i++) {
+      if ((marks[i] & REACHED) == 0)
+        continue;
+      if (isDigit(text.charAt(i))) {
+        target = Math.max(target, mark(marks, skipSeparators(text, decimalEnd(text, i)), ordinal));
+        continue;
+      }
+      int node = WordTrie.ROOT;
+      for (int j = i; j < n && node >= 0; j = skipSeparators(text, j)) {
+        node = trie.step(node, text.charAt(j++));
+        int entry = node < 0 ? -1 : trie.value(node) - 1;
+        if (entry < 0 || (!ordinal && isOrdinal(entry)))
+          continue;
+        int k = skipSeparators(text, j);
+        if (isOrdinal(entry)) {
+          marks[k] |= END;
+          target = Math.max(target, k);
+        } else {
+          target = Math.max(target, mark(marks, k, ordinal));
+        }
+      }
+    }
+    if (target < 0)
+      return Double.NaN;
+    // then, going backwards, mark the positions from which the rest can be read
+    if (!ordinal)
+      marks[target] |= LIVE;
+    int[] ends = new int[maxWordLength];
+    int[] entries = new int[maxWordLength];
+    for (int i = target - 1; i >= 0; i--) {
+      if ((marks[i] & REACHED) != 0 && next(text, i, ordinal, target, marks, ends, entries) >= 0)
+        marks[i] |= LIVE;
+    }
+    // and read the first segmentation that goes furthest, following them
+    return read(text, ordinal, target, marks, ends, entries);
+  }
+
+  // mark that a reading gets to i after a cardinal word; where it can end
+  private static int mark(byte[] marks, int i, boolean ordinal) {
+    marks[i] |= ordinal ? REACHED : REACHED | END;
+    return ordinal ? -1 : i;
+  }
+
+  // the value of the first reading of the compound that ends at target,
+  // taking at each position the longest word after which the rest can be
+  // read, or NaN
+  private double read(String text, boolean ordinal, int target, byte[] marks, int[] ends, int[] entries) {
+    int i = skipSeparators(text, 0);
+    if ((marks[i] & LIVE) == 0)
+      return Double.NaN;
+    double total = 0, current = 0;
+    while (i != target) {
+      if (isDigit(text.charAt(i))) {
+        int end = decimalEnd(text, i);
+        current += decimal(text, i, end);
+        i = skipSeparators(text, end);
+        continue;
+      }
+      int word = next(text, i, ordinal, target, marks, ends, entries);
+      int entry = entries[word];
+      total = totalAfter(entry, total, current);
+      current = currentAfter(entry, current);
+      if (isOrdinal(entry))
+        break;
+      i = ends[word];
+    }
+    return total + current;
+  }
+
+  // the longest of the words of the compound at i after which the rest can be
+  // read to target, as an index into ends and entries, which get the positions
+  // after each word at i and their entries, or -1; the digits at i are
+  // followed by the rest if it can be read
+  private int next(String text, int i, boolean ordinal, int target, byte[] marks, int[] ends, int[] entries) {
+    int n = text.length();
+    if (isDigit(text.charAt(i)))
+      return (marks[skipSeparators(text, decimalEnd(text, i))] & LIVE) != 0 ? 0 : -1;
+    int words = 0;
+    int node = WordTrie.ROOT;
+    for (int j = i; j < n && node >= 0; j = skipSeparators(text, j)) {
+      node = trie.step(node, text.charAt(j++));
+      int entry = node < 0 ? -1 : trie.value(node) - 1;
+      if (entry < 0 || (!ordinal && isOrdinal(entry)))
+        continue;
+      ends[words] = skipSeparators(text, j);
+      entries[words++] = entry;
+    }
+    for (int w = words - 1; w >= 0; w--) {
+      if (isOrdinal(entries[w]) ? ends[w] == target : ends[w] <= target && (marks[ends[w]] & LIVE) != 0)
+        return w;
+    }
+    return -1;
+  }
+
+  // the end of the number written in digits at i in a compound: digits, then
+  // maybe a point and more digits
+  private static int decimalEnd(String text, int i) {
+    int n = text.length();
+    int end = skipDigits(text, i, n);
+    int point = skipSeparators(text, end);
+    if (point < n && text.charAt(point) == '.') {
+      int fraction = skipSeparators(text, point + 1);
+      if (fraction < n && isDigit(text.charAt(fraction)))
+        end = skipDigits(text, fraction, n);
+    }
+    return end;
+  }
+
+  // the value of the digits and point between start and end, skipping anything else
+  private static double decimal(String text, int start, int end) {
+    long mantissa = 0;
+    int digits = 0, decimals = 0;
+    boolean point = false;
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c == '.') {
+        point = true;
+      } else if (isDigit(c) && digits++ < MAX_EXACT_DIGITS) {
+        mantissa = mantissa * 10 + (c - '0');
+        if (point)
+          decimals++;
+      }
+    }
+    // both operands are exact, so the quotient is rounded like Double.parseDouble
+    if (digits <= MAX_EXACT_DIGITS)
+      return mantissa / POWERS_OF_10[decimals];
+    StringBuilder sb = new StringBuilder();
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c == '.' || isDigit(c))
+        sb.append(c);
+    }
+    return Double.parseDouble(sb.toString());
+  }
+
+  // the end of the digits at i, which in a compound may be split by separators
+  private static int skipDigits(String text, int i, int end) {
+    int last = i;
+    for (; i < end; i++) {
+      char c = text.charAt(i);
+      if (isDigit(c))
+        last = i + 1;
+      else if (!isSeparator(c))
+        break;
+    }
+    return last;
+  }
+
+  private static int skipSeparators(String text, int i) {
+    while (i < text.length() && isSeparator(text.charAt(i)))
+      i++;
+    return i;
+  }
+
+  // the characters that separate words: spaces and hyphens
+  private static boolean isSeparator(char c) {
+    switch (c) {
+    case ' ': case '-': case '\t': case '\n': case '\0': case '\f': case '\r':
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+}
@@ -48,7 +48,9 @@ public class NumericEntityAnnotator implements Annotator {
 
   @Override
   public Set<Class<? extends CoreAnnotation>> requirementsSatisfied() {
-    return Collections.emptySet();
+    return Collections.unmodifiableSet(new ArraySet<>(Arrays.asList(
+        CoreAnnotations.NamedEntityTagAnnotation.class,
+        CoreAnnotations.NormalizedNamedEntityTagAnnotation.class)));
   }
 
   @Override
@@ -0,0 +1,225 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+
+/**
+ * An index of a small vocabulary (number words, multipliers, ordinals, time
+ * units) to find the word that a possibly misspelled word stands for: the word
+ * that equals it regardless of case or else the first word longer than 3
+ * characters that differs from it by one substitution, deletion, insertion or
+ * transposition of two adjacent characters.
+ *
+ * Like SymSpell, each word is indexed under itself and under each string
+ * obtained by deleting one of its characters, so that a word within one edit of
+ * the query shares a key with the query or one of its deletions. The keys are
+ * hashed without building the strings and the candidates are then checked, so
+ * a lookup is a few hash probes and does not allocate.
+ */
+public class OneEditIndex<V> {
+  // the words at least this long can be misspelled
+  private static final int MIN_FUZZY_LENGTH = 4;
+  private static final int[] POWERS_OF_31 = new int[64];
+  static {
+    POWERS_OF_31[0] = 1;
+    for (int i = 1; i < POWERS_OF_31.length; i++)
+      POWERS_OF_31[i] = POWERS_OF_31[i - 1] * 31;
+  }
+
+  private final String[] words;
+  private final Map<String, V> values;
+  private final int maxLength;
+  // the words by the hash of their case-folded form
+  private final HashTable caseless = new HashTable(true);
+  // the words longer than 3 characters by the hash of themselves and of each of their deletions
+  private final HashTable deletions = new HashTable(false);
+
+  /**
+   * @param vocabulary the words and their values; when a word is within one
+   *          edit of several words, the first one in iteration order wins
+   */
+  public OneEditIndex(Map<String, V> vocabulary) {
+    words = vocabulary.keySet().toArray(new String[0]);
+    values = new HashMap<>(vocabulary);
+    int max = 0;
+    for (int k = 0; k < words.length; k++) {
+      String word = words[k];
+      max = Math.max(max, word.length());
+      int length = word.length();
+      caseless.add(caselessHash(word, 0, length), k);
+      if (length < MIN_FUZZY_LENGTH)
+        continue;
+      deletions.add(word.hashCode(), k);
+      for (int i = 0; i < length; i++)
+        deletions.add(deletionHash(word, 0, length, i), k);
+    }
+    maxLength = Math.min(max, POWERS_OF_31.length - 2);
+    caseless.build();
+    deletions.build();
+  }
+
+  /**
+   * The value of exactly this word, or null.
+   */
+  public V get(String word) {
+    return word == null ? null : values.get(word);
+  }
+
+  public boolean containsKey(String word) {
+    return get(word) != null;
+  }
+
+  /**
+   * The word of the vocabulary that equals the given word regardless of case,
+   * or else the first one longer than 3 characters within one edit of it, or
+   * null.
+   */
+  public String match(String word) {
+    int k = find(word, 0, word.length());
+    return k >= 0 ? words[k] : null;
+  }
+
+  /**
+   * The value of the word that the given word stands for, or null.
+   */
+  public V matchValue(String word) {
+    return matchValue(word, 0, word.length());
+  }
+
+  /**
+   * The value of the word that the characters of text between start and end
+   * stand for, or null.
+   */
+  public V matchValue(String text, int start, int end) {
+    int k = find(text, start, end);
+    return k >= 0 ? values.get(words[k]) : null;
+  }
+
+  // the index of the word that the characters stand for, or -1
+  private int find(String text, int start, int end) {
+    int best = caseless.first(caselessHash(text, start, end), words.length, text, start, end);
+    if (best < words.length)
+      return best;
+    int length = end - start;
+    if (length <= maxLength + 1) {
+      best = deletions.first(hash(text, start, end), best, text, start, end);
+      for (int i = start; i < end; i++)
+        best = deletions.first(deletionHash(text, start, end, i), best, text, start, end);
+    }
+    return best < words.length ? best : -1;
+  }
+
+  // the same as String.hashCode of the characters between start and end
+  private static int hash(String text, int start, int end) {
+    int h = 0;
+    for (int j = start; j < end; j++)
+      h = 31 * h + text.charAt(j);
+    return h;
+  }
+
+  // the hash of the characters without the one at i
+  private static int deletionHash(String text, int start, int end, int i) {
+    return hash(text, start, i) * POWERS_OF_31[end - 1 - i] + hash(text, i + 1, end);
+  }
+
+  // a hash that equalsIgnoreCase preserves
+  private static int caselessHash(String text, int start, int end) {
+    int h = 0;
+    for (int j = start; j < end; j++)
+      h = 31 * h + Character.toLowerCase(Character.toUpperCase(text.charAt(j)));
+    return h;
+  }
+
+  // whether the characters differ from the word by at most one substitution,
+  // deletion, insertion or transposition, case-sensitively (an EditDistance of
+  // at most 1)
+  private static boolean isWithinOneEdit(String text, int start, int end, String word) {
+    String a = text, b = word;
+    int aStart = start, bStart = 0;
+    int la = end - start, lb = word.length();
+    if (la < lb) {
+      a = word;
+      b = text;
+      aStart = 0;
+      bStart = start;
+      la = word.length();
+      lb = end - start;
+    }
+    if (la - lb > 1)
+      return false;
+    int i = 0;
+    while (i < lb && a.charAt(aStart + i) == b.charAt(bStart + i))
+      i++;
+    if (i == lb)
+      return true;
+    if (la != lb)
+      return a.regionMatches(aStart + i + 1, b, bStart + i, lb - i);
+    if (a.regionMatches(aStart + i + 1, b, bStart + i + 1, lb - i - 1))
+      return true;
+    return i + 1 < lb && a.charAt(aStart + i) == b.charAt(bStart + i + 1)
+        && a.charAt(aStart + i + 1) == b.charAt(bStart + i)
+        && a.regionMatches(aStart + i + 2, b, bStart + i + 2, lb - i - 2);
+  }
+
+  /**
+   * Word indices by hash, with open addressing. Words whose hashes collide share
+   * an entry, which is why the candidates are checked.
+   */
+  private class HashTable {
+    // whether the candidates must equal the query regardless of case, or be within one edit
+    private final boolean caseless;
+    private final Map<Integer, List<Integer>> building = new HashMap<>();
+    private int[] hashes;
+    private int[][] entries;
+    private int mask;
+
+    HashTable(boolean caseless) {
+      this.caseless = caseless;
+    }
+
+    void add(int hash, int k) {
+      List<Integer> list = building.computeIfAbsent(hash, h -> new ArrayList<>());
+      if (!list.contains(k))
+        list.add(k);
+    }
+
+    void build() {
+      int capacity = Integer.highestOneBit(Math.max(building.size(), 1) * 4);
+      hashes = new int[capacity];
+      entries = new int[capacity][];
+      mask = capacity - 1;
+      for (Map.Entry<Integer, List<Integer>> entry : building.entrySet()) {
+        int slot = slot(entry.getKey());
+        while (entries[slot] != null)
+          slot = (slot + 1) & mask;
+        hashes[slot] = entry.getKey();
+        entries[slot] = entry.getValue().stream().mapToInt(Integer::intValue).sorted().toArray();
+      }
+      building.clear();
+    }
+
+    private int slot(int hash) {
+      int h = hash * 0x9E3779B1;
+      return (h ^ (h >>> 16)) & mask;
+    }
+
+    // the smallest index under the hash that is below best and matches the
+    // characters of text between start and end, or best
+    int first(int hash, int best, String text, int start, int end) {
+      for (int slot = slot(hash); entries[slot] != null; slot = (slot + 1) & mask) {
+        if (hashes[slot] != hash)
+          continue;
+        for (int k : entries[slot]) {
+          if (k >= best)
+            break;
+          boolean matches = caseless
+              ? end - start == words[k].length() && text.regionMatches(true, start, words[k], 0, end - start)
+              : isWithinOneEdit(text, start, end, words[k]);
+          if (matches)
+            return k;
+        }
+        break;
+      }
+      return best;
+    }
+  }
+}
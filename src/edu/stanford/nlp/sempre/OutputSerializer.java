@@ -0,0 +1,303 @@
+package edu.stanford.nlp.sempre;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Serialize tokenizer results as JSON lines, straight from Seq2SeqTokenizer.Result.
+ *
+ * The output is byte for byte the same as serializing TokenizerServer.Output
+ * with Jackson databind, but it does not go through reflection, it does not
+ * build the values map, and the generator and its buffer are reused by each thread.
+ *
+ * Output.values is a HashMap, so the order of the values is the order in which
+ * HashMap iterates: by bucket, and by insertion order within a bucket. For a few
+ * values, we compute that order instead of building the map, which assumes the
+ * bucket function of OpenJDK 8 and later. This is checked against a real HashMap
+ * when the class is loaded, and if the JDK disagrees, we always build the map.
+ *
+ * Run main() on a corpus of requests to check that the two are still identical;
+ * it fails if the outputs differ, or if the order cannot be computed on this JDK.
+ */
+public class OutputSerializer {
+  // used for the few values of a type we don't know how to write by hand
+  private static final ObjectMapper object = new ObjectMapper();
+
+  // entity tokens are cached for the first few entities of each type
+  private static final int CACHED_ENTITY_TOKENS = 16;
+  private static final Map<String, String[]> entityTokens = new ConcurrentHashMap<>();
+
+  // Output.values is a HashMap: up to this many entries, we can compute the order
+  // it would iterate in; beyond that, we build the map
+  private static final int MAX_EMULATED_VALUES = 8;
+  private static final int HASH_MAP_CAPACITY = 16;
+  private static final boolean EMULATE_HASH_MAP = checkHashMapOrder();
+
+  private static class State {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+    final JsonGenerator generator;
+
+    final String[] keys = new String[MAX_EMULATED_VALUES];
+    final Object[] values = new Object[MAX_EMULATED_VALUES];
+    final int[] buckets = new int[MAX_EMULATED_VALUES];
+
+    State() {
+      try {
+        generator = object.getFactory().createGenerator(buffer, JsonEncoding.UTF8);
+        generator.setRootValueSeparator(null);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private static final ThreadLocal<State> state = ThreadLocal.withInitial(State::new);
+
+  private OutputSerializer() { }
+
+  /**
+   * Return the entity token for the given entity type and number, such as NUMBER_0.
+   */
+  public static String entityToken(String type, int num) {
+    if (num >= CACHED_ENTITY_TOKENS)
+      return type + "_" + num;
+    String[] cached = entityTokens.computeIfAbsent(type, (key) -> {
+      String[] tokens = new String[CACHED_ENTITY_TOKENS];
+      for (int i = 0; i < tokens.length; i++)
+        tokens[i] = key + "_" + i;
+      return tokens;
+    });
+    return cached[num];
+  }
+
+  private static void writeStringList(JsonGenerator generator, String fieldName, List<String> list)
+      throws IOException {
+    generator.writeArrayFieldStart(fieldName);
+    for (String string : list)
+      generator.writeString(string);
+    generator.writeEndArray();
+  }
+
+  private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+    if (value instanceof String) {
+      generator.writeString((String) value);
+    } else if (value instanceof Double) {
+      generator.writeNumber((Double) value);
+    } else if (value instanceof DateValue) {
+      DateValue date = (DateValue) value;
+      generator.writeStartObject();
+      generator.writeNumberField("year", date.year);
+      generator.writeNumberField("month", date.month);
+      generator.writeNumberField("day", date.day);
+      generator.writeNumberField("hour", date.hour);
+      generator.writeNumberField("minute", date.minute);
+      generator.writeNumberField("second", date.second);
+      generator.writeEndObject();
+    } else if (value instanceof NumberValue) {
+      NumberValue number = (NumberValue) value;
+      generator.writeStartObject();
+      generator.writeNumberField("value", number.value);
+      generator.writeStringField("unit", number.unit);
+      generator.writeEndObject();
+    } else if (value instanceof TimeValue) {
+      TimeValue time = (TimeValue) value;
+      generator.writeStartObject();
+      generator.writeNumberField("hour", time.hour);
+      generator.writeNumberField("minute", time.minute);
+      generator.writeNumberField("second", time.second);
+      generator.writeEndObject();
+    } else {
+      object.writeValue(generator, value);
+    }
+  }
+
+  // insert a value among the first n, in the order HashMap would iterate them,
+  // and return the new count
+  private static int insertValue(String[] keys, Object[] values, int[] buckets, int n, String key, Object value) {
+    int hash = key.hashCode();
+    int bucket = (hash ^ (hash >>> 16)) & (HASH_MAP_CAPACITY - 1);
+
+    // insertion sort, stable so that equal buckets keep insertion order
+    int i = n;
+    while (i > 0 && buckets[i - 1] > bucket) {
+      keys[i] = keys[i - 1];
+      values[i] = values[i - 1];
+      buckets[i] = buckets[i - 1];
+      i--;
+    }
+    keys[i] = key;
+    values[i] = value;
+    buckets[i] = bucket;
+    return n + 1;
+  }
+
+  // check that insertValue agrees with the HashMap of this JDK, on runs of
+  // entity tokens like those of real results
+  private static boolean checkHashMapOrder() {
+    String[] types = { "NUMBER", "DATE", "TIME", "DURATION", "CURRENCY", "QUOTED_STRING", "URL",
+        "EMAIL_ADDRESS", "PHONE_NUMBER", "USERNAME", "HASHTAG", "PATH_NAME", "LOCATION", "SET" };
+    List<String> tokens = new ArrayList<>();
+    for (int num = 0; num < 4; num++) {
+      for (String type : types)
+        tokens.add(entityToken(type, num));
+    }
+
+    String[] keys = new String[MAX_EMULATED_VALUES];
+    Object[] values = new Object[MAX_EMULATED_VALUES];
+    int[] buckets = new int[MAX_EMULATED_VALUES];
+    for (int start = 0; start < tokens.size(); start++) {
+      for (int count = 1; count <= MAX_EMULATED_VALUES; count++) {
+        Map<String, Object> map = new HashMap<>();
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+          String key = tokens.get((start + i * 5) % tokens.size());
+          map.put(key, key);
+          n = insertValue(keys, values, buckets, n, key, key);
+        }
+        if (!new ArrayList<>(map.keySet()).equals(Arrays.asList(keys).subList(0, n)))
+          return false;
+      }
+    }
+    return true;
+  }
+
+  private static int countValues(Seq2SeqTokenizer.Result result) {
+    int count = 0;
+    for (List<Integer> nums : result.entities.values())
+      count += nums.size();
+    return count;
+  }
+
+  private static void writeValues(JsonGenerator generator, State state, Seq2SeqTokenizer.Result result)
+      throws IOException {
+    generator.writeObjectFieldStart("values");
+
+    int count = countValues(result);
+    if (EMULATE_HASH_MAP && count <= MAX_EMULATED_VALUES) {
+      // with this few entries, the table is never resized
+      int n = 0;
+      for (Map.Entry<Value, List<Integer>> entry : result.entities.entrySet()) {
+        for (int num : entry.getValue())
+          n = insertValue(state.keys, state.values, state.buckets, n, entityToken(entry.getKey().type, num),
+              entry.getKey().value);
+      }
+      for (int i = 0; i < n; i++) {
+        generator.writeFieldName(state.keys[i]);
+        writeValue(generator, state.values[i]);
+        state.keys[i] = null;
+        state.values[i] = null;
+      }
+    } else {
+      Map<String, Object> values = new HashMap<>();
+      for (Map.Entry<Value, List<Integer>> entry : result.entities.entrySet()) {
+        for (int num : entry.getValue())
+          values.put(entityToken(entry.getKey().type, num), entry.getKey().value);
+      }
+      for (Map.Entry<String, Object> entry : values.entrySet()) {
+        generator.writeFieldName(entry.getKey());
+        writeValue(generator, entry.getValue());
+      }
+    }
+
+    generator.writeEndObject();
+  }
+
+  /**
+   * Serialize one result as a line of JSON.
+   *
+   * The returned buffer belongs to the calling thread, and it is only valid
+   * until the next call from the same thread.
+   */
+  public static ByteArrayOutputStream serialize(int req, Seq2SeqTokenizer.Result result) throws IOException {
+    State state = OutputSerializer.state.get();
+    JsonGenerator generator = state.generator;
+    state.buffer.reset();
+
+    try {
+      writeOutput(generator, state, req, result);
+    } catch (IOException | RuntimeException e) {
+      // the generator might be left in the middle of an object, start over next time
+      OutputSerializer.state.remove();
+      throw e;
+    }
+    return state.buffer;
+  }
+
+  private static void writeOutput(JsonGenerator generator, State state, int req, Seq2SeqTokenizer.Result result)
+      throws IOException {
+    generator.writeStartObject();
+    generator.writeNumberField("req", req);
+    writeStringList(generator, "tokens", result.tokens);
+    writeStringList(generator, "tokensNoQuotes", result.tokensNoQuotes);
+    writeStringList(generator, "rawTokens", result.rawTokens);
+    writeStringList(generator, "pos", result.posTags);
+    writeValues(generator, state, result);
+    writeStringList(generator, "constituencyParse", Collections.<String>emptyList());
+    generator.writeStringField("sentiment", result.sentiment);
+    if (result.degraded)
+      generator.writeBooleanField("degraded", true);
+    generator.writeEndObject();
+    generator.writeRaw('\n');
+    generator.flush();
+  }
+
+  // Check that we produce the same JSON as Jackson databind, on a corpus of
+  // requests in JSON lines format read from stdin
+  public static void main(String[] args) throws IOException {
+    Map<LocaleTag, CoreNLPAnalyzer> analyzers = new HashMap<>();
+    for (String localeTag : args) {
+      LocaleTag locale = new LocaleTag(localeTag);
+      analyzers.put(locale, new CoreNLPAnalyzer(locale));
+    }
+    Seq2SeqTokenizer tokenizer = new Seq2SeqTokenizer();
+    ObjectMapper object = new ObjectMapper();
+    ObjectReader inputReader = object.reader().withType(TokenizerServer.Input.class);
+    ObjectWriter outputWriter = object.writer().withType(TokenizerServer.Output.class);
+
+    int count = 0, failed = 0;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().isEmpty())
+          continue;
+        TokenizerServer.Input input = inputReader.readValue(line);
+        CoreNLPAnalyzer analyzer = null;
+        for (LocaleTag fallback : new LocaleTag(input.localeTag).getFallbacks()) {
+          analyzer = analyzers.get(fallback);
+          if (analyzer != null)
+            break;
+        }
+        if (analyzer == null)
+          throw new IllegalArgumentException("Unsupported locale tag " + input.localeTag);
+
+        Example ex = new Example.Builder().setUtterance(input.utterance).setExpected(input.expect).createExample();
+        ex.preprocess(analyzer);
+        Seq2SeqTokenizer.Result result = tokenizer.process(ex);
+
+        byte[] expected = outputWriter.writeValueAsBytes(new TokenizerServer.Output(input.req, result));
+        byte[] actual = serialize(input.req, result).toByteArray();
+        count++;
+        if (!Arrays.equals(expected, Arrays.copyOf(actual, actual.length - 1))) {
+          failed++;
+          System.err.println("Mismatch for " + input.utterance);
+          System.err.println("expected: " + new String(expected, StandardCharsets.UTF_8));
+          System.err.println("actual:   " + new String(actual, StandardCharsets.UTF_8).trim());
+        }
+      }
+    }
+
+    System.err.println(count + " outputs checked, " + failed + " mismatches");
+    if (!EMULATE_HASH_MAP)
+      System.err.println("The HashMap of this JDK does not iterate in the order we compute, the values are always put in a map");
+    if (failed > 0 || !EMULATE_HASH_MAP)
+      System.exit(1);
+  }
+}
@@ -0,0 +1,63 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decide when a lane is overloaded, from how long its requests wait in queue.
+ *
+ * The lane is overloaded when the recent queue delay goes above the target,
+ * and stops being overloaded when the delay goes below half the target, and
+ * not before MIN_DWELL_NANOS, so that the state does not flap when the delay
+ * is close to the target.
+ */
+public class OverloadDetector {
+  private static final long MIN_DWELL_NANOS = 1000000000L;
+  private static final double EXIT_RATIO = 0.5;
+
+  private final long targetNanos;
+  private boolean overloaded = false;
+  private long lastSwitch = System.nanoTime();
+  private long entered = 0;
+  private long exited = 0;
+  private double lastDelayNanos = 0;
+
+  /**
+   * @param targetMillis the queue delay that should not be exceeded
+   */
+  public OverloadDetector(long targetMillis) {
+    this.targetNanos = targetMillis * 1000000L;
+  }
+
+  /**
+   * Update the state with the recent queue delay, and return whether the
+   * lane is overloaded.
+   */
+  public synchronized boolean update(double delayNanos) {
+    long now = System.nanoTime();
+    lastDelayNanos = delayNanos;
+    if (!overloaded && delayNanos > targetNanos) {
+      overloaded = true;
+      entered++;
+      lastSwitch = now;
+    } else if (overloaded && delayNanos < targetNanos * EXIT_RATIO && now - lastSwitch >= MIN_DWELL_NANOS) {
+      overloaded = false;
+      exited++;
+      lastSwitch = now;
+    }
+    return overloaded;
+  }
+
+  public synchronized boolean isOverloaded() {
+    return overloaded;
+  }
+
+  synchronized Map<String, Object> snapshot() {
+    Map<String, Object> snapshot = new LinkedHashMap<>();
+    snapshot.put("overloaded", overloaded);
+    snapshot.put("switchedOn", entered);
+    snapshot.put("switchedOff", exited);
+    snapshot.put("recentQueueDelayMs", lastDelayNanos / 1e6);
+    return snapshot;
+  }
+}
@@ -13,183 +13,306 @@ import edu.stanford.nlp.util.ArraySet;
 import edu.stanford.nlp.util.CoreMap;
 
 public class PhoneNumberEntityAnnotator implements Annotator {
-  // recognize std syntax +... or north american 1-
-  private static final Pattern INTL_PREFIX = Pattern.compile("^(\\+1-?|\\+[2-9][0-9]{1,2}-?|1-|1(?=\\())");
-  // recognize common (000) area code, or just 0000, followed by optional -
-  private static final Pattern AREA_CODE = Pattern.compile("^\\(?[0-9]{3,4}\\)?-?");
-  // recognize numbers, *, # and -, or recognize full numbers in touch tone format
-  private static final Pattern NUMBER = Pattern
-      .compile("^([0-9*#\\-]+|[A-Za-z0-90-9*#\\-]{3,4}-[A-Za-z0-90-9*#\\-]{3,})$");
-  // same thing, but more lenient with touch tones, if we have an explicit intl or area code prefix
-  // parses things like 1-800-SABRINA, where the number part does not match NUMBER
-  private static final Pattern LENIENT_NUMBER = Pattern
-      .compile("^([A-Za-z0-90-9*#\\-]{3,})$");
+  // phone numbers are an optional international prefix (+... or the north
+  // american 1-), an optional area code ((000) or 0000, then an optional -),
+  // and a sequence of numbers, with *, # and -, or touch tone letters
+
   // but don't recognize something that would be a legitimate number
   private static final Pattern DOUBLE_PATTERN = Pattern.compile("[+\\-]?([0-9]*\\.[0-9]+|[0-9]+)([eE][+-]?[0-9]+)?");
-  private static final Pattern DIGIT = Pattern.compile("[0-9]+");
-
-  private static final char[] TOUCH_TONES = "22233344455566677778889999".toCharArray();
-
-  private static class PhoneNumberParser {
-    private final List<CoreLabel> tokens;
-    private final int startToken;
 
-    private int tokenIdx = 0;
-    private int charIdx = 0;
+  // a phone number starts with a token that has a digit, a touch tone, or
+  // the punctuation of a prefix or an area code; words without any of these
+  // cannot start one
+  private static final int START_FEATURES = TokenFeaturesAnnotator.DIGIT | TokenFeaturesAnnotator.DASH |
+      TokenFeaturesAnnotator.STAR | TokenFeaturesAnnotator.HASH | TokenFeaturesAnnotator.PLUS |
+      TokenFeaturesAnnotator.PAREN;
 
-    private boolean hasIntlPrefix = false;
-    private boolean hasAreaCode = false;
-    private final StringBuilder buffer = new StringBuilder();
-
-    public PhoneNumberParser(List<CoreLabel> tokens, int startToken) {
-      this.tokens = tokens;
-      this.startToken = startToken;
-    }
+  private static final char[] TOUCH_TONES = "22233344455566677778889999".toCharArray();
 
-    private boolean tryIntlPrefix() {
-      if (tokens.size() <= startToken + tokenIdx)
-        return false;
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
 
-      String token = tokens.get(startToken + tokenIdx).word();
-      if (charIdx > 0)
-        token = token.substring(charIdx);
+  // a character of a number: a digit, *, # or -
+  private static boolean isDial(char c) {
+    return isDigit(c) || c == '*' || c == '#' || c == '-';
+  }
 
-      Matcher matcher = INTL_PREFIX.matcher(token);
-      if (!matcher.find())
-        return false;
+  // a character of a number in touch tone format
+  private static boolean isTouchTone(char c) {
+    return isDial(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
 
-      hasIntlPrefix = true;
-      buffer.append(matcher.group());
-      if (matcher.end() == token.length()) {
-        tokenIdx++;
-        charIdx = 0;
+  /**
+   * The length of the international prefix at the start of word[from..], or 0:
+   * +1, +2 to +999, optionally followed by -, or 1- or 1 before an area code
+   * in parentheses.
+   */
+  static int matchIntlPrefix(String word, int from) {
+    int length = word.length() - from;
+    if (length >= 2 && word.charAt(from) == '+') {
+      int end;
+      char first = word.charAt(from + 1);
+      if (first == '1') {
+        end = from + 2;
+      } else if (first >= '2' && first <= '9' && length >= 3 && isDigit(word.charAt(from + 2))) {
+        end = from + 3;
+        if (end < word.length() && isDigit(word.charAt(end)))
+          end++;
       } else {
-        charIdx += matcher.end();
+        return 0;
       }
-      return true;
+      if (end < word.length() && word.charAt(end) == '-')
+        end++;
+      return end - from;
     }
+    if (length >= 2 && word.charAt(from) == '1' && (word.charAt(from + 1) == '-' || word.charAt(from + 1) == '('))
+      return word.charAt(from + 1) == '-' ? 2 : 1;
+    return 0;
+  }
 
-    private boolean tryAreaCode() {
-      if (tokens.size() <= startToken + tokenIdx)
-        return false;
-
-      String token = tokens.get(startToken + tokenIdx).word();
-      if (charIdx > 0)
-        token = token.substring(charIdx);
+  /**
+   * The length of the area code at the start of word[from..], or 0: 3 or 4
+   * digits, optionally in parentheses, optionally followed by -.
+   */
+  static int matchAreaCode(String word, int from) {
+    int i = from;
+    if (i < word.length() && word.charAt(i) == '(')
+      i++;
+    int digits = 0;
+    while (i < word.length() && digits < 4 && isDigit(word.charAt(i))) {
+      i++;
+      digits++;
+    }
+    if (digits < 3)
+      return 0;
+    if (i < word.length() && word.charAt(i) == ')')
+      i++;
+    if (i < word.length() && word.charAt(i) == '-')
+      i++;
+    return i - from;
+  }
 
-      Matcher matcher = AREA_CODE.matcher(token);
-      if (!matcher.find())
+  /**
+   * Whether word[from..] is a number: digits, *, # and -, or a full number in
+   * touch tone format, with a - after the first 3 or 4 characters and at least
+   * 3 characters after it.
+   *
+   * If lenient, any sequence of at least 3 touch tone characters is a number,
+   * as in 1-800-SABRINA.
+   */
+  static boolean matchNumber(String word, int from, boolean lenient) {
+    int length = word.length() - from;
+    boolean dial = length > 0;
+    for (int i = from; i < word.length(); i++) {
+      char c = word.charAt(i);
+      if (!isTouchTone(c))
         return false;
-
-      hasAreaCode = true;
-      buffer.append(matcher.group());
-      if (matcher.end() == token.length()) {
-        tokenIdx++;
-        charIdx = 0;
-      } else {
-        charIdx += matcher.end();
-      }
-      return true;
+      if (!isDial(c))
+        dial = false;
     }
+    if (lenient)
+      return length >= 3;
+    return dial || (length >= 7 && word.charAt(from + 3) == '-') || (length >= 8 && word.charAt(from + 4) == '-');
+  }
 
-    private boolean tryNumber(boolean lenient) {
-      if (tokens.size() <= startToken + tokenIdx)
-        return false;
+  private static boolean hasDigit(CharSequence str, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (isDigit(str.charAt(i)))
+        return true;
+    }
+    return false;
+  }
 
-      String token = tokens.get(startToken + tokenIdx).word();
-      if (charIdx > 0)
-        token = token.substring(charIdx);
-      if (charIdx == 0 && (hasAreaCode || hasIntlPrefix || buffer.length() >= 4))
-        lenient = false;
+  /**
+   * Finds the phone numbers that start at given tokens of a sentence.
+   *
+   * The tokens are scanned once, when the scanner is created, to find which
+   * are whole numbers and how long the runs of consecutive numbers are, so that
+   * trying a position only looks at the one or two tokens of its prefix and
+   * area code, and the whole sentence is processed in linear time.
+   *
+   * Also used by SpanMaskingAnnotator.
+   */
+  static class PhoneNumberScanner {
+    private final String[] words;
+    // the first token at or after each token that is not a whole number
+    private final int[] runEnd;
+    // the total length of the tokens before each, and how many of them have a digit
+    private final int[] lengthBefore;
+    private final int[] digitsBefore;
 
-      Matcher matcher = (lenient ? LENIENT_NUMBER : NUMBER).matcher(token);
-      if (!matcher.matches())
-        return false;
+    private int consumedTokens;
 
-      buffer.append(matcher.group());
-      tokenIdx++;
-      charIdx = 0;
-      return true;
+    public PhoneNumberScanner(List<CoreLabel> tokens) {
+      int n = tokens.size();
+      words = new String[n];
+      runEnd = new int[n + 1];
+      lengthBefore = new int[n + 1];
+      digitsBefore = new int[n + 1];
+      for (int i = 0; i < n; i++) {
+        words[i] = tokens.get(i).word();
+        lengthBefore[i + 1] = lengthBefore[i] + words[i].length();
+        digitsBefore[i + 1] = digitsBefore[i] + (hasDigit(words[i], 0, words[i].length()) ? 1 : 0);
+      }
+      runEnd[n] = n;
+      for (int i = n - 1; i >= 0; i--)
+        runEnd[i] = matchNumber(words[i], 0, false) ? runEnd[i + 1] : i;
     }
 
+    /**
+     * The number of tokens of the last phone number found.
+     */
     public int consumedTokens() {
-      return tokenIdx;
+      return consumedTokens;
     }
 
-    public String tryParse() {
-      tryIntlPrefix();
-      tryAreaCode();
-      while (tryNumber(hasIntlPrefix || hasAreaCode))
-        ;
-      
+    /**
+     * Recognize a phone number starting at the given token.
+     *
+     * @return the normalized phone number, or null
+     */
+    public String tryParse(int start) {
+      consumedTokens = 0;
+      int n = words.length;
+      int token = start;
+      int charIdx = 0;
+      boolean hasIntlPrefix = false;
+      boolean hasAreaCode = false;
+      // the prefix, the area code and the rest of their token
+      StringBuilder head = new StringBuilder();
+
+      if (token < n) {
+        int length = matchIntlPrefix(words[token], charIdx);
+        if (length > 0) {
+          hasIntlPrefix = true;
+          head.append(words[token], charIdx, charIdx + length);
+          charIdx += length;
+          if (charIdx == words[token].length()) {
+            token++;
+            charIdx = 0;
+          }
+        }
+      }
+      if (token < n) {
+        int length = matchAreaCode(words[token], charIdx);
+        if (length > 0) {
+          hasAreaCode = true;
+          head.append(words[token], charIdx, charIdx + length);
+          charIdx += length;
+          if (charIdx == words[token].length()) {
+            token++;
+            charIdx = 0;
+          }
+        }
+      }
+      // the rest of a token after the prefix or the area code
+      boolean matched = true;
+      if (token < n && charIdx > 0) {
+        matched = matchNumber(words[token], charIdx, hasIntlPrefix || hasAreaCode);
+        if (matched) {
+          head.append(words[token], charIdx, words[token].length());
+          token++;
+        }
+      }
+      // then whole numbers
+      int end = matched && token < n ? runEnd[token] : token;
+
+      int length = head.length() + lengthBefore[end] - lengthBefore[token];
       // reject anything with less than 6 chars, or with no tokens
-      if (buffer.length() < 6 || tokenIdx == 0)
+      if (length < 6 || end == start)
         return null;
 
       // if the buffer has 4 chars or less (plus 2 for intl prefix, plus 3 for area code), we don't accept it
       // if it parses as a double
-      if (buffer.length() < (4 + (hasIntlPrefix ? 2 : 0) + (hasAreaCode ? 3 : 0))) {
-        Matcher doubleMatcher = DOUBLE_PATTERN.matcher(buffer);
+      if (length < (4 + (hasIntlPrefix ? 2 : 0) + (hasAreaCode ? 3 : 0))) {
+        Matcher doubleMatcher = DOUBLE_PATTERN.matcher(concat(head, token, end));
         if (doubleMatcher.matches())
           return null;
       }
       // if the buffer does not contain any digit, we reject it
-      if (!DIGIT.matcher(buffer).find())
+      if (!hasDigit(head, 0, head.length()) && digitsBefore[end] == digitsBefore[token])
         return null;
-      
-      // normalize 1-... to +1-...
-      if (buffer.substring(0, 1).equals("1"))
-        buffer.insert(0, "+");
-      else if (buffer.charAt(0) != '+')
-        buffer.insert(0, "+1");
-
-      // replace weird characters
-      String str = buffer.toString();
-      str = str.replace("-lrb-", "");
-      str = str.replace("-rrb-", "");
-      str = str.replaceAll("[()\\-]", "");
-      str = str.toLowerCase();
-
-      // replace touch tones
-      buffer.setLength(0);
-      for (int i = 0; i < str.length(); i++) {
-        char c = str.charAt(i);
-        if (c >= 'a' && c <= 'z')
-          buffer.append(TOUCH_TONES[c - 'a']);
-        else
-          buffer.append(c);
-      }
-      
-      return buffer.toString();
+
+      consumedTokens = end - start;
+      return normalize(concat(head, token, end));
+    }
+
+    private StringBuilder concat(StringBuilder head, int from, int to) {
+      StringBuilder buffer = new StringBuilder(head);
+      for (int i = from; i < to; i++)
+        buffer.append(words[i]);
+      return buffer;
+    }
+  }
+
+  private static String normalize(StringBuilder buffer) {
+    // normalize 1-... to +1-...
+    if (buffer.charAt(0) == '1')
+      buffer.insert(0, "+");
+    else if (buffer.charAt(0) != '+')
+      buffer.insert(0, "+1");
+
+    // replace weird characters
+    String str = buffer.toString();
+    str = str.replace("-lrb-", "");
+    str = str.replace("-rrb-", "");
+    str = str.replaceAll("[()\\-]", "");
+    str = str.toLowerCase();
+
+    // replace touch tones
+    buffer.setLength(0);
+    for (int i = 0; i < str.length(); i++) {
+      char c = str.charAt(i);
+      if (c >= 'a' && c <= 'z')
+        buffer.append(TOUCH_TONES[c - 'a']);
+      else
+        buffer.append(c);
     }
+
+    return buffer.toString();
   }
 
   @Override
   public void annotate(Annotation document) {
+    int seen = 0, skipped = 0;
     for (CoreMap sentence : document.get(CoreAnnotations.SentencesAnnotation.class)) {
       List<CoreLabel> tokens = sentence.get(CoreAnnotations.TokensAnnotation.class);
+      PhoneNumberScanner scanner = null;
       for (int i = 0; i < tokens.size(); i++) {
         CoreLabel token = tokens.get(i);
         String ner = token.ner();
-        if (ner.equals("TIME") || ner.equals("DATE") || ner.equals("QUOTED_STRING"))
+        // URLs are tagged before, but they take precedence, as when they were tagged last
+        if (ner.equals("TIME") || ner.equals("DATE") || ner.equals("QUOTED_STRING") || ner.equals("URL"))
           continue;
-        PhoneNumberParser parser = new PhoneNumberParser(tokens, i);
-        String parsed = parser.tryParse();
+        seen++;
+        if ((TokenFeaturesAnnotator.get(token) & START_FEATURES) == 0) {
+          skipped++;
+          continue;
+        }
+        if (scanner == null)
+          scanner = new PhoneNumberScanner(tokens);
+        String parsed = scanner.tryParse(i);
 
         if (parsed != null) {
-          for (int j = 0; j < parser.consumedTokens(); j++) {
+          for (int j = 0; j < scanner.consumedTokens(); j++) {
+            if ("URL".equals(tokens.get(i + j).ner()))
+              continue;
             tokens.get(i + j).setNER("PHONE_NUMBER");
             tokens.get(i + j).set(CoreAnnotations.NormalizedNamedEntityTagAnnotation.class, parsed);
           }
-          i += parser.consumedTokens() - 1;
+          i += scanner.consumedTokens() - 1;
         }
       }
     }
+    TokenFeaturesAnnotator.recordSkipped(document, "phone_ner", seen, skipped);
   }
 
   @Override
   public Set<Class<? extends CoreAnnotation>> requirementsSatisfied() {
-    return Collections.emptySet();
+    return Collections.unmodifiableSet(new ArraySet<>(Arrays.asList(
+        CoreAnnotations.NamedEntityTagAnnotation.class,
+        CoreAnnotations.NormalizedNamedEntityTagAnnotation.class)));
   }
 
   @Override
@@ -199,6 +322,7 @@ public class PhoneNumberEntityAnnotator implements Annotator {
         CoreAnnotations.TokensAnnotation.class,
         CoreAnnotations.SentencesAnnotation.class,
         CoreAnnotations.PositionAnnotation.class,
-        CoreAnnotations.NamedEntityTagAnnotation.class)));
+        CoreAnnotations.NamedEntityTagAnnotation.class,
+        TokenFeaturesAnnotator.TokenFeaturesAnnotation.class)));
   }
 }
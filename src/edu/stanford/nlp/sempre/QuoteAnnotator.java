@@ -1,7 +1,6 @@
 package edu.stanford.nlp.sempre;
 
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import edu.stanford.nlp.ling.CoreAnnotation;
@@ -331,6 +330,38 @@ public class QuoteAnnotator implements Annotator {
       String text, String docID,
       boolean unclosed) {
     List<CoreMap> cmQuotes = Generics.newArrayList();
+    if (quotes.isEmpty())
+      return cmQuotes;
+
+    // the first token that begins at or after each character offset
+    int[] firstToken = null;
+    if (tokens != null) {
+      firstToken = new int[text.length() + 1];
+      int currTok = 0;
+      for (int offset = 0; offset <= text.length(); offset++) {
+        while (currTok < tokens.size() && tokens.get(currTok).beginPosition() < offset) {
+          currTok++;
+        }
+        firstToken[offset] = currTok;
+      }
+    }
+
+    // the offsets of the sentences, in order
+    int[] sentBegins = null;
+    int[] sentEnds = null;
+    int[] sentIndices = null;
+    if (sentences != null) {
+      sentBegins = new int[sentences.size()];
+      sentEnds = new int[sentences.size()];
+      sentIndices = new int[sentences.size()];
+      for (int s = 0; s < sentences.size(); s++) {
+        CoreMap sentence = sentences.get(s);
+        sentBegins[s] = sentence.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class);
+        sentEnds[s] = sentence.get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
+        sentIndices[s] = sentence.get(CoreAnnotations.SentenceIndexAnnotation.class);
+      }
+    }
+
     for (Pair<Integer, Integer> p : quotes) {
       int begin = p.first();
       int end = p.second();
@@ -338,12 +369,8 @@ public class QuoteAnnotator implements Annotator {
       // find the tokens for this quote
       List<CoreLabel> quoteTokens = new ArrayList<>();
       int tokenOffset = -1;
-      int currTok = 0;
       if (tokens != null) {
-        while (currTok < tokens.size() && tokens.get(currTok).beginPosition() < begin) {
-          currTok++;
-        }
-        int i = currTok;
+        int i = firstToken[begin];
         tokenOffset = i;
         while (i < tokens.size() && tokens.get(i).endPosition() <= end) {
           quoteTokens.add(tokens.get(i));
@@ -351,20 +378,18 @@ public class QuoteAnnotator implements Annotator {
         }
       }
 
-      // find the sentences for this quote
+      // find the sentences for this quote: the last one that begins before
+      // it, and the first one that ends after it
       int beginSentence = -1;
       int endSentence = -1;
       if (sentences != null) {
-        for (CoreMap sentence : sentences) {
-          int sentBegin = sentence.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class);
-          int sentEnd = sentence.get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
-          int sentIndex = sentence.get(CoreAnnotations.SentenceIndexAnnotation.class);
-          if (sentBegin <= begin) {
-            beginSentence = sentIndex;
-          }
-          if (sentEnd >= end && endSentence < 0) {
-            endSentence = sentIndex;
-          }
+        int last = lastAtMost(sentBegins, begin);
+        if (last >= 0) {
+          beginSentence = sentIndices[last];
+        }
+        int first = lastAtMost(sentEnds, end - 1) + 1;
+        if (first < sentEnds.length) {
+          endSentence = sentIndices[first];
         }
       }
 
@@ -380,21 +405,26 @@ public class QuoteAnnotator implements Annotator {
     Comparator<CoreMap> quoteComparator = getQuoteComparator();
     Collections.sort(cmQuotes, quoteComparator);
 
-    // embed quotes
-    List<CoreMap> toRemove = new ArrayList<>();
-    for (CoreMap cmQuote : cmQuotes) {
+    // embed quotes: the quotes inside another one follow it in this order,
+    // up to the first one that starts after it ends
+    boolean[] embedded = new boolean[cmQuotes.size()];
+    for (int q = 0; q < cmQuotes.size(); q++) {
+      CoreMap cmQuote = cmQuotes.get(q);
       int start = cmQuote.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class);
       int end = cmQuote.get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
-      // See if we need to embed a quote
       List<CoreMap> embeddedQuotes = new ArrayList<>();
-      for (CoreMap cmQuoteComp : cmQuotes) {
+      for (int c = q + 1; c < cmQuotes.size(); c++) {
+        CoreMap cmQuoteComp = cmQuotes.get(c);
         int startComp = cmQuoteComp.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class);
         int endComp = cmQuoteComp.get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
+        if (startComp >= end) {
+          break;
+        }
         if (start < startComp && end >= endComp) {
           // p contains comp
           embeddedQuotes.add(cmQuoteComp);
-          // now we want to remove it from the top-level quote list
-          toRemove.add(cmQuoteComp);
+          // it will not be a top-level quote
+          embedded[c] = true;
         }
       }
       if (!unclosed) {
@@ -404,15 +434,31 @@ public class QuoteAnnotator implements Annotator {
       }
     }
 
-    // Remove all the quotes that we want to.
-    for (CoreMap r : toRemove) {
-      // remove that quote from the overall list
-      cmQuotes.remove(r);
+    List<CoreMap> topLevel = Generics.newArrayList();
+    for (int q = 0; q < cmQuotes.size(); q++) {
+      if (!embedded[q]) {
+        topLevel.add(cmQuotes.get(q));
+      }
     }
 
     // Set the quote index annotations properly
-    setQuoteIndices(cmQuotes, unclosed);
-    return cmQuotes;
+    setQuoteIndices(topLevel, unclosed);
+    return topLevel;
+  }
+
+  // the last index of a sorted array whose value is at most target, or -1
+  private static int lastAtMost(int[] sorted, int target) {
+    int low = 0;
+    int high = sorted.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (sorted[mid] <= target) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low - 1;
   }
 
   private static void setQuoteIndices(List<CoreMap> topLevel, boolean unclosed) {
@@ -470,232 +516,352 @@ public class QuoteAnnotator implements Annotator {
     return quote;
   }
 
+  // a part of the text to look for quotes in: the whole text, or the inside
+  // of a quote, where quotes of the kind prevQuote cannot start
+  private static class Segment {
+    final int begin;
+    final int end;
+    final String prevQuote;
+    final boolean embedded;
+
+    Segment(int begin, int end, String prevQuote, boolean embedded) {
+      this.begin = begin;
+      this.end = end;
+      this.prevQuote = prevQuote;
+      this.embedded = embedded;
+    }
+  }
+
+  /**
+   * Find the quotes in the text, and the quotes embedded in them.
+   *
+   * The text is scanned once to find where each quote that starts at a given
+   * position would close (see QuoteCloses), then each segment (the text, then
+   * the inside of each quote found) is scanned from left to right, jumping
+   * from the start of each quote to its end, so that every character is read
+   * a constant number of times. A quote that does not close is skipped, and
+   * the rest of its segment is scanned again from after its opening mark.
+   *
+   * @return the quotes, and the unclosed quotes (if extractUnclosedQuotes is
+   * set), as begin and end character offsets
+   */
   public Pair<List<Pair<Integer, Integer>>, List<Pair<Integer, Integer>>> getQuotes(String text) {
-    return recursiveQuotes(text, 0, null);
+    List<Pair<Integer, Integer>> quotes = Generics.newArrayList();
+    List<Pair<Integer, Integer>> unclosedQuotes = Generics.newArrayList();
+    if (!QuoteCloses.hasQuotes(text)) {
+      return new Pair<>(quotes, unclosedQuotes);
+    }
+
+    QuoteCloses closes = new QuoteCloses(text);
+    Deque<Segment> segments = new ArrayDeque<>();
+    segments.push(new Segment(0, text.length(), null, false));
+    while (!segments.isEmpty()) {
+      scanSegment(text, closes, segments.pop(), segments, quotes, unclosedQuotes);
+    }
+    return new Pair<>(quotes, unclosedQuotes);
   }
 
-  public Pair<List<Pair<Integer, Integer>>, List<Pair<Integer, Integer>>> recursiveQuotes(String text, int offset,
-      String prevQuote) {
-    Map<String, List<Pair<Integer, Integer>>> quotesMap = new HashMap<>();
-    int start = -1;
-    int end = -1;
-    String quote = null;
-    int directed = 0;
-    for (int i = 0; i < text.length(); i++) {
-      // Either I'm not in any quote or this one matches
-      // the kind that I am.
-      String c = text.substring(i, i + 1);
-
-      if (c.equals("`") && i < text.length() - 1 &&
-          text.charAt(i + 1) == '`') {
-        c += text.charAt(i + 1);
-      } else if (c.equals("'") && (quote != null && (quote.equals("``") || quote.equals("`")))) {
-        // we want to ignore it if unless is is the beginning of the
-        // last set of ' of the proper length
-        int curr = i;
-        while (curr < text.length() && text.charAt(curr) == '\'') {
-          curr++;
-        }
-        if (i == curr - quote.length() ||
-            (directed > 0 && i == curr - (directed * quote.length()))) {
-          for (int a = i + 1; a < i + quote.length(); a++) {
-            c += text.charAt(a);
-          }
-        } else {
-          continue;
-        }
+  private void scanSegment(String text, QuoteCloses closes, Segment segment, Deque<Segment> segments,
+      List<Pair<Integer, Integer>> quotes, List<Pair<Integer, Integer>> unclosedQuotes) {
+    int begin = segment.begin;
+    int end = segment.end;
+    String prevQuote = segment.prevQuote;
+    int i = begin;
+    while (i < end) {
+      String quote = QuoteCloses.quoteAt(text, i, end);
+      boolean opening = quote != null && !quote.equals(prevQuote);
+      if (opening && (quote.equals("'") || quote.equals("`"))) {
+        opening = (USE_SINGLE || quote.equals("`")) &&
+            (i == begin || isWhitespaceOrPunct(text.charAt(i - 1)));
+      }
+      if (!opening) {
+        i += quote == null ? 1 : quote.length();
+        continue;
       }
 
-      if (DIRECTED_QUOTES.containsKey(quote) &&
-          DIRECTED_QUOTES.get(quote).equals(c)) {
-        if (c.equals("’")) {
-          if ((i == text.length() - 1 || isSingleQuoteEnd(text, i))) {
-            // check to make sure that this isn't an apostrophe..
-            directed--;
-          }
-        } else {
-          // closing
-          directed--;
-        }
+      int start = i;
+      int close = closes.close(quote, start, end);
+      // forget about this quote
+      if (MAX_LENGTH > 0 && (close < 0 ? end : close) - start > MAX_LENGTH) {
+        i = start + quote.length();
+        continue;
       }
 
-      // opening
-      if ((start < 0) && !matchesPrevQuote(c, prevQuote) &&
-          (((isSingleQuoteWithUse(c) || c.equals("`")) && isSingleQuoteStart(text, i)) ||
-              (c.equals("\"") || DIRECTED_QUOTES.containsKey(c)))) {
-        start = i;
-        quote = c;
-        // closing
-      } else if ((start >= 0 && end < 0) &&
-          ((c.equals(quote) &&
-              (((c.equals("'") || c.equals("`")) && isSingleQuoteEnd(text, i)) ||
-                  (c.equals("\"") && isDoubleQuoteEnd(text, i))))
-              ||
-              (c.equals("'") && quote.equals("`") && isSingleQuoteEnd(text, i)) ||  // latex quotes are kind of problematic
-              (DIRECTED_QUOTES.containsKey(quote) &&
-                  DIRECTED_QUOTES.get(quote).equals(c) &&
-                  directed == 0))) {
-        end = i + c.length();
-      }
-
-      if (DIRECTED_QUOTES.containsKey(c) &&
-          c.equals(quote)) {
-        // opening of this kind of directed quote
-        directed++;
-      }
-
-      if (start >= 0 && end > 0) {
-        if (!quotesMap.containsKey(quote)) {
-          quotesMap.put(quote, new ArrayList<>());
+      if (close >= 0) {
+        // embedded quotes of two characters or less do not count
+        if (!segment.embedded || close - start > 2) {
+          quotes.add(new Pair<>(start, close));
         }
-        quotesMap.get(quote).add(new Pair<>(start, end));
-        start = -1;
-        end = -1;
-        quote = null;
+        if (close - start > quote.length() * 2) {
+          String qKindToPass = null;
+          if (!(DIRECTED_QUOTES.containsKey(quote) || quote.equals("`"))
+              || !ALLOW_EMBEDDED_SAME) {
+            qKindToPass = quote;
+          }
+          segments.push(new Segment(start + quote.length(), close - quote.length(), qKindToPass, true));
+        }
+        i = close;
+        continue;
       }
 
-      if (c.length() > 1) {
-        i += c.length() - 1;
+      // TODO: determine if we want to be more strict w/ single quotes than double
+      // answer: we do want to.
+      if (start >= end - 3) {
+        break;
       }
-
-      // forget about this quote
-      if (MAX_LENGTH > 0 && start >= 0 &&
-          i - start > MAX_LENGTH) {
-        // go back to the right index after start
-        i = start + quote.length();
-
-        start = -1;
-        end = -1;
-        quote = null;
+      String warning = end - begin > 150 ? text.substring(begin, begin + 150) + "..." : text.substring(begin, end);
+      log.info("WARNING: unmatched quote of type " +
+          quote + " found at index " + (start - begin) + " in text segment: " + warning);
+      if (EXTRACT_UNCLOSED) {
+        unclosedQuotes.add(new Pair<>(start, end));
       }
+      // try again, but without the part of the text before the quote
+      i = start + quote.length();
+      begin = i;
+      prevQuote = null;
     }
+  }
 
-    // TODO: determine if we want to be more strict w/ single quotes than double
-    // answer: we do want to.
-    if (start >= 0 && start < text.length() - 3) {
-      String warning = text;
-      if (text.length() > 150) {
-        warning = text.substring(0, 150) + "...";
+  /**
+   * Where a quote that opens at each position of a text closes, computed in
+   * one pass over the text.
+   *
+   * Inside a segment that ends before the end of the text, the mark at the end
+   * of the segment always counts as a closing mark, as if the segment was the
+   * whole text; close() takes care of that case.
+   */
+  private static class QuoteCloses {
+    private static final String QUOTE_CHARS = "\"'`“‘«‹「『„‚";
+
+    // the opening marks of the directed quotes that close with each mark
+    private static final Map<Character, String> OPENERS_BY_CLOSER = new HashMap<>();
+    static {
+      for (Map.Entry<String, String> entry : DIRECTED_QUOTES.entrySet()) {
+        if (entry.getKey().length() == 1) {
+          OPENERS_BY_CLOSER.merge(entry.getValue().charAt(0), entry.getKey(), String::concat);
+        }
       }
-      log.info("WARNING: unmatched quote of type " +
-          quote + " found at index " + start + " in text segment: " + warning);
     }
 
-    // recursively look for embedded quotes in these ones
-    List<Pair<Integer, Integer>> quotes = Generics.newArrayList();
-    List<Pair<Integer, Integer>> unclosedQuotes = Generics.newArrayList();
-    // If I didn't find any quotes, but did find a quote-beginning, try again,
-    // but without the part of the text before the single quote
-    // really this test should be whether or not start is mapped to in quotesMap
-    if (!isAQuoteMapStarter(start, quotesMap) && start >= 0 && start < text.length() - 3) {
-      if (EXTRACT_UNCLOSED) {
-        unclosedQuotes.add(new Pair<>(start, text.length()));
+    private final String text;
+    // the first character of the run of the same character that each one is in
+    private final int[] runStart;
+    // the next " from each position
+    private final int[] nextDouble;
+    // the next ' that ends a ' quote, from each position
+    private final int[] nextSingleEnd;
+    // the next ` or ' that ends a ` quote, from each position
+    private final int[] nextBacktickEnd;
+    // where the directed quote or the `` that opens at each position closes in
+    // the whole text, or -1
+    private final int[] match;
+    // how many `` are open before each `` and each run of '
+    private final int[] latexDepth;
+    // how many ‘, how many ‚, and how many ’ that count as closing marks,
+    // before each position, if the text has a ’
+    private int[] leftSingleCount;
+    private int[] lowSingleCount;
+    private int[] rightSingleCount;
+
+    static boolean hasQuotes(String text) {
+      for (int i = 0; i < text.length(); i++) {
+        if (QUOTE_CHARS.indexOf(text.charAt(i)) >= 0) {
+          return true;
+        }
       }
-      String toPass = text.substring(start + quote.length(), text.length());
-      Pair<List<Pair<Integer, Integer>>, List<Pair<Integer, Integer>>> embedded = recursiveQuotes(toPass, offset, null);
-      // these are the good quotes
-      for (Pair<Integer, Integer> e : embedded.first()) {
-        quotes.add(new Pair<>(e.first() + start + quote.length(),
-            e.second() + start + 1));
+      return false;
+    }
+
+    // the quote mark at position i, if any
+    static String quoteAt(String text, int i, int end) {
+      char c = text.charAt(i);
+      if (QUOTE_CHARS.indexOf(c) < 0) {
+        return null;
       }
-      if (EXTRACT_UNCLOSED) {
-        // these are the unclosed quotes
-        for (Pair<Integer, Integer> e : embedded.second()) {
-          unclosedQuotes.add(new Pair<>(e.first() + start + quote.length(),
-              e.second() + start + 1));
-        }
+      if (c == '`' && i < end - 1 && text.charAt(i + 1) == '`') {
+        return "``";
       }
+      return String.valueOf(c);
     }
 
-    // Now take care of the good quotes that we found
-    for (String qKind : quotesMap.keySet()) {
-      for (Pair<Integer, Integer> q : quotesMap.get(qKind)) {
-        if (q.second() - q.first() >= qKind.length() * 2) {
-          String toPass = text.substring(q.first() + qKind.length(),
-              q.second() - qKind.length());
-          String qKindToPass = null;
-          if (!(DIRECTED_QUOTES.containsKey(qKind) || qKind.equals("`"))
-              || !ALLOW_EMBEDDED_SAME) {
-            qKindToPass = qKind;
+    QuoteCloses(String text) {
+      this.text = text;
+      int n = text.length();
+      runStart = new int[n];
+      for (int i = 0; i < n; i++) {
+        runStart[i] = i > 0 && text.charAt(i - 1) == text.charAt(i) ? runStart[i - 1] : i;
+      }
+
+      nextDouble = new int[n + 1];
+      nextSingleEnd = new int[n + 1];
+      nextBacktickEnd = new int[n + 1];
+      nextDouble[n] = nextSingleEnd[n] = nextBacktickEnd[n] = n;
+      for (int i = n - 1; i >= 0; i--) {
+        char c = text.charAt(i);
+        boolean singleEnd = isSingleQuoteEnd(text, i);
+        boolean lastOfRun = i == n - 1 || text.charAt(i + 1) != c;
+        nextDouble[i] = c == '"' ? i : nextDouble[i + 1];
+        nextSingleEnd[i] = c == '\'' && singleEnd ? i : nextSingleEnd[i + 1];
+        // a ` quote ends with the last ' of a run, or with a ` that is not
+        // part of a ``
+        boolean backtickEnd = singleEnd && lastOfRun &&
+            (c == '\'' || (c == '`' && (i - runStart[i]) % 2 == 0));
+        nextBacktickEnd[i] = backtickEnd ? i : nextBacktickEnd[i + 1];
+      }
+
+      match = new int[n];
+      Arrays.fill(match, -1);
+      latexDepth = new int[n];
+      Map<Character, Deque<Integer>> open = new HashMap<>();
+      Deque<Integer> openLatex = new ArrayDeque<>();
+      int depth = 0;
+      boolean hasRightSingle = false;
+      int i = 0;
+      while (i < n) {
+        char c = text.charAt(i);
+        int runEnd = i + 1;
+        while (runEnd < n && text.charAt(runEnd) == c) {
+          runEnd++;
+        }
+        if (c == '`') {
+          for (int pair = i; pair + 1 < runEnd; pair += 2) {
+            latexDepth[pair] = depth;
+            openLatex.push(pair);
+            depth++;
           }
-          Pair<List<Pair<Integer, Integer>>, List<Pair<Integer, Integer>>> embedded = recursiveQuotes(toPass,
-              q.first() + qKind.length() + offset, qKindToPass);
-          // good quotes
-          for (Pair<Integer, Integer> e : embedded.first()) {
-            // don't add offset here because the
-            // recursive method already added it
-            if (e.second() - e.first() > 2) {
-              quotes.add(new Pair<>(e.first(), e.second()));
+          i = runEnd;
+          continue;
+        }
+        if (c == '\'') {
+          // a run of ' closes the `` quotes whose '' fit in it, and closes one
+          // '' of the others
+          latexDepth[i] = depth;
+          if (runEnd - i >= 2) {
+            while (!openLatex.isEmpty() && 2 * (depth - latexDepth[openLatex.peek()]) <= runEnd - i) {
+              match[openLatex.pop()] = runEnd;
             }
+            depth--;
           }
-          // unclosed quotes
-          if (EXTRACT_UNCLOSED) {
-            // these are the unclosed quotes
-            for (Pair<Integer, Integer> e : embedded.second()) {
-              unclosedQuotes.add(new Pair<>(e.first(), e.second()));
+          i = runEnd;
+          continue;
+        }
+
+        String openers = OPENERS_BY_CLOSER.get(c);
+        if (c == '’') {
+          hasRightSingle = true;
+        }
+        if (openers != null && (c != '’' || isSingleQuoteEnd(text, i))) {
+          for (int k = 0; k < openers.length(); k++) {
+            Deque<Integer> stack = open.get(openers.charAt(k));
+            if (stack != null && !stack.isEmpty()) {
+              match[stack.pop()] = i;
             }
           }
         }
-        quotes.add(new Pair<>(q.first() + offset, q.second() + offset));
+        if (DIRECTED_QUOTES.containsKey(String.valueOf(c))) {
+          open.computeIfAbsent(c, key -> new ArrayDeque<>()).push(i);
+        }
+        i++;
       }
-    }
 
-    return new Pair<>(quotes, unclosedQuotes);
-  }
-
-  private boolean isAQuoteMapStarter(int target, Map<String, List<Pair<Integer, Integer>>> quotesMap) {
-    for (String k : quotesMap.keySet()) {
-      for (Pair<Integer, Integer> pair : quotesMap.get(k)) {
-        if (pair.first() == target) {
-          return true;
+      if (hasRightSingle) {
+        leftSingleCount = new int[n + 1];
+        lowSingleCount = new int[n + 1];
+        rightSingleCount = new int[n + 1];
+        for (int j = 0; j < n; j++) {
+          char c = text.charAt(j);
+          leftSingleCount[j + 1] = leftSingleCount[j] + (c == '‘' ? 1 : 0);
+          lowSingleCount[j + 1] = lowSingleCount[j] + (c == '‚' ? 1 : 0);
+          rightSingleCount[j + 1] = rightSingleCount[j] +
+              (c == '’' && isSingleQuoteEnd(text, j) ? 1 : 0);
         }
       }
     }
-    return false;
-  }
-
-  private boolean isSingleQuoteWithUse(String c) {
-    return c.equals("'") && USE_SINGLE;
-  }
-
-  private static boolean matchesPrevQuote(String c, String prev) {
-    return prev != null && prev.equals(c);
-  }
 
-  private static boolean isSingleQuoteStart(String text, int i) {
-    if (i == 0)
-      return true;
-    String prev = text.substring(i - 1, i);
-    return isWhitespaceOrPunct(prev);
+    /**
+     * The end of the quote that opens at start, in a segment that ends at end,
+     * or -1 if it does not close.
+     */
+    int close(String quote, int start, int end) {
+      int last = end - 1;
+      switch (quote) {
+      case "\"": {
+        int close = nextDouble[start + 1];
+        return close < end ? close + 1 : -1;
+      }
+      case "'": {
+        int close = nextSingleEnd[start + 1];
+        if (close < last) {
+          return close + 1;
+        }
+        return last > start && text.charAt(last) == '\'' ? end : -1;
+      }
+      case "`": {
+        int close = nextBacktickEnd[start + 1];
+        if (close < last) {
+          return close + 1;
+        }
+        if (last > start && (text.charAt(last) == '\'' ||
+            (text.charAt(last) == '`' && (last - runStart[last]) % 2 == 0))) {
+          return end;
+        }
+        return -1;
+      }
+      case "``": {
+        if (match[start] >= 0 && match[start] <= end) {
+          return match[start];
+        }
+        // a run of ' cut by the end of the segment
+        if (last > start + 1 && text.charAt(last) == '\'') {
+          int run = runStart[last];
+          if (end - run >= 2 * (latexDepth[run] - latexDepth[start])) {
+            return end;
+          }
+        }
+        return -1;
+      }
+      default: {
+        if (match[start] >= 0 && match[start] < end) {
+          return match[start] + 1;
+        }
+        // a ’ that only counts as a closing mark at the end of the segment
+        if (DIRECTED_QUOTES.get(quote).equals("’") && last > start && text.charAt(last) == '’' &&
+            !isSingleQuoteEnd(text, last)) {
+          int[] openCount = quote.equals("‘") ? leftSingleCount : lowSingleCount;
+          int depth = 1 + openCount[last] - openCount[start + 1] -
+              (rightSingleCount[last] - rightSingleCount[start + 1]);
+          if (depth == 1) {
+            return end;
+          }
+        }
+        return -1;
+      }
+      }
+    }
   }
 
   private static boolean isSingleQuoteEnd(String text, int i) {
     if (i == text.length() - 1)
       return true;
-    String next = text.substring(i + 1, i + 2);
-    return isWhitespaceOrPunct(next);
+    return isWhitespaceOrPunct(text.charAt(i + 1));
   }
 
-  private static boolean isDoubleQuoteEnd(String text, int i) {
-    return true;
-    /*
-    if (i == text.length() - 1)
-      return true;
-    String next = text.substring(i + 1, i + 2);
-    if (i == text.length() - 2 && isWhitespaceOrPunct(next)) {
-      return true;
+  private static final Pattern PUNCT_OR_WHITE = Pattern.compile("[\\s\\p{Punct}']", Pattern.UNICODE_CHARACTER_CLASS);
+  private static final boolean[] ASCII_PUNCT_OR_WHITE = new boolean[128];
+  static {
+    for (char c = 0; c < 128; c++) {
+      ASCII_PUNCT_OR_WHITE[c] = PUNCT_OR_WHITE.matcher(String.valueOf(c)).matches();
     }
-    if (i > text.length() - 3)
-      return false;
-    String nextNext = text.substring(i + 2, i + 3);
-    return ((isWhitespaceOrPunct(next) &&
-        !isSingleQuote(next)) || (isSingleQuote(next) && isWhitespaceOrPunct(nextNext)));*/
   }
 
   public static boolean isWhitespaceOrPunct(String c) {
-    Pattern punctOrWhite = Pattern.compile("[\\s\\p{Punct}']", Pattern.UNICODE_CHARACTER_CLASS);
-    Matcher m = punctOrWhite.matcher(c);
-    return m.matches();
+    return PUNCT_OR_WHITE.matcher(c).matches();
+  }
+
+  public static boolean isWhitespaceOrPunct(char c) {
+    if (c < 128)
+      return ASCII_PUNCT_OR_WHITE[c];
+    return PUNCT_OR_WHITE.matcher(String.valueOf(c)).matches();
   }
 
   public static boolean isSingleQuote(String c) {
@@ -1,10 +1,7 @@
 package edu.stanford.nlp.sempre;
 
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
-import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.ling.CoreAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
@@ -13,42 +10,54 @@ import edu.stanford.nlp.pipeline.Annotator;
 import edu.stanford.nlp.util.ArraySet;
 import edu.stanford.nlp.util.CoreMap;
 
+/**
+ * Tag the tokens that match one of the patterns of data/regex_patterns (email
+ * addresses, URLs, usernames, hashtags, file names), in one pass with
+ * EntityPatternMatcher. The first pattern that matches wins.
+ */
 public class RegexpEntityAnnotator implements Annotator {
-  private final Map<String, Pattern> patterns = new HashMap<>();
+  private final EntityPatternMatcher matcher;
 
   public RegexpEntityAnnotator(String name, Properties props) {
     this(props.getProperty(name + ".patterns"));
   }
 
   public RegexpEntityAnnotator(String file) {
-    for (String line : IOUtils.readLines(file)) {
-      String[] parts = line.trim().split("\t");
-      patterns.put(parts[0], Pattern.compile(parts[1]));
-    }
+    matcher = EntityPatternMatcher.load(file);
   }
 
   @Override
   public void annotate(Annotation annotation) {
+    int tokens = 0, skipped = 0;
     for (CoreMap sentence : annotation.get(CoreAnnotations.SentencesAnnotation.class)) {
       for (CoreLabel token : sentence.get(CoreAnnotations.TokensAnnotation.class)) {
         String existingNerTag = token.ner();
         if ("QUOTED_STRING".equals(existingNerTag))
           continue;
-        
-        for (Map.Entry<String,Pattern> entry : patterns.entrySet()) {
-          Matcher matcher = entry.getValue().matcher(token.word());
-          if (matcher.matches()) {
-            token.setNER(entry.getKey());
-            token.set(CoreAnnotations.NormalizedNamedEntityTagAnnotation.class, matcher.group(1));
-          }
+        tokens++;
+        if (!matcher.mightMatch(TokenFeaturesAnnotator.get(token))) {
+          skipped++;
+          continue;
         }
+
+        EntityPatternMatcher.Match match = matcher.match(token.word());
+        if (match == null)
+          continue;
+        String value = match.value;
+        if ("URL".equals(match.type) && !value.startsWith("http"))
+          value = "http://" + value;
+        token.setNER(match.type);
+        token.set(CoreAnnotations.NormalizedNamedEntityTagAnnotation.class, value);
       }
     }
+    TokenFeaturesAnnotator.recordSkipped(annotation, "custom_regexp_ner", tokens, skipped);
   }
 
   @Override
   public Set<Class<? extends CoreAnnotation>> requirementsSatisfied() {
-    return Collections.emptySet();
+    return Collections.unmodifiableSet(new ArraySet<>(Arrays.asList(
+        CoreAnnotations.NamedEntityTagAnnotation.class,
+        CoreAnnotations.NormalizedNamedEntityTagAnnotation.class)));
   }
 
   @Override
@@ -58,7 +67,8 @@ public class RegexpEntityAnnotator implements Annotator {
         CoreAnnotations.TokensAnnotation.class,
         CoreAnnotations.SentencesAnnotation.class,
         CoreAnnotations.PositionAnnotation.class,
-        CoreAnnotations.NamedEntityTagAnnotation.class)));
+        CoreAnnotations.NamedEntityTagAnnotation.class,
+        TokenFeaturesAnnotator.TokenFeaturesAnnotation.class)));
   }
 
 }
@@ -13,6 +13,8 @@ public class Seq2SeqTokenizer {
     public final List<String> posTags = new ArrayList<>();
     public final Map<Value, List<Integer>> entities = new HashMap<>();
     public String sentiment = "neutral";
+    // whether the parser and the sentiment model were skipped to save time
+    public boolean degraded = false;
   }
 
   private static final Map<String, String> CURRENCY_CODES = new HashMap<>();
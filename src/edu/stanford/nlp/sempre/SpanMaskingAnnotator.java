@@ -0,0 +1,200 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+
+import edu.stanford.nlp.ling.CoreAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.sempre.QuotedStringAnnotator.QuoteAnnotation;
+import edu.stanford.nlp.util.ArraySet;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Replace the spans that will become a single entity anyway (the content of
+ * quoted strings, URLs, email addresses and international phone numbers) with
+ * a single placeholder token, so that the tagger, the NER CRF, the parser and
+ * the sentiment model do not spend time on them.
+ *
+ * This runs after quote2 and ssplit, and SpanUnmaskingAnnotator puts the
+ * original tokens back after the statistical annotators, before our own
+ * entity annotators, which then see the same tokens as without masking.
+ */
+public class SpanMaskingAnnotator implements Annotator {
+  /**
+   * The spans masked in a document, to be put back by SpanUnmaskingAnnotator.
+   */
+  public static class MaskedSpansAnnotation implements CoreAnnotation<List<MaskedSpan>> {
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Override
+    public Class<List<MaskedSpan>> getType() {
+      return (Class) List.class;
+    }
+  }
+
+  public static class MaskedSpan {
+    public final String type;
+    public final CoreLabel placeholder;
+    public final List<CoreLabel> tokens;
+
+    MaskedSpan(String type, CoreLabel placeholder, List<CoreLabel> tokens) {
+      this.type = type;
+      this.placeholder = placeholder;
+      this.tokens = tokens;
+    }
+  }
+
+  // the word that stands for each kind of span, in each language, chosen to
+  // be tagged and parsed like the span would be, as a noun phrase; the other
+  // languages are not masked, as their models were never checked against
+  // a placeholder
+  private static final Map<String, Map<String, String>> PLACEHOLDERS = new HashMap<>();
+  static {
+    Map<String, String> english = new HashMap<>();
+    english.put("QUOTED_STRING", "text");
+    english.put("URL", "website");
+    english.put("EMAIL_ADDRESS", "email");
+    english.put("PHONE_NUMBER", "number");
+    PLACEHOLDERS.put("en", english);
+
+    Map<String, String> italian = new HashMap<>();
+    italian.put("QUOTED_STRING", "testo");
+    italian.put("URL", "sito");
+    italian.put("EMAIL_ADDRESS", "email");
+    italian.put("PHONE_NUMBER", "numero");
+    PLACEHOLDERS.put("it", italian);
+  }
+
+  /**
+   * Whether the spans of a language can be masked.
+   */
+  public static boolean supportsLanguage(String language) {
+    return PLACEHOLDERS.containsKey(language);
+  }
+
+  private final EntityPatternMatcher matcher;
+  private final Map<String, String> placeholders;
+
+  public SpanMaskingAnnotator(String name, Properties props) {
+    this.matcher = EntityPatternMatcher.load(props.getProperty(name + ".patterns"));
+    String language = props.getProperty(name + ".language", "en");
+    this.placeholders = PLACEHOLDERS.get(language);
+    if (this.placeholders == null)
+      throw new IllegalArgumentException("Cannot mask spans in " + language);
+  }
+
+  // the span that starts at token i and should be masked, or null
+  private MaskedSpan findSpan(List<CoreLabel> tokens, int i, PhoneNumberEntityAnnotator.PhoneNumberScanner phoneScanner) {
+    CoreLabel token = tokens.get(i);
+    String word = token.word();
+    String type = null;
+    int length = 0;
+
+    CoreMap quote = token.get(QuoteAnnotation.class);
+    EntityPatternMatcher.Match match;
+    if (quote != null) {
+      // mask what is inside the quotes, if this is the first token after the
+      // opening quote, and the tokens of the quote are all in this sentence
+      List<CoreLabel> quoteTokens = quote.get(CoreAnnotations.TokensAnnotation.class);
+      if (quoteTokens.size() < 3 || quoteTokens.get(1) != token || i == 0 || tokens.get(i - 1) != quoteTokens.get(0))
+        return null;
+      length = quoteTokens.size() - 2;
+      if (i + length >= tokens.size() || tokens.get(i + length) != quoteTokens.get(quoteTokens.size() - 1))
+        return null;
+      type = "QUOTED_STRING";
+    } else if ((match = matcher.match(word)) != null && placeholders.containsKey(match.type)) {
+      type = match.type;
+      length = 1;
+    } else if (word.startsWith("+")) {
+      // only phone numbers with an international prefix, which cannot be
+      // mistaken for dates or times
+      if (phoneScanner.tryParse(i) == null)
+        return null;
+      type = "PHONE_NUMBER";
+      length = phoneScanner.consumedTokens();
+    } else {
+      return null;
+    }
+
+    List<CoreLabel> span = new ArrayList<>(tokens.subList(i, i + length));
+    return new MaskedSpan(type, makePlaceholder(placeholders.get(type), span), span);
+  }
+
+  private static CoreLabel makePlaceholder(String word, List<CoreLabel> span) {
+    CoreLabel placeholder = new CoreLabel(span.get(0));
+    placeholder.setWord(word);
+    placeholder.setValue(word);
+    placeholder.setOriginalText(word);
+    placeholder.set(CoreAnnotations.CharacterOffsetEndAnnotation.class,
+        span.get(span.size() - 1).get(CoreAnnotations.CharacterOffsetEndAnnotation.class));
+    return placeholder;
+  }
+
+  @Override
+  public void annotate(Annotation document) {
+    List<MaskedSpan> masked = new ArrayList<>();
+    List<List<CoreLabel>> sentences = new ArrayList<>();
+    for (CoreMap sentence : document.get(CoreAnnotations.SentencesAnnotation.class)) {
+      List<CoreLabel> tokens = sentence.get(CoreAnnotations.TokensAnnotation.class);
+      List<CoreLabel> newTokens = new ArrayList<>(tokens.size());
+      PhoneNumberEntityAnnotator.PhoneNumberScanner phoneScanner = new PhoneNumberEntityAnnotator.PhoneNumberScanner(tokens);
+      for (int i = 0; i < tokens.size(); i++) {
+        MaskedSpan span = findSpan(tokens, i, phoneScanner);
+        if (span == null) {
+          newTokens.add(tokens.get(i));
+          continue;
+        }
+        masked.add(span);
+        newTokens.add(span.placeholder);
+        i += span.tokens.size() - 1;
+      }
+      sentences.add(newTokens);
+    }
+    if (masked.isEmpty())
+      return;
+
+    setTokens(document, sentences);
+    document.set(MaskedSpansAnnotation.class, masked);
+  }
+
+  /**
+   * Replace the tokens of each sentence of the document, keeping the token
+   * indices and offsets consistent.
+   */
+  static void setTokens(Annotation document, List<List<CoreLabel>> sentenceTokens) {
+    List<CoreMap> sentences = document.get(CoreAnnotations.SentencesAnnotation.class);
+    List<CoreLabel> allTokens = new ArrayList<>();
+    for (int s = 0; s < sentences.size(); s++) {
+      CoreMap sentence = sentences.get(s);
+      List<CoreLabel> tokens = sentenceTokens.get(s);
+      if (!tokens.isEmpty()) {
+        // keep the convention of the tokenizer, which numbers from 0 or 1
+        int firstIndex = sentence.get(CoreAnnotations.TokensAnnotation.class).get(0).index();
+        for (int i = 0; i < tokens.size(); i++)
+          tokens.get(i).setIndex(firstIndex + i);
+      }
+      sentence.set(CoreAnnotations.TokensAnnotation.class, tokens);
+      sentence.set(CoreAnnotations.TokenBeginAnnotation.class, allTokens.size());
+      sentence.set(CoreAnnotations.TokenEndAnnotation.class, allTokens.size() + tokens.size());
+      allTokens.addAll(tokens);
+    }
+    document.set(CoreAnnotations.TokensAnnotation.class, allTokens);
+  }
+
+  @Override
+  public Set<Class<? extends CoreAnnotation>> requirementsSatisfied() {
+    return Collections.unmodifiableSet(new ArraySet<>(Arrays.asList(
+        CoreAnnotations.TokensAnnotation.class,
+        MaskedSpansAnnotation.class)));
+  }
+
+  @Override
+  public Set<Class<? extends CoreAnnotation>> requires() {
+    return Collections.unmodifiableSet(new ArraySet<>(Arrays.asList(
+        CoreAnnotations.TextAnnotation.class,
+        CoreAnnotations.TokensAnnotation.class,
+        CoreAnnotations.SentencesAnnotation.class,
+        CoreAnnotations.QuotationsAnnotation.class)));
+  }
+}
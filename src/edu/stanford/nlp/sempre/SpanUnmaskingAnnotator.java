@@ -0,0 +1,75 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import edu.stanford.nlp.ling.CoreAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.sempre.SpanMaskingAnnotator.MaskedSpan;
+import edu.stanford.nlp.sempre.SpanMaskingAnnotator.MaskedSpansAnnotation;
+import edu.stanford.nlp.util.ArraySet;
+import edu.stanford.nlp.util.CoreMap;
+
+/**
+ * Put back the tokens masked by SpanMaskingAnnotator.
+ *
+ * The original tokens get the part of speech of their placeholder (or CD, for
+ * the numbers in phone numbers, as the tagger would have said), their word as
+ * lemma, and no entity, which our entity annotators then fill in.
+ */
+public class SpanUnmaskingAnnotator implements Annotator {
+  private static final Pattern NUMBER = Pattern.compile("[0-9()\\-+]*[0-9][0-9()\\-+]*");
+
+  public SpanUnmaskingAnnotator(String name, Properties props) {
+  }
+
+  @Override
+  public void annotate(Annotation document) {
+    List<MaskedSpan> masked = document.get(MaskedSpansAnnotation.class);
+    if (masked == null)
+      return;
+    Map<CoreLabel, MaskedSpan> placeholders = new IdentityHashMap<>();
+    for (MaskedSpan span : masked)
+      placeholders.put(span.placeholder, span);
+
+    List<List<CoreLabel>> sentences = new ArrayList<>();
+    for (CoreMap sentence : document.get(CoreAnnotations.SentencesAnnotation.class)) {
+      List<CoreLabel> newTokens = new ArrayList<>();
+      for (CoreLabel token : sentence.get(CoreAnnotations.TokensAnnotation.class)) {
+        MaskedSpan span = placeholders.get(token);
+        if (span == null) {
+          newTokens.add(token);
+          continue;
+        }
+        for (CoreLabel original : span.tokens) {
+          if ("PHONE_NUMBER".equals(span.type) && NUMBER.matcher(original.word()).matches())
+            original.setTag("CD");
+          else
+            original.setTag(token.tag());
+          original.setLemma(original.word());
+          original.setNER("O");
+          newTokens.add(original);
+        }
+      }
+      sentences.add(newTokens);
+    }
+    SpanMaskingAnnotator.setTokens(document, sentences);
+    document.remove(MaskedSpansAnnotation.class);
+  }
+
+  @Override
+  public Set<Class<? extends CoreAnnotation>> requirementsSatisfied() {
+    return Collections.unmodifiableSet(new ArraySet<>(Arrays.asList(
+        CoreAnnotations.TokensAnnotation.class)));
+  }
+
+  @Override
+  public Set<Class<? extends CoreAnnotation>> requires() {
+    return Collections.unmodifiableSet(new ArraySet<>(Arrays.asList(
+        CoreAnnotations.TokensAnnotation.class,
+        CoreAnnotations.SentencesAnnotation.class)));
+  }
+}
@@ -0,0 +1,209 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.Annotator;
+
+/**
+ * Runs a chain of CoreNLP annotators as a series of stages, each with its own
+ * threads and its own bounded queue, in the style of SEDA.
+ *
+ * A request goes through the stages in order, and the next request can start
+ * the first stage while the previous one is still in the later ones. Because
+ * each thread always runs the same few annotators, their models stay in its
+ * caches, and the slow stages (the parser) can have more threads than the
+ * fast ones (the tokenizer). When a queue is full, the previous stage waits,
+ * so the backlog stays in the scheduler lanes in front of the pipeline.
+ *
+ * The snapshot reports how busy each stage is, and how many of the threads it
+ * should get in proportion, to tune the sizes of the stages.
+ *
+ * Like the workers of LaneScheduler, the threads of the stages are daemons,
+ * and run as long as the JVM does.
+ */
+public class StagedPipeline {
+  private final List<Stage> stages = new ArrayList<>();
+  private final Set<String> optional;
+
+  private static class Job {
+    final Annotation annotation;
+    final BooleanSupplier cancelled;
+    final boolean skipOptional;
+    final CompletableFuture<Annotation> result = new CompletableFuture<>();
+    long enqueueTime;
+
+    Job(Annotation annotation, BooleanSupplier cancelled, boolean skipOptional) {
+      this.annotation = annotation;
+      this.cancelled = cancelled;
+      this.skipOptional = skipOptional;
+    }
+  }
+
+  private class Stage {
+    final String name;
+    final List<Annotator> annotators;
+    final List<String> annotatorNames;
+    final BlockingQueue<Job> queue;
+    final List<Thread> threads = new ArrayList<>();
+    Stage next;
+
+    final LongAdder processed = new LongAdder();
+    final LongAdder busyNanos = new LongAdder();
+    final LongAdder waitNanos = new LongAdder();
+
+    Stage(String name, List<Annotator> annotators, List<String> annotatorNames, int threads, int capacity) {
+      this.name = name;
+      this.annotators = annotators;
+      this.annotatorNames = annotatorNames;
+      this.queue = new ArrayBlockingQueue<>(capacity);
+      for (int i = 0; i < threads; i++) {
+        Thread thread = new Thread(this::work, "stage-" + name + "-" + i);
+        thread.setDaemon(true);
+        this.threads.add(thread);
+      }
+    }
+
+    void put(Job job) throws InterruptedException {
+      job.enqueueTime = System.nanoTime();
+      queue.put(job);
+    }
+
+    private void work() {
+      while (true) {
+        Job job;
+        try {
+          job = queue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        long start = System.nanoTime();
+        waitNanos.add(start - job.enqueueTime);
+        try {
+          for (int i = 0; i < annotators.size(); i++) {
+            if (job.skipOptional && optional.contains(annotatorNames.get(i)))
+              continue;
+            if (job.cancelled.getAsBoolean())
+              throw new CancellationException();
+            annotators.get(i).annotate(job.annotation);
+          }
+        } catch (Throwable t) {
+          job.result.completeExceptionally(t);
+          continue;
+        } finally {
+          busyNanos.add(System.nanoTime() - start);
+          processed.increment();
+        }
+
+        if (next == null) {
+          job.result.complete(job.annotation);
+          continue;
+        }
+        try {
+          next.put(job);
+        } catch (InterruptedException e) {
+          job.result.completeExceptionally(e);
+          return;
+        }
+      }
+    }
+
+    Map<String, Object> snapshot(double totalBusyNanos, int totalThreads) {
+      long processed = this.processed.sum();
+      long busyNanos = this.busyNanos.sum();
+
+      Map<String, Object> snapshot = new LinkedHashMap<>();
+      snapshot.put("annotators", annotatorNames);
+      snapshot.put("threads", threads.size());
+      snapshot.put("queued", queue.size());
+      snapshot.put("processed", processed);
+      snapshot.put("meanServiceMs", processed > 0 ? busyNanos / 1e6 / processed : 0.0);
+      snapshot.put("meanWaitMs", processed > 0 ? waitNanos.sum() / 1e6 / processed : 0.0);
+      // give each stage threads in proportion to the time spent in it, so that
+      // all stages can keep up with the same rate of requests
+      snapshot.put("suggestedThreads", totalBusyNanos > 0 ?
+          Math.max(1, (int) Math.round(totalThreads * busyNanos / totalBusyNanos)) : threads.size());
+      return snapshot;
+    }
+  }
+
+  /**
+   * @param annotators the annotators, in the order they must run
+   * @param annotatorNames the name of each annotator
+   * @param stageStarts the annotators that start a new stage, mapped to the name of the stage;
+   * the annotators before the first of them form a stage called "tokenize"
+   * @param stageThreads the number of threads of each stage, by name
+   * @param defaultThreads the number of threads of the stages not in stageThreads
+   * @param capacity the number of requests that can wait in front of each stage
+   * @param optional the annotators that requests can skip
+   */
+  public StagedPipeline(List<Annotator> annotators, List<String> annotatorNames, Map<String, String> stageStarts,
+      Map<String, Integer> stageThreads, int defaultThreads, int capacity, Collection<String> optional) {
+    this.optional = new HashSet<>(optional);
+
+    String name = "tokenize";
+    int start = 0;
+    for (int i = 0; i <= annotators.size(); i++) {
+      String nextName = i < annotators.size() ? stageStarts.get(annotatorNames.get(i)) : null;
+      if (i < annotators.size() && nextName == null)
+        continue;
+      if (i > start) {
+        int threads = stageThreads.getOrDefault(name, defaultThreads);
+        stages.add(new Stage(name, annotators.subList(start, i), annotatorNames.subList(start, i), threads, capacity));
+      }
+      name = nextName;
+      start = i;
+    }
+    for (int i = 0; i < stages.size() - 1; i++)
+      stages.get(i).next = stages.get(i + 1);
+    for (Stage stage : stages) {
+      for (Thread thread : stage.threads)
+        thread.start();
+    }
+  }
+
+  /**
+   * Run all the stages on the annotation, and wait for them to finish.
+   *
+   * cancelled is checked between annotators, on the threads of the stages.
+   *
+   * @param skipOptional whether to skip the optional annotators
+   * @throws CancellationException if cancelled returns true
+   */
+  public Annotation annotate(Annotation annotation, BooleanSupplier cancelled, boolean skipOptional) {
+    Job job = new Job(annotation, cancelled, skipOptional);
+    try {
+      stages.get(0).put(job);
+      return job.result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * The state of each stage, keyed by name, in a form that can be serialized as JSON.
+   */
+  public Map<String, Object> snapshot() {
+    double totalBusyNanos = 0;
+    int totalThreads = 0;
+    for (Stage stage : stages) {
+      totalBusyNanos += stage.busyNanos.sum();
+      totalThreads += stage.threads.size();
+    }
+    Map<String, Object> snapshot = new LinkedHashMap<>();
+    for (Stage stage : stages)
+      snapshot.put(stage.name, stage.snapshot(totalBusyNanos, totalThreads));
+    return snapshot;
+  }
+}
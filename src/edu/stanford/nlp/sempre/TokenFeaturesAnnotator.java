@@ -0,0 +1,197 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.stanford.nlp.ling.CoreAnnotation;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.pipeline.Annotation;
+import edu.stanford.nlp.pipeline.Annotator;
+import edu.stanford.nlp.util.ArraySet;
+
+/**
+ * Compute, once per token, a bitmask of the kinds of characters in its word,
+ * so that our entity annotators can skip the tokens that cannot be entities
+ * (most of them are plain lowercase words) without running their regular
+ * expressions.
+ *
+ * The annotators count how many tokens they skip, in the SkipCounters set on
+ * the document by the CoreNLPAnalyzer, so that each analyzer, and each
+ * TokenizerService, reports its own counts in the metrics.
+ */
+public class TokenFeaturesAnnotator implements Annotator {
+  public static class TokenFeaturesAnnotation implements CoreAnnotation<Integer> {
+    @Override
+    public Class<Integer> getType() {
+      return Integer.class;
+    }
+  }
+
+  // the word contains...
+  public static final int DIGIT = 1;
+  public static final int LETTER = 1 << 1;
+  public static final int UPPER = 1 << 2;
+  public static final int AT = 1 << 3;
+  public static final int HASH = 1 << 4;
+  public static final int DOT = 1 << 5;
+  public static final int SLASH = 1 << 6;
+  public static final int COLON = 1 << 7;
+  public static final int PLUS = 1 << 8;
+  public static final int DASH = 1 << 9;
+  public static final int PAREN = 1 << 10;
+  public static final int STAR = 1 << 11;
+  // any other ASCII character
+  public static final int OTHER = 1 << 12;
+  public static final int NON_ASCII = 1 << 13;
+  // the word is made of letters only
+  public static final int ALL_LETTERS = 1 << 14;
+  // the word has at most 2 characters
+  public static final int SHORT = 1 << 15;
+  // the word has at least 6 characters
+  public static final int LONG = 1 << 16;
+
+  private static final int[] ASCII_FEATURES = new int[128];
+  static {
+    for (char c = 0; c < 128; c++) {
+      int feature;
+      if (c >= '0' && c <= '9')
+        feature = DIGIT;
+      else if (c >= 'a' && c <= 'z')
+        feature = LETTER;
+      else if (c >= 'A' && c <= 'Z')
+        feature = LETTER | UPPER;
+      else if (c == '@')
+        feature = AT;
+      else if (c == '#')
+        feature = HASH;
+      else if (c == '.')
+        feature = DOT;
+      else if (c == '/')
+        feature = SLASH;
+      else if (c == ':')
+        feature = COLON;
+      else if (c == '+')
+        feature = PLUS;
+      else if (c == '-')
+        feature = DASH;
+      else if (c == '(' || c == ')')
+        feature = PAREN;
+      else if (c == '*')
+        feature = STAR;
+      else
+        feature = OTHER;
+      ASCII_FEATURES[c] = feature;
+    }
+  }
+
+  /**
+   * The features of a word that contains the given character.
+   */
+  public static int ofChar(char c) {
+    if (c < 128)
+      return ASCII_FEATURES[c];
+    return Character.isLetter(c) ? NON_ASCII | LETTER : NON_ASCII;
+  }
+
+  public static int compute(String word) {
+    int features = 0;
+    boolean allLetters = !word.isEmpty();
+    for (int i = 0; i < word.length(); i++) {
+      char c = word.charAt(i);
+      features |= ofChar(c);
+      if (allLetters && !Character.isLetter(c))
+        allLetters = false;
+    }
+    if (allLetters)
+      features |= ALL_LETTERS;
+    if (word.length() <= 2)
+      features |= SHORT;
+    if (word.length() >= 6)
+      features |= LONG;
+    return features;
+  }
+
+  /**
+   * The features of the token, computed now if this annotator has not run.
+   */
+  public static int get(CoreLabel token) {
+    Integer features = token.get(TokenFeaturesAnnotation.class);
+    return features != null ? features : compute(token.word());
+  }
+
+  @Override
+  public void annotate(Annotation annotation) {
+    for (CoreLabel token : annotation.get(CoreAnnotations.TokensAnnotation.class))
+      token.set(TokenFeaturesAnnotation.class, compute(token.word()));
+  }
+
+  /**
+   * The counters of skipped tokens of a document.
+   */
+  public static class SkipCountersAnnotation implements CoreAnnotation<SkipCounters> {
+    @Override
+    public Class<SkipCounters> getType() {
+      return SkipCounters.class;
+    }
+  }
+
+  /**
+   * The tokens seen and skipped by each annotator, over many documents.
+   */
+  public static class SkipCounters {
+    private static class Counts {
+      final LongAdder tokens = new LongAdder();
+      final LongAdder skipped = new LongAdder();
+    }
+
+    private final Map<String, Counts> counts = new ConcurrentHashMap<>();
+
+    void record(String annotator, int tokens, int skipped) {
+      Counts counter = counts.computeIfAbsent(annotator, key -> new Counts());
+      counter.tokens.add(tokens);
+      counter.skipped.add(skipped);
+    }
+
+    /**
+     * The tokens seen and skipped by each annotator, in a form that can be serialized as JSON.
+     */
+    public Map<String, Object> snapshot() {
+      Map<String, Object> snapshot = new TreeMap<>();
+      for (Map.Entry<String, Counts> entry : counts.entrySet()) {
+        long tokens = entry.getValue().tokens.sum();
+        long skipped = entry.getValue().skipped.sum();
+        Map<String, Object> counts = new LinkedHashMap<>();
+        counts.put("tokens", tokens);
+        counts.put("skipped", skipped);
+        counts.put("skipRate", tokens > 0 ? (double) skipped / tokens : 0.0);
+        snapshot.put(entry.getKey(), counts);
+      }
+      return snapshot;
+    }
+  }
+
+  /**
+   * Record that an annotator looked at some tokens of the document, and
+   * skipped some of them because of their features, if the document has
+   * counters.
+   */
+  static void recordSkipped(Annotation document, String annotator, int tokens, int skipped) {
+    SkipCounters counters = document.get(SkipCountersAnnotation.class);
+    if (counters != null)
+      counters.record(annotator, tokens, skipped);
+  }
+
+  @Override
+  public Set<Class<? extends CoreAnnotation>> requirementsSatisfied() {
+    return Collections.unmodifiableSet(new ArraySet<>(Arrays.asList(
+        TokenFeaturesAnnotation.class)));
+  }
+
+  @Override
+  public Set<Class<? extends CoreAnnotation>> requires() {
+    return Collections.unmodifiableSet(new ArraySet<>(Arrays.asList(
+        CoreAnnotations.TokensAnnotation.class)));
+  }
+}
@@ -0,0 +1,332 @@
+package edu.stanford.nlp.sempre;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A client for the JSON protocol of TokenizerServer.
+ *
+ * The client keeps a pool of connections, opened lazily, and sends each request
+ * on the connection with the fewest requests in flight. Requests are pipelined:
+ * they are written without waiting for the previous responses, and responses,
+ * which the server sends as soon as they are ready, are matched back to their
+ * request by req.
+ *
+ * All methods are thread-safe.
+ */
+public class TokenizerClient implements Closeable {
+  private final String host;
+  private final int port;
+  private final long defaultTimeoutMillis;
+  private final ObjectMapper object = new ObjectMapper();
+  private final ObjectReader responseReader = object.reader().withType(Response.class);
+  private final Connection[] pool;
+  private final AtomicInteger nextReq = new AtomicInteger();
+  private final ScheduledExecutorService timer;
+  private volatile boolean closed = false;
+
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  public static class Response {
+    @JsonProperty
+    public int req;
+
+    @JsonProperty
+    public List<String> tokens;
+
+    @JsonProperty
+    public List<String> tokensNoQuotes;
+
+    @JsonProperty
+    public List<String> rawTokens;
+
+    @JsonProperty
+    public List<String> pos;
+
+    @JsonProperty
+    public Map<String, Object> values;
+
+    @JsonProperty
+    public List<String> constituencyParse;
+
+    @JsonProperty
+    public String sentiment;
+
+    // whether the parser and the sentiment model were skipped
+    @JsonProperty
+    public boolean degraded;
+  }
+
+  /**
+   * The server answered the request with an error.
+   */
+  public static class ServerErrorException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ServerErrorException(String message) {
+      super(message);
+    }
+  }
+
+  private class Connection {
+    private final Socket socket;
+    private final OutputStream outputStream;
+    private final Map<Integer, CompletableFuture<Response>> pending = new ConcurrentHashMap<>();
+    private volatile boolean broken = false;
+
+    Connection() throws IOException {
+      socket = new Socket(host, port);
+      socket.setTcpNoDelay(true);
+      outputStream = new BufferedOutputStream(socket.getOutputStream());
+
+      Thread reader = new Thread(this::readResponses, "tokenizer-client-" + host + ":" + port);
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    int inFlight() {
+      return pending.size();
+    }
+
+    void send(int req, byte[] line, CompletableFuture<Response> future) {
+      pending.put(req, future);
+      if (broken) {
+        // the connection failed before we registered the request
+        pending.remove(req);
+        future.completeExceptionally(new IOException("Connection to the tokenizer failed"));
+        return;
+      }
+      try {
+        synchronized (this) {
+          outputStream.write(line);
+          outputStream.flush();
+        }
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    void cancel(int req) {
+      pending.remove(req);
+    }
+
+    private void readResponses() {
+      try {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+            StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+          JsonNode node = object.readTree(line);
+          JsonNode req = node.get("req");
+          if (req == null)
+            continue;
+          CompletableFuture<Response> future = pending.remove(req.asInt());
+          if (future == null) {
+            // timed out already
+            continue;
+          }
+          if (node.has("error"))
+            future.completeExceptionally(new ServerErrorException(node.get("error").asText()));
+          else
+            future.complete(responseReader.readValue(node));
+        }
+        fail(new EOFException("Connection closed by the tokenizer"));
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    private void fail(IOException e) {
+      broken = true;
+      try {
+        socket.close();
+      } catch (IOException e1) {
+        // ignore
+      }
+      for (Integer req : new ArrayList<>(pending.keySet())) {
+        CompletableFuture<Response> future = pending.remove(req);
+        if (future != null)
+          future.completeExceptionally(e);
+      }
+    }
+
+    void close() {
+      fail(new IOException("Client closed"));
+    }
+  }
+
+  /**
+   * @param poolSize how many connections to open to the server, at most
+   * @param defaultTimeoutMillis how long to wait for a response, when not specified per request
+   */
+  public TokenizerClient(String host, int port, int poolSize, long defaultTimeoutMillis) {
+    this.host = host;
+    this.port = port;
+    this.defaultTimeoutMillis = defaultTimeoutMillis;
+    this.pool = new Connection[poolSize];
+
+    object.getFactory()
+        .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    timer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+      Thread thread = new Thread(runnable, "tokenizer-client-timeouts");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public TokenizerClient(String host, int port) {
+    this(host, port, 4, 30000);
+  }
+
+  // pick the connection with the fewest requests in flight, (re)connecting
+  // empty or broken slots first
+  private synchronized Connection pickConnection() throws IOException {
+    if (closed)
+      throw new IOException("Client closed");
+
+    Connection best = null;
+    for (int i = 0; i < pool.length; i++) {
+      if (pool[i] == null || pool[i].broken) {
+        pool[i] = new Connection();
+        return pool[i];
+      }
+      if (best == null || pool[i].inFlight() < best.inFlight())
+        best = pool[i];
+    }
+    return best;
+  }
+
+  /**
+   * Tokenize one utterance, with the default timeout.
+   *
+   * @param expect what kind of answer the utterance is expected to be, or null
+   */
+  public CompletableFuture<Response> tokenize(String localeTag, String utterance, String expect) {
+    return tokenize(localeTag, utterance, expect, defaultTimeoutMillis, TimeUnit.MILLISECONDS, null);
+  }
+
+  /**
+   * Tokenize one utterance, with the given timeout.
+   */
+  public CompletableFuture<Response> tokenize(String localeTag, String utterance, String expect, long timeout,
+      TimeUnit unit) {
+    return tokenize(localeTag, utterance, expect, timeout, unit, null);
+  }
+
+  /**
+   * Tokenize one utterance.
+   *
+   * The future fails with a TimeoutException if the response does not arrive
+   * in time, with a ServerErrorException if the server returns an error, and
+   * with an IOException if the connection fails.
+   *
+   * @param priority "interactive" or "bulk", or null for the server's default
+   */
+  public CompletableFuture<Response> tokenize(String localeTag, String utterance, String expect, long timeout,
+      TimeUnit unit, String priority) {
+    CompletableFuture<Response> future = new CompletableFuture<>();
+    int req = nextReq.getAndIncrement();
+
+    Connection connection;
+    byte[] line;
+    try {
+      connection = pickConnection();
+
+      ObjectNode request = object.createObjectNode();
+      request.put("req", req);
+      request.put("languageTag", localeTag);
+      request.put("utterance", utterance);
+      if (expect != null)
+        request.put("expect", expect);
+      // let the server give up too, rather than finishing work nobody will read
+      request.put("timeout", (int) Math.min(unit.toMillis(timeout), Integer.MAX_VALUE));
+      if (priority != null)
+        request.put("priority", priority);
+      byte[] json = object.writeValueAsBytes(request);
+      line = Arrays.copyOf(json, json.length + 1);
+      line[json.length] = '\n';
+    } catch (IOException e) {
+      future.completeExceptionally(e);
+      return future;
+    }
+
+    ScheduledFuture<?> timeoutTask = timer.schedule(() -> {
+      connection.cancel(req);
+      future.completeExceptionally(new TimeoutException("Tokenizer request timed out"));
+    }, timeout, unit);
+    future.whenComplete((result, error) -> timeoutTask.cancel(false));
+
+    connection.send(req, line, future);
+    return future;
+  }
+
+  /**
+   * Tokenize a batch of utterances in the same locale.
+   *
+   * The requests are spread over the pool and pipelined. The results are in the
+   * same order as the utterances, and the future fails if any request fails.
+   * Batches are sent with bulk priority, so they do not delay interactive requests.
+   */
+  public CompletableFuture<List<Response>> tokenizeBatch(String localeTag, List<String> utterances, String expect) {
+    List<CompletableFuture<Response>> futures = new ArrayList<>(utterances.size());
+    for (String utterance : utterances)
+      futures.add(tokenize(localeTag, utterance, expect, defaultTimeoutMillis, TimeUnit.MILLISECONDS, "bulk"));
+
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply((ignored) -> {
+      List<Response> responses = new ArrayList<>(futures.size());
+      for (CompletableFuture<Response> future : futures)
+        responses.add(future.join());
+      return responses;
+    });
+  }
+
+  /**
+   * Close all connections. Requests still in flight fail.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    for (Connection connection : pool) {
+      if (connection != null)
+        connection.close();
+    }
+    timer.shutdownNow();
+  }
+
+  // Tokenize the lines read from stdin, and print the tokens
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.err.println("Usage: TokenizerClient <host:port> <locale>");
+      System.exit(1);
+    }
+    int colon = args[0].lastIndexOf(':');
+    String host = args[0].substring(0, colon);
+    int port = Integer.parseInt(args[0].substring(colon + 1));
+
+    List<String> utterances = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null)
+        utterances.add(line);
+    }
+
+    try (TokenizerClient client = new TokenizerClient(host, port)) {
+      for (Response response : client.tokenizeBatch(args[1], utterances, null).get())
+        System.out.println(String.join(" ", response.tokens));
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters for the requests processed by a TokenizerService.
+ *
+ * The counters are cheap enough to update from every request, and can be read
+ * at any time with snapshot().
+ */
+public class TokenizerMetrics {
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder processingNanos = new LongAdder();
+  private final LongAdder droppedQueued = new LongAdder();
+  private final LongAdder droppedRunning = new LongAdder();
+  private final LongAdder parseSkipped = new LongAdder();
+  private final LongAdder degraded = new LongAdder();
+  private final Map<String, Supplier<Object>> sections = new ConcurrentHashMap<>();
+
+  void recordRequest(long nanos, boolean failed) {
+    requests.increment();
+    if (failed)
+      failures.increment();
+    processingNanos.add(nanos);
+  }
+
+  /**
+   * Record a request that was cancelled, because its deadline passed or its
+   * client went away.
+   *
+   * @param started whether the analysis had started already
+   */
+  void recordDropped(boolean started) {
+    if (started)
+      droppedRunning.increment();
+    else
+      droppedQueued.increment();
+  }
+
+  /**
+   * Include the state of another component in the snapshots, under the given name.
+   */
+  void addSection(String name, Supplier<Object> section) {
+    sections.put(name, section);
+  }
+
+  /**
+   * Record a request that was analyzed without the parser, because it was too long.
+   */
+  void recordParseSkipped() {
+    parseSkipped.increment();
+  }
+
+  /**
+   * Record a request that was analyzed without the parser, because its lane was overloaded.
+   */
+  void recordDegraded() {
+    degraded.increment();
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  public long getDropped() {
+    return droppedQueued.sum() + droppedRunning.sum();
+  }
+
+  /**
+   * The current value of all counters, keyed by name, in a form that can be
+   * serialized as JSON.
+   */
+  public Map<String, Object> snapshot() {
+    long requests = this.requests.sum();
+    long processingNanos = this.processingNanos.sum();
+
+    Map<String, Object> snapshot = new LinkedHashMap<>();
+    snapshot.put("requests", requests);
+    snapshot.put("failures", failures.sum());
+    snapshot.put("meanProcessingMs", requests > 0 ? processingNanos / 1e6 / requests : 0.0);
+    snapshot.put("droppedQueued", droppedQueued.sum());
+    snapshot.put("droppedRunning", droppedRunning.sum());
+    snapshot.put("parseSkipped", parseSkipped.sum());
+    snapshot.put("degradedForOverload", degraded.sum());
+    for (Map.Entry<String, Supplier<Object>> section : sections.entrySet())
+      snapshot.put(section.getKey(), section.getValue().get());
+    return snapshot;
+  }
+}
@@ -3,24 +3,27 @@ package edu.stanford.nlp.sempre;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.*;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class TokenizerServer {
   private static final int DEFAULT_PORT = 8888;
+  private static final long DEFAULT_OVERLOAD_QUEUE_DELAY_MILLIS = 1000;
 
   private final ObjectMapper object = new ObjectMapper();
-  private final ServerSocket server;
-  private final Map<LocaleTag, CoreNLPAnalyzer> analyzers = new HashMap<>();
-  private final Seq2SeqTokenizer tokenizer = new Seq2SeqTokenizer();
-  private final Executor threadPool = Executors.newWorkStealingPool();
+  private final TokenizerService service;
+  private final ObjectWriter errorWriter = object.writer().withType(Error.class);
 
   public static class Input {
     @JsonProperty
@@ -34,6 +37,79 @@ public class TokenizerServer {
 
     @JsonProperty
     String expect;
+
+    // how long the client is willing to wait for the answer, in milliseconds,
+    // counted from when the server reads the request (0 means forever)
+    @JsonProperty
+    int timeout;
+
+    // the System.nanoTime() at which the request is abandoned, if timeout is set
+    long deadline;
+
+    // "interactive" (the default) or "bulk"
+    @JsonProperty
+    String priority;
+
+    // only set on the protocol handshake, see BinaryProtocol
+    String protocol;
+
+    // only set on the protocol handshake: the client will close its side of
+    // the connection once it has sent all its requests, and still wants the
+    // answers, so the end of the input does not mean the client is gone
+    boolean halfClose;
+
+    // only set on control messages, such as {"req":1,"command":"metrics"}
+    String command;
+
+    /**
+     * Read an input directly from the parser, which must be positioned on the
+     * start of the object.
+     *
+     * This is equivalent to data binding, but it avoids the overhead, and it
+     * ignores unknown fields instead of failing.
+     */
+    static Input read(JsonParser parser) throws IOException {
+      if (parser.getCurrentToken() != JsonToken.START_OBJECT)
+        throw new JsonParseException("Expected an object", parser.getCurrentLocation());
+
+      Input input = new Input();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String fieldName = parser.getCurrentName();
+        parser.nextToken();
+        switch (fieldName) {
+        case "req":
+          input.req = parser.getValueAsInt();
+          break;
+        case "languageTag":
+          input.localeTag = parser.getValueAsString();
+          break;
+        case "utterance":
+          input.utterance = parser.getValueAsString();
+          break;
+        case "expect":
+          input.expect = parser.getValueAsString();
+          break;
+        case "timeout":
+          input.timeout = parser.getValueAsInt();
+          break;
+        case "priority":
+          input.priority = parser.getValueAsString();
+          break;
+        case "protocol":
+          input.protocol = parser.getValueAsString();
+          break;
+        case "halfClose":
+          input.halfClose = parser.getValueAsBoolean();
+          break;
+        case "command":
+          input.command = parser.getValueAsString();
+          break;
+        default:
+          parser.skipChildren();
+        }
+      }
+      return input;
+    }
   }
 
   public static class Output {
@@ -61,6 +137,11 @@ public class TokenizerServer {
     @JsonProperty
     final String sentiment;
 
+    // only present (and true) if the parser and the sentiment model were skipped
+    @JsonProperty
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    final Boolean degraded;
+
     Output(int req, Seq2SeqTokenizer.Result tokenizerResult) {
       this.req = req;
       this.tokens = tokenizerResult.tokens;
@@ -69,6 +150,16 @@ public class TokenizerServer {
       this.pos = tokenizerResult.posTags;
       this.constituencyParse = Collections.emptyList();
       this.sentiment = tokenizerResult.sentiment;
+      this.degraded = tokenizerResult.degraded ? Boolean.TRUE : null;
+
+      for (Map.Entry<Value, List<Integer>> entry : tokenizerResult.entities.entrySet()) {
+        Value entity = entry.getKey();
+        String entityType = entity.type;
+        for (int entityNum : entry.getValue()) {
+          String entityToken = OutputSerializer.entityToken(entityType, entityNum);
+          values.put(entityToken, entity.value);
+        }
+      }
     }
   }
   
@@ -85,103 +176,230 @@ public class TokenizerServer {
     }
   }
 
-  private TokenizerServer(int port, String[] localeTags) throws IOException {
-    LocaleTag[] locales = new LocaleTag[localeTags.length];
-    for (int i = 0; i < localeTags.length; i++) {
-      String localeTag = localeTags[i];
-      locales[i] = new LocaleTag(localeTag);
-      analyzers.put(locales[i], new CoreNLPAnalyzer(locales[i]));
-    }
+  private TokenizerServer(TokenizerService.Options options, String[] localeTags) {
+    service = new TokenizerService(options, localeTags);
 
     object.getFactory()
         .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
         .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
-
-    server = new ServerSocket(port);
   }
 
-  public void run() throws IOException {
+  private void serveTcp(ServerSocket server) {
     while (true) {
-      Socket socket = server.accept();
-      new Thread(() -> handleConnection(socket)).start();
+      try {
+        Socket socket = server.accept();
+        InputStream inputStream = socket.getInputStream();
+        OutputStream outputStream = socket.getOutputStream();
+        new Thread(() -> handleConnection(inputStream, outputStream, socket)).start();
+      } catch (IOException e) {
+        System.err.println("Failed to accept TCP connection: " + e.getMessage());
+        e.printStackTrace(System.err);
+      }
     }
   }
 
-  private synchronized void writeOutput(Writer outputStream, Output output) {
-    ObjectWriter writer = object.writer().withType(Output.class);
-    try {
-      writer.writeValue(outputStream, output);
-      outputStream.append('\n');
-      outputStream.flush();
-    } catch (IOException e) {
-      System.err.println("Failed to write tokenizer output out: " + e.getMessage());
-      e.printStackTrace(System.err);
+  private void serveUnix(ServerSocketChannel server) {
+    while (true) {
+      try {
+        SocketChannel channel = server.accept();
+        new Thread(() -> handleConnection(UnixSocketTransport.getInputStream(channel),
+            UnixSocketTransport.getOutputStream(channel), channel)).start();
+      } catch (IOException e) {
+        System.err.println("Failed to accept UNIX socket connection: " + e.getMessage());
+        e.printStackTrace(System.err);
+      }
     }
   }
-  
-  private synchronized void writeError(Writer outputStream, Error err) {
-    ObjectWriter writer = object.writer().withType(Error.class);
-    try {
-      writer.writeValue(outputStream, err);
-      outputStream.append('\n');
-      outputStream.flush();
-    } catch (IOException e) {
-      System.err.println("Failed to write tokenizer output out: " + e.getMessage());
-      e.printStackTrace(System.err);
-    }
+
+  private void serveStdio() {
+    // keep stdout for the responses, anything else printed goes to stderr
+    OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+    System.setOut(System.err);
+    handleConnection(new FileInputStream(FileDescriptor.in), stdout, null);
   }
 
-  private void processInput(Writer outputStream, Input input) {
-    if (input.localeTag == null) {
-      writeError(outputStream, new Error(input.req, "Missing locale tag"));
-      return;
+  /**
+   * The write side of a client connection.
+   *
+   * Responses are written as soon as they are ready, possibly out of order,
+   * so writes are serialized per connection.
+   */
+  private class Connection {
+    private final OutputStream outputStream;
+    private volatile boolean binary = false;
+    private volatile boolean closed = false;
+    private int pending = 0;
+
+    Connection(OutputStream outputStream) {
+      this.outputStream = outputStream;
     }
-    LocaleTag localeTag = new LocaleTag(input.localeTag);
-    CoreNLPAnalyzer analyzer = null;
-    for (LocaleTag fallback : localeTag.getFallbacks()) {
-      analyzer = analyzers.get(fallback);
-      if (analyzer != null)
-        break;
+
+    void dispatch(Input input) {
+      // resolve the locale now, to pick the lane the request waits in
+      LocaleTag locale = service.resolveLocale(input.localeTag);
+      if (locale == null) {
+        writeError(new Error(input.req, input.localeTag == null ? "Missing locale tag" : "Unsupported locale tag"));
+        return;
+      }
+      FairQueue.Priority priority;
+      try {
+        priority = FairQueue.Priority.fromString(input.priority);
+      } catch (IllegalArgumentException e) {
+        writeError(new Error(input.req, e.getMessage()));
+        return;
+      }
+      if (input.timeout > 0)
+        input.deadline = System.nanoTime() + input.timeout * 1000000L;
+
+      synchronized (this) {
+        pending++;
+      }
+      try {
+        service.execute(locale, input.utterance, this, priority, () -> {
+          try {
+            processInput(this, input);
+          } finally {
+            done();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        writeError(new Error(input.req, "Too many requests"));
+        done();
+      }
     }
-    if (analyzer == null) {
-      writeError(outputStream, new Error(input.req, "Unsupported locale tag"));
-      return;
+
+    private synchronized void done() {
+      pending--;
+      if (pending == 0)
+        notifyAll();
     }
 
-    Output output;
-    try {
-      Example ex = new Example.Builder().setUtterance(input.utterance).setExpected(input.expect).createExample();
-      ex.preprocess(analyzer);
+    /**
+     * Wait until all the requests received so far have been answered.
+     */
+    synchronized void awaitIdle() throws InterruptedException {
+      while (pending > 0)
+        wait();
+    }
 
-      Seq2SeqTokenizer.Result result = tokenizer.process(ex);
-      output = new Output(input.req, result);
+    void switchToBinary() {
+      binary = true;
+    }
 
-      for (Map.Entry<Value, List<Integer>> entry : result.entities.entrySet()) {
-        Value entity = entry.getKey();
-        String entityType = entity.type;
-        for (int entityNum : entry.getValue()) {
-          String entityToken = entityType + "_" + entityNum;
-          output.values.put(entityToken, entity.value);
+    /**
+     * Whether the client is gone, so there is no point in answering anymore.
+     */
+    boolean isClosed() {
+      return closed;
+    }
+
+    void markClosed() {
+      closed = true;
+    }
+
+    void writeOutput(int req, Seq2SeqTokenizer.Result result) {
+      if (closed)
+        return;
+      try {
+        if (binary) {
+          Output output = new Output(req, result);
+          synchronized (this) {
+            BinaryProtocol.writeOutput(outputStream, output);
+            outputStream.flush();
+          }
+        } else {
+          // serialize outside of the lock, so other threads can write meanwhile
+          ByteArrayOutputStream line = OutputSerializer.serialize(req, result);
+          synchronized (this) {
+            line.writeTo(outputStream);
+            outputStream.flush();
+          }
+        }
+      } catch (IOException e) {
+        closed = true;
+        System.err.println("Failed to write tokenizer output out: " + e.getMessage());
+        e.printStackTrace(System.err);
+      }
+    }
+
+    synchronized void writeError(Error err) {
+      if (closed)
+        return;
+      try {
+        if (binary) {
+          BinaryProtocol.writeError(outputStream, err);
+        } else {
+          errorWriter.writeValue(outputStream, err);
+          outputStream.write('\n');
         }
+        outputStream.flush();
+      } catch (IOException e) {
+        closed = true;
+        System.err.println("Failed to write tokenizer output out: " + e.getMessage());
+        e.printStackTrace(System.err);
       }
+    }
+
+    synchronized void writeHandshake(String protocol) throws IOException {
+      ObjectNode ack = object.createObjectNode();
+      ack.put("protocol", protocol);
+      object.writeValue(outputStream, ack);
+      outputStream.write('\n');
+      outputStream.flush();
+    }
+
+    synchronized void writeMetrics(int req, Map<String, Object> metrics) throws IOException {
+      ObjectNode response = object.createObjectNode();
+      response.put("req", req);
+      response.set("metrics", object.valueToTree(metrics));
+      object.writeValue(outputStream, response);
+      outputStream.write('\n');
+      outputStream.flush();
+    }
+  }
+
+  private void processInput(Connection connection, Input input) {
+    // abandon the request, before it starts or between annotators, if the
+    // answer would come too late or would have nowhere to go
+    BooleanSupplier cancelled = () -> connection.isClosed() ||
+        (input.deadline != 0 && System.nanoTime() - input.deadline > 0);
+
+    Seq2SeqTokenizer.Result result;
+    try {
+      result = service.process(input.localeTag, input.utterance, input.expect, cancelled);
+    } catch (TokenizerService.UnsupportedLocaleException e) {
+      connection.writeError(new Error(input.req, e.getMessage()));
+      return;
+    } catch (CancellationException e) {
+      if (!connection.isClosed())
+        connection.writeError(new Error(input.req, "Deadline exceeded"));
+      return;
     } catch(Throwable t) {
-      writeError(outputStream, new Error(input.req, t.toString()));
+      connection.writeError(new Error(input.req, t.toString()));
       t.printStackTrace();
       return;
     }
 
-    writeOutput(outputStream, output);
+    connection.writeOutput(input.req, result);
   }
 
-  private void handleConnection(Socket s) {
-    try (Socket socket = s) {
-      Reader inputStream = new InputStreamReader(socket.getInputStream());
-      Writer outputStream = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+  private void processCommand(Connection connection, Input input) throws IOException {
+    if ("metrics".equals(input.command))
+      connection.writeMetrics(input.req, service.getMetrics().snapshot());
+    else
+      connection.writeError(new Error(input.req, "Unknown command " + input.command));
+  }
 
-      ObjectReader objReader = object.reader().withType(Input.class);
+  private void handleConnection(InputStream inputStream, OutputStream outputStream, Closeable resource) {
+    Connection connection = new Connection(new BufferedOutputStream(outputStream));
+    try {
+      // the parser reads UTF-8 directly from the stream, into buffers recycled by Jackson
       JsonParser parser = object.getFactory().createParser(inputStream);
+      boolean first = true;
+      // on stdio, the end of the input is how the client says it is done
+      boolean halfClose = resource == null;
 
-      while (!socket.isClosed()) {
+      while (true) {
         JsonToken nextToken = parser.nextToken();
         if (nextToken == null) {
           // eof
@@ -189,35 +407,154 @@ public class TokenizerServer {
         }
         Input next;
         try {
-          next = objReader.readValue(parser);
+          next = Input.read(parser);
+
+          // the first message can ask to switch to a different protocol
+          if (first && next.protocol != null) {
+            first = false;
+            halfClose |= next.halfClose;
+            if (BinaryProtocol.NAME.equals(next.protocol)) {
+              connection.writeHandshake(BinaryProtocol.NAME);
+              connection.switchToBinary();
+
+              // the parser might have read past the handshake already
+              ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+              parser.releaseBuffered(buffered);
+              handleBinaryConnection(connection, new SequenceInputStream(
+                  new ByteArrayInputStream(buffered.toByteArray()), inputStream));
+              break;
+            } else {
+              connection.writeHandshake("json");
+              continue;
+            }
+          }
+          first = false;
+
+          if (next.command != null) {
+            processCommand(connection, next);
+            continue;
+          }
         } catch (JsonProcessingException e) {
           System.err.println("Invalid JSON input: " + e.getMessage());
           e.printStackTrace();
           continue;
         }
 
-        threadPool.execute(() -> processInput(outputStream, next));
+        connection.dispatch(next);
       }
+
+      // unless the client said it would only close its side, the end of the
+      // input means it is gone: drop the requests still queued and stop those
+      // running, then wait for them to let go of the connection
+      if (!halfClose)
+        connection.markClosed();
+      connection.awaitIdle();
     } catch (EOFException e) {
-      return;
+      // the client went away in the middle of a frame
+      connection.markClosed();
     } catch (IOException e) {
+      connection.markClosed();
       System.err.println("IO error on connection: " + e.getMessage());
       e.printStackTrace(System.err);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      try {
+        if (resource != null)
+          resource.close();
+        else
+          outputStream.flush();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  private void handleBinaryConnection(Connection connection, InputStream inputStream) throws IOException {
+    BinaryProtocol.InputReader reader = new BinaryProtocol.InputReader(inputStream);
+    while (true) {
+      Input next = reader.read();
+      if (next == null)
+        break;
+      connection.dispatch(next);
     }
   }
 
   public static void main(String[] args) {
-    int port = DEFAULT_PORT;
-    if (args.length >= 2 && "--port".equals(args[0])) {
-      port = Integer.parseInt(args[1]);
-      args = Arrays.copyOfRange(args, 2, args.length);
+    Integer port = null;
+    String unixSocket = null;
+    boolean stdio = false;
+    TokenizerService.Options options = new TokenizerService.Options();
+    // the server would rather answer with less than time out
+    options.overloadQueueDelayMillis = DEFAULT_OVERLOAD_QUEUE_DELAY_MILLIS;
+
+    int i = 0;
+    for (; i < args.length; i++) {
+      if ("--port".equals(args[i]) && i < args.length - 1)
+        port = Integer.parseInt(args[++i]);
+      else if ("--unix-socket".equals(args[i]) && i < args.length - 1)
+        unixSocket = args[++i];
+      else if ("--stdio".equals(args[i]))
+        stdio = true;
+      else if ("--threads".equals(args[i]) && i < args.length - 1)
+        options.threads = Integer.parseInt(args[++i]);
+      else if ("--queue-size".equals(args[i]) && i < args.length - 1)
+        options.queueCapacity = Integer.parseInt(args[++i]);
+      else if ("--long-request-cost".equals(args[i]) && i < args.length - 1)
+        options.longRequestCost = Double.parseDouble(args[++i]);
+      else if ("--long-request-share".equals(args[i]) && i < args.length - 1)
+        options.longRequestShare = Double.parseDouble(args[++i]);
+      else if ("--max-parse-length".equals(args[i]) && i < args.length - 1)
+        options.maxParseLength = Integer.parseInt(args[++i]);
+      else if ("--overload-queue-delay".equals(args[i]) && i < args.length - 1)
+        options.overloadQueueDelayMillis = Long.parseLong(args[++i]);
+      else if ("--staged".equals(args[i]))
+        options.staged = true;
+      else if ("--parallel-annotators".equals(args[i]))
+        options.parallelAnnotators = true;
+      else if ("--mask-spans".equals(args[i]))
+        options.maskSpans = true;
+      else if ("--stage-threads".equals(args[i]) && i < args.length - 1) {
+        // --stage-threads parse=4
+        String[] threads = args[++i].split("=", 2);
+        options.stageThreads.put(threads[0], Integer.parseInt(threads[1]));
+        options.staged = true;
+      } else if ("--locale-share".equals(args[i]) && i < args.length - 1) {
+        // --locale-share it=0.25
+        String[] share = args[++i].split("=", 2);
+        options.shares.put(new LocaleTag(share[0]).toString(), Double.parseDouble(share[1]));
+      } else
+        break;
     }
+    args = Arrays.copyOfRange(args, i, args.length);
+
+    TokenizerServer server = new TokenizerServer(options, args);
+    if (stdio) {
+      // requests come from stdin, the server exits once they are all answered
+      server.serveStdio();
+      return;
+    }
+    if (port == null && unixSocket == null)
+      port = DEFAULT_PORT;
 
     try {
-      TokenizerServer server = new TokenizerServer(port, args);
-      server.run();
+      List<Thread> listeners = new ArrayList<>();
+      if (port != null) {
+        ServerSocket socket = new ServerSocket(port);
+        listeners.add(new Thread(() -> server.serveTcp(socket)));
+      }
+      if (unixSocket != null) {
+        ServerSocketChannel channel = UnixSocketTransport.listen(unixSocket);
+        listeners.add(new Thread(() -> server.serveUnix(channel)));
+      }
+      for (Thread listener : listeners)
+        listener.start();
+      for (Thread listener : listeners)
+        listener.join();
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
   }
 }
@@ -0,0 +1,394 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import edu.stanford.nlp.sempre.FairQueue.Priority;
+
+/**
+ * The tokenizer as a library.
+ *
+ * This is what TokenizerServer and BatchTokenizer use underneath, and JVM
+ * applications can embed it directly to avoid the cost of going through a
+ * socket and JSON. It is thread-safe: requests are analyzed concurrently on
+ * the service's workers. Requests whose future is completed or cancelled by
+ * the caller before they are done are abandoned, between CoreNLP annotators.
+ *
+ * Each locale has its own lane of work (see LaneScheduler), with a bounded
+ * queue and a guaranteed share of the workers, so that one busy language
+ * does not slow down the others. Within a locale, interactive requests go
+ * before bulk ones. Requests that CostModel expects to be expensive go
+ * instead to a separate lane, shared by all locales, where they are ordered
+ * shortest first, so that a few long paragraphs do not hold up short commands.
+ *
+ * Usage:
+ * <pre>
+ *   try (TokenizerService service = new TokenizerService("en", "it")) {
+ *     Seq2SeqTokenizer.Result result = service.tokenize("en-US", "wake me up at 7am", null).get();
+ *   }
+ * </pre>
+ */
+public class TokenizerService implements AutoCloseable {
+  private final Map<LocaleTag, CoreNLPAnalyzer> analyzers = new HashMap<>();
+  private final Seq2SeqTokenizer tokenizer = new Seq2SeqTokenizer();
+  private final LaneScheduler scheduler;
+  private final Map<LocaleTag, LaneScheduler.Lane> lanes = new HashMap<>();
+  private final Map<LocaleTag, LaneScheduler.Lane> longLanes = new HashMap<>();
+  private final double longRequestCost;
+  private final int maxParseLength;
+  private final Map<LaneScheduler.Lane, OverloadDetector> overloadDetectors = new LinkedHashMap<>();
+  private final TokenizerMetrics metrics = new TokenizerMetrics();
+
+  public static class Options {
+    // the number of worker threads, shared by all locales
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    // the fraction of the workers guaranteed to each locale, by locale tag;
+    // locales that are not listed split what is left equally
+    public Map<String, Double> shares = new HashMap<>();
+
+    // how many requests can wait for a worker, per locale
+    public int queueCapacity = 1024;
+
+    // the estimated cost (see CostModel) above which requests go to the lane of
+    // long requests; 8 is about 25 tokens
+    public double longRequestCost = 8;
+
+    // the fraction of the workers guaranteed to long requests, split between
+    // the locales in proportion to their shares
+    public double longRequestShare = 0.125;
+
+    // the number of tokens (as estimated by CostModel) above which the parser and
+    // the sentiment model are skipped, or 0 to never skip them
+    public int maxParseLength = 0;
+
+    // the queue delay, in milliseconds, above which a lane is overloaded and its
+    // requests skip the parser and the sentiment model (see OverloadDetector),
+    // or 0 to never skip them
+    public long overloadQueueDelayMillis = 0;
+
+    // whether to run the CoreNLP annotators in stages, each with its own threads
+    // (see StagedPipeline); the workers then only wait for the stages
+    public boolean staged = false;
+
+    // the number of threads of each stage, by name (tokenize, tag, ner, parse);
+    // stages that are not listed get a quarter of the workers
+    public Map<String, Integer> stageThreads = new HashMap<>();
+
+    // whether to run the annotators that do not depend on each other concurrently
+    // (see AnnotatorGraph), to answer long requests sooner when the workers are idle;
+    // not used with staged
+    public boolean parallelAnnotators = false;
+
+    // whether to hide quoted strings, URLs, email addresses and international
+    // phone numbers from the tagger, the parser and the sentiment model (see
+    // SpanMaskingAnnotator), so their cost depends on the command, not the payload
+    public boolean maskSpans = false;
+  }
+
+  /**
+   * Thrown (or used to complete futures exceptionally) when a request has no
+   * locale tag, or the locale is not loaded in this service.
+   */
+  public static class UnsupportedLocaleException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    public UnsupportedLocaleException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Load the analyzers for the given locales.
+   *
+   * This takes a while, as it loads all the CoreNLP models.
+   */
+  public TokenizerService(String... localeTags) {
+    this(new Options(), localeTags);
+  }
+
+  public TokenizerService(Options options, String... localeTags) {
+    for (String localeTag : localeTags) {
+      LocaleTag locale = new LocaleTag(localeTag);
+      analyzers.put(locale, new CoreNLPAnalyzer(locale, options.maskSpans));
+    }
+
+    scheduler = new LaneScheduler(options.threads);
+    double unassigned = 1;
+    int unlisted = 0;
+    for (LocaleTag locale : analyzers.keySet()) {
+      Double share = options.shares.get(locale.toString());
+      if (share != null)
+        unassigned -= share;
+      else
+        unlisted++;
+    }
+    Map<LocaleTag, Double> shares = new HashMap<>();
+    for (LocaleTag locale : analyzers.keySet()) {
+      Double share = options.shares.get(locale.toString());
+      if (share == null)
+        share = Math.max(0, unassigned) / unlisted;
+      shares.put(locale, share);
+      lanes.put(locale, scheduler.addLane(locale.toString(), share, options.queueCapacity, false));
+    }
+    // each locale has its own lane of long requests, so a flood of long
+    // requests in one language does not hold back those of the others
+    for (LocaleTag locale : analyzers.keySet()) {
+      longLanes.put(locale, scheduler.addLane(locale + "-long", options.longRequestShare * shares.get(locale),
+          options.queueCapacity, true));
+    }
+    longRequestCost = options.longRequestCost;
+    maxParseLength = options.maxParseLength;
+    metrics.addSection("lanes", scheduler::snapshot);
+    metrics.addSection("prefilter", () -> {
+      Map<String, Object> snapshot = new LinkedHashMap<>();
+      for (Map.Entry<LocaleTag, CoreNLPAnalyzer> entry : analyzers.entrySet())
+        snapshot.put(entry.getKey().toString(), entry.getValue().getPrefilterSnapshot());
+      return snapshot;
+    });
+
+    if (options.overloadQueueDelayMillis > 0) {
+      for (LaneScheduler.Lane lane : lanes.values())
+        overloadDetectors.put(lane, new OverloadDetector(options.overloadQueueDelayMillis));
+      for (LaneScheduler.Lane lane : longLanes.values())
+        overloadDetectors.put(lane, new OverloadDetector(options.overloadQueueDelayMillis));
+      metrics.addSection("overload", () -> {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<LaneScheduler.Lane, OverloadDetector> entry : overloadDetectors.entrySet())
+          snapshot.put(entry.getKey().getName(), entry.getValue().snapshot());
+        return snapshot;
+      });
+    }
+
+    if (options.staged) {
+      // no more requests than there are workers can be in the stages at once,
+      // so the queues of the stages never need to be longer than that
+      for (CoreNLPAnalyzer analyzer : analyzers.values()) {
+        if (!analyzer.startStages(options.stageThreads, Math.max(1, options.threads / 4), options.threads))
+          System.err.println("Cannot run the annotators in stages, running them on the workers");
+      }
+      metrics.addSection("stages", () -> {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<LocaleTag, CoreNLPAnalyzer> entry : analyzers.entrySet())
+          snapshot.put(entry.getKey().toString(), entry.getValue().getStagesSnapshot());
+        return snapshot;
+      });
+    } else if (options.parallelAnnotators) {
+      Executor helpers = Executors.newFixedThreadPool(options.threads, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "annotator-helper-" + count.getAndIncrement());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      for (CoreNLPAnalyzer analyzer : analyzers.values())
+        analyzer.startParallel(helpers);
+    }
+  }
+
+  public Set<LocaleTag> getLocales() {
+    return Collections.unmodifiableSet(analyzers.keySet());
+  }
+
+  /**
+   * Return the executor for requests in the given locale.
+   *
+   * Tasks are rejected with a RejectedExecutionException when the locale has
+   * too many requests queued already.
+   *
+   * @param locale a locale returned by resolveLocale()
+   */
+  public LaneScheduler.Lane getExecutor(LocaleTag locale) {
+    LaneScheduler.Lane lane = lanes.get(locale);
+    if (lane == null)
+      throw new UnsupportedLocaleException("Unsupported locale tag");
+    return lane;
+  }
+
+  public TokenizerMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Queue a task that analyzes the given utterance, in the lane of its locale,
+   * or in the lane of long requests of its locale if it is expected to be
+   * expensive.
+   *
+   * @param locale a locale returned by resolveLocale()
+   * @param flow the key of the flow the request belongs to, such as its connection
+   * @throws RejectedExecutionException if the lane has too many requests queued already
+   */
+  public void execute(LocaleTag locale, String utterance, Object flow, Priority priority, Runnable task) {
+    double cost = CostModel.estimate(locale, utterance);
+    getLane(locale, cost).execute(task, flow, cost, priority);
+  }
+
+  private LaneScheduler.Lane getLane(LocaleTag locale, double cost) {
+    LaneScheduler.Lane lane = getExecutor(locale);
+    return cost > longRequestCost ? longLanes.get(locale) : lane;
+  }
+
+  // whether the lane the request went through is overloaded, in which case
+  // the request should take the cheaper path
+  private boolean isOverloaded(LocaleTag locale, String utterance) {
+    if (overloadDetectors.isEmpty())
+      return false;
+    LaneScheduler.Lane lane = getLane(locale, CostModel.estimate(locale, utterance));
+    return overloadDetectors.get(lane).update(lane.getQueueDelayNanos());
+  }
+
+  /**
+   * Find which of the loaded locales handles the given locale tag.
+   *
+   * @return the locale, or null if it is not supported
+   */
+  public LocaleTag resolveLocale(String localeTag) {
+    if (localeTag == null)
+      return null;
+    for (LocaleTag fallback : LocaleTag.intern(localeTag).getFallbacks()) {
+      if (analyzers.containsKey(fallback))
+        return fallback;
+    }
+    return null;
+  }
+
+  /**
+   * Tokenize one utterance, on the calling thread.
+   *
+   * @param expect what kind of answer the utterance is expected to be, or null
+   * @throws UnsupportedLocaleException if the locale is missing or not loaded
+   */
+  public Seq2SeqTokenizer.Result process(String localeTag, String utterance, String expect) {
+    return process(localeTag, utterance, expect, () -> false);
+  }
+
+  /**
+   * Tokenize one utterance, on the calling thread, unless it is cancelled.
+   *
+   * cancelled is checked before starting, and between the steps of the analysis.
+   * Cancelled requests are counted as dropped in the metrics.
+   *
+   * @throws CancellationException if cancelled returns true
+   * @throws UnsupportedLocaleException if the locale is missing or not loaded
+   */
+  public Seq2SeqTokenizer.Result process(String localeTag, String utterance, String expect,
+      BooleanSupplier cancelled) {
+    if (cancelled.getAsBoolean()) {
+      metrics.recordDropped(false);
+      throw new CancellationException();
+    }
+    if (localeTag == null)
+      throw new UnsupportedLocaleException("Missing locale tag");
+    LocaleTag locale = resolveLocale(localeTag);
+    if (locale == null)
+      throw new UnsupportedLocaleException("Unsupported locale tag");
+
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      boolean skipParse = maxParseLength > 0 && CostModel.estimateTokens(utterance) > maxParseLength;
+      if (skipParse) {
+        metrics.recordParseSkipped();
+      } else if (isOverloaded(locale, utterance)) {
+        skipParse = true;
+        metrics.recordDegraded();
+      }
+
+      Example ex = new Example.Builder().setUtterance(utterance).setExpected(expect).createExample();
+      ex.preprocess(analyzers.get(locale), cancelled, skipParse);
+      Seq2SeqTokenizer.Result result = tokenizer.process(ex);
+      result.degraded = skipParse;
+      failed = false;
+      return result;
+    } catch (CancellationException e) {
+      metrics.recordDropped(true);
+      failed = false;
+      throw e;
+    } finally {
+      metrics.recordRequest(System.nanoTime() - start, failed);
+    }
+  }
+
+  /**
+   * Tokenize one utterance asynchronously.
+   *
+   * The future fails with an UnsupportedLocaleException if the locale is not
+   * loaded, and with a RejectedExecutionException if too many requests for the
+   * same locale are waiting already.
+   *
+   * @param expect what kind of answer the utterance is expected to be, or null
+   */
+  public CompletableFuture<Seq2SeqTokenizer.Result> tokenize(String localeTag, String utterance, String expect) {
+    return tokenize(localeTag, utterance, expect, Priority.INTERACTIVE);
+  }
+
+  /**
+   * Tokenize one utterance asynchronously, with the given priority.
+   */
+  public CompletableFuture<Seq2SeqTokenizer.Result> tokenize(String localeTag, String utterance, String expect,
+      Priority priority) {
+    CompletableFuture<Seq2SeqTokenizer.Result> future = new CompletableFuture<>();
+    try {
+      LocaleTag locale = resolveLocale(localeTag);
+      if (locale == null)
+        throw new UnsupportedLocaleException(localeTag == null ? "Missing locale tag" : "Unsupported locale tag");
+      execute(locale, utterance, this, priority, () -> {
+        try {
+          // stop working as soon as nobody is waiting for the result
+          future.complete(process(localeTag, utterance, expect, future::isDone));
+        } catch (Throwable t) {
+          future.completeExceptionally(t);
+        }
+      });
+    } catch (UnsupportedLocaleException | RejectedExecutionException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Tokenize a batch of utterances in the same locale, concurrently.
+   *
+   * The results are in the same order as the utterances. The future fails if
+   * any of the utterances fails.
+   */
+  public CompletableFuture<List<Seq2SeqTokenizer.Result>> tokenizeBatch(String localeTag, List<String> utterances,
+      String expect) {
+    return tokenizeBatch(localeTag, utterances, expect, Priority.INTERACTIVE);
+  }
+
+  /**
+   * Tokenize a batch of utterances in the same locale, with the given priority.
+   */
+  public CompletableFuture<List<Seq2SeqTokenizer.Result>> tokenizeBatch(String localeTag, List<String> utterances,
+      String expect, Priority priority) {
+    List<CompletableFuture<Seq2SeqTokenizer.Result>> futures = new ArrayList<>(utterances.size());
+    for (String utterance : utterances)
+      futures.add(tokenize(localeTag, utterance, expect, priority));
+
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply((ignored) -> {
+      List<Seq2SeqTokenizer.Result> results = new ArrayList<>(futures.size());
+      for (CompletableFuture<Seq2SeqTokenizer.Result> future : futures)
+        results.add(future.join());
+      return results;
+    });
+  }
+
+  /**
+   * Stop accepting requests. Requests already submitted are still completed.
+   */
+  @Override
+  public void close() {
+    scheduler.shutdown();
+  }
+}
@@ -0,0 +1,101 @@
+package edu.stanford.nlp.sempre;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Support for listening on a UNIX domain socket.
+ *
+ * UNIX domain socket channels are only available since Java 16, while we
+ * still build for Java 11, so they are looked up by reflection.
+ */
+public class UnixSocketTransport {
+  private UnixSocketTransport() { }
+
+  /**
+   * Open a server channel bound to the given path, replacing any stale socket
+   * file left from a previous run.
+   */
+  public static ServerSocketChannel listen(String path) throws IOException {
+    SocketAddress address;
+    ServerSocketChannel channel;
+    try {
+      ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+      address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+          .getMethod("of", String.class)
+          .invoke(null, path);
+      channel = (ServerSocketChannel) ServerSocketChannel.class
+          .getMethod("open", ProtocolFamily.class)
+          .invoke(null, unix);
+    } catch (IllegalArgumentException | ReflectiveOperationException e) {
+      if (e instanceof InvocationTargetException && e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new UnsupportedOperationException("UNIX domain sockets require Java 16 or later", e);
+    }
+
+    Files.deleteIfExists(Paths.get(path));
+    channel.bind(address);
+    Paths.get(path).toFile().deleteOnExit();
+    return channel;
+  }
+
+  /*
+   * Channels.newInputStream() and Channels.newOutputStream() serialize reads
+   * and writes on the same lock, which would block responses while the
+   * connection waits for the next request, so we use our own streams.
+   */
+
+  public static InputStream getInputStream(SocketChannel channel) {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : (b[0] & 0xFF);
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+          return 0;
+        return channel.read(ByteBuffer.wrap(b, off, len));
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+  }
+
+  public static OutputStream getOutputStream(SocketChannel channel) {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining())
+          channel.write(buffer);
+      }
+
+      @Override
+      public void close() throws IOException {
+        channel.close();
+      }
+    };
+  }
+}
@@ -0,0 +1,121 @@
+package edu.stanford.nlp.sempre;
+
+import java.util.Arrays;
+
+/**
+ * A trie of words, each with a bitmask of the classes it belongs to, to look up
+ * a word in closed word lists (months, number words, currencies...) without
+ * running a regular expression or allocating anything.
+ *
+ * A case-insensitive trie folds only ASCII letters, like a Pattern compiled with
+ * CASE_INSENSITIVE does. The trie is filled once, and can then be read by any
+ * number of threads.
+ */
+public class WordTrie {
+  public static final int ROOT = 0;
+
+  private final boolean ignoreCase;
+  // for each node, the characters of its edges and the nodes they lead to
+  private char[][] labels = new char[16][];
+  private int[][] children = new int[16][];
+  private int[] values = new int[16];
+  private int size = 1;
+
+  public WordTrie(boolean ignoreCase) {
+    this.ignoreCase = ignoreCase;
+    labels[ROOT] = new char[0];
+    children[ROOT] = new int[0];
+  }
+
+  private char fold(char c) {
+    return ignoreCase && c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+  }
+
+  /**
+   * Add the classes to those of the word.
+   */
+  public void add(String word, int classes) {
+    int node = ROOT;
+    for (int i = 0; i < word.length(); i++) {
+      char c = fold(word.charAt(i));
+      int next = step(node, c);
+      if (next < 0) {
+        next = newNode();
+        int edges = labels[node].length;
+        labels[node] = Arrays.copyOf(labels[node], edges + 1);
+        children[node] = Arrays.copyOf(children[node], edges + 1);
+        labels[node][edges] = c;
+        children[node][edges] = next;
+      }
+      node = next;
+    }
+    values[node] |= classes;
+  }
+
+  public void addAll(int classes, String... words) {
+    for (String word : words)
+      add(word, classes);
+  }
+
+  private int newNode() {
+    if (size == values.length) {
+      labels = Arrays.copyOf(labels, size * 2);
+      children = Arrays.copyOf(children, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    labels[size] = new char[0];
+    children[size] = new int[0];
+    return size++;
+  }
+
+  /**
+   * The node reached from the given node by the character, or -1.
+   */
+  public int step(int node, char c) {
+    c = fold(c);
+    char[] edges = labels[node];
+    for (int i = 0; i < edges.length; i++) {
+      if (edges[i] == c)
+        return children[node][i];
+    }
+    return -1;
+  }
+
+  /**
+   * The classes of the word that ends at the node, or 0 if no word does.
+   */
+  public int value(int node) {
+    return values[node];
+  }
+
+  /**
+   * The classes of the characters of the word between start and end, or 0.
+   */
+  public int get(String word, int start, int end) {
+    int node = ROOT;
+    for (int i = start; i < end && node >= 0; i++)
+      node = step(node, word.charAt(i));
+    return node >= 0 ? values[node] : 0;
+  }
+
+  /**
+   * The classes of the word, or 0 if it is not in the trie.
+   */
+  public int get(String word) {
+    return word == null ? 0 : get(word, 0, word.length());
+  }
+
+  /**
+   * The classes of all the words that occur anywhere in the text, like
+   * Matcher.find would find them, or 0.
+   */
+  public int occurrences(String text) {
+    int classes = 0;
+    for (int start = 0; start < text.length(); start++) {
+      int node = ROOT;
+      for (int i = start; i < text.length() && (node = step(node, text.charAt(i))) >= 0; i++)
+        classes |= values[node];
+    }
+    return classes;
+  }
+}
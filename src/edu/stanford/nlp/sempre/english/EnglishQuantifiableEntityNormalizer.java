@@ -6,11 +6,12 @@ import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import edu.stanford.nlp.ie.AbstractSequenceClassifier;
 import edu.stanford.nlp.ie.pascal.ISODateInstance;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.sempre.AbstractQuantifiableEntityNormalizer;
+import edu.stanford.nlp.sempre.NumberGrammar;
+import edu.stanford.nlp.sempre.OneEditIndex;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.util.*;
 
@@ -54,16 +55,18 @@ public class EnglishQuantifiableEntityNormalizer implements AbstractQuantifiable
   private static final Pattern timePattern = Pattern
       .compile("([0-2]?[0-9])((?::?[0-5][0-9]){0,2})([PpAa]\\.?[Mm]?\\.?)?");
 
-  private static final Pattern moneyPattern = Pattern
-      .compile("([$\u00A3\u00A5\u20AC#]?)(-?[0-9,]+(?:\\.[0-9]*)?|\\.[0-9]+)[-a-zA-Z]*");
-
   //Collections of entity types
   private static final Set<String> quantifiable;  //Entity types that are quantifiable
-  private static final Map<String, String> timeUnitWords;
-  private static final Map<String, Double> moneyMultipliers;
+  private static final OneEditIndex<String> timeUnitWords;
+  private static final OneEditIndex<Double> moneyMultipliers;
   private static final Map<String, Character> currencyWords;
   public static final ClassicCounter<String> wordsToValues;
   public static final ClassicCounter<String> ordinalsToValues;
+  // the numbers spelled out in words: the multipliers, wordsToValues and ordinalsToValues
+  private static final NumberGrammar numberGrammar;
+
+  // the rules run by applySpecializedNER, shared by all threads
+  private static final NumberSequenceClassifier numberSequenceClassifier = new NumberSequenceClassifier();
 
   static {
 
@@ -76,21 +79,21 @@ public class EnglishQuantifiableEntityNormalizer implements AbstractQuantifiable
     quantifiable.add("ORDINAL");
     quantifiable.add("DURATION");
 
-    timeUnitWords = Generics.newHashMap();
-    timeUnitWords.put("second", "S");
-    timeUnitWords.put("seconds", "S");
-    timeUnitWords.put("minute", "m");
-    timeUnitWords.put("minutes", "m");
-    timeUnitWords.put("hour", "H");
-    timeUnitWords.put("hours", "H");
-    timeUnitWords.put("day", "D");
-    timeUnitWords.put("days", "D");
-    timeUnitWords.put("week", "W");
-    timeUnitWords.put("weeks", "W");
-    timeUnitWords.put("month", "M");
-    timeUnitWords.put("months", "M");
-    timeUnitWords.put("year", "Y");
-    timeUnitWords.put("years", "Y");
+    Map<String, String> timeUnits = Generics.newHashMap();
+    timeUnits.put("second", "S");
+    timeUnits.put("seconds", "S");
+    timeUnits.put("minute", "m");
+    timeUnits.put("minutes", "m");
+    timeUnits.put("hour", "H");
+    timeUnits.put("hours", "H");
+    timeUnits.put("day", "D");
+    timeUnits.put("days", "D");
+    timeUnits.put("week", "W");
+    timeUnits.put("weeks", "W");
+    timeUnits.put("month", "M");
+    timeUnits.put("months", "M");
+    timeUnits.put("year", "Y");
+    timeUnits.put("years", "Y");
 
     currencyWords = Generics.newHashMap();
     currencyWords.put("dollars?", '$');
@@ -110,16 +113,16 @@ public class EnglishQuantifiableEntityNormalizer implements AbstractQuantifiable
     currencyWords.put("\u20A9", '\u20A9');  // Won
     currencyWords.put("yuan", '\u5143');   // Yuan
 
-    moneyMultipliers = Generics.newHashMap();
-    moneyMultipliers.put("trillion", 1000000000000.0);  // can't be an integer
-    moneyMultipliers.put("billion", 1000000000.0);
-    moneyMultipliers.put("bn", 1000000000.0);
-    moneyMultipliers.put("million", 1000000.0);
-    moneyMultipliers.put("thousand", 1000.0);
-    moneyMultipliers.put("hundred", 100.0);
-    moneyMultipliers.put("b.", 1000000000.0);
-    moneyMultipliers.put(" k ", 1000.0);
-    moneyMultipliers.put("dozen", 12.0);
+    Map<String, Double> multipliers = Generics.newHashMap();
+    multipliers.put("trillion", 1000000000000.0);  // can't be an integer
+    multipliers.put("billion", 1000000000.0);
+    multipliers.put("bn", 1000000000.0);
+    multipliers.put("million", 1000000.0);
+    multipliers.put("thousand", 1000.0);
+    multipliers.put("hundred", 100.0);
+    multipliers.put("b.", 1000000000.0);
+    multipliers.put(" k ", 1000.0);
+    multipliers.put("dozen", 12.0);
 
     wordsToValues = new ClassicCounter<>();
     wordsToValues.setCount("zero", 0.0);
@@ -195,36 +198,22 @@ public class EnglishQuantifiableEntityNormalizer implements AbstractQuantifiable
     ordinalsToValues.setCount("millionth", 1000000.0);
     ordinalsToValues.setCount("billionth", 1000000000.0);
     ordinalsToValues.setCount("trillionth", 1000000000000.0);
-  }
 
-  public EnglishQuantifiableEntityNormalizer() {
+    timeUnitWords = new OneEditIndex<>(timeUnits);
+    moneyMultipliers = new OneEditIndex<>(multipliers);
+
+    // a misspelled word is taken for a multiplier first
+    numberGrammar = new NumberGrammar(false);
+    for (Map.Entry<String, Double> entry : multipliers.entrySet())
+      numberGrammar.addMultiplier(entry.getKey(), entry.getValue());
+    for (String word : wordsToValues.keySet())
+      numberGrammar.addUnit(word, wordsToValues.getCount(word));
+    for (String word : ordinalsToValues.keySet())
+      numberGrammar.addOrdinal(word, ordinalsToValues.getCount(word));
+    numberGrammar.compile();
   }
 
-  /**
-   * This method returns the closest match in set such that the match
-   * has more than three letters and differs from word only by one substitution,
-   * deletion, or insertion. If not match exists, returns null.
-   */
-  private static String getOneSubstitutionMatch(String word, Set<String> set) {
-    // TODO (?) pass the EditDistance around more places to make this
-    // more efficient.  May not really matter.
-    EditDistance ed = new EditDistance();
-    for (String cur : set) {
-      if (isOneSubstitutionMatch(word, cur, ed))
-        return cur;
-    }
-    return null;
-  }
-
-  private static boolean isOneSubstitutionMatch(String word, String match,
-      EditDistance ed) {
-    if (word.equalsIgnoreCase(match))
-      return true;
-    if (match.length() > 3) {
-      if (ed.score(word, match) <= 1)
-        return true;
-    }
-    return false;
+  public EnglishQuantifiableEntityNormalizer() {
   }
 
   /**
@@ -293,7 +282,7 @@ public class EnglishQuantifiableEntityNormalizer implements AbstractQuantifiable
     String timeword = s.substring(space+1);
     String numword = s.substring(0, space);
     
-    String multiplier = timeUnitWords.get(timeword);
+    String multiplier = timeUnitWords.matchValue(timeword);
     if (multiplier == null)
       return null;
     
@@ -466,75 +455,10 @@ public class EnglishQuantifiableEntityNormalizer implements AbstractQuantifiable
     }
     s = s.toLowerCase();
     
-    // handle numbers written in words
-    String[] parts = s.split("[ -]");
+    // handle numbers written in words and in digits, like "4.5 million"
     if (DEBUG2)
       err.println("Looking for number words in |" + s + "|; multiplier is " + multiplier);
-    
-    double value = Double.NaN;
-    for (String part : parts) {
-      // check for hyphenated word like 4-Ghz: delete final -
-      if (part.endsWith("-")) {
-        part = part.substring(0, part.length() - 1);
-      }
-
-      Matcher m = moneyPattern.matcher(part);
-      if (m.matches()) {
-        if (DEBUG2) {
-          err.println("Number matched with |" + m.group(1) + "| |" +
-              m.group(2) + '|');
-        }
-        String numStr = m.group(2).replace(",", "");
-        double v = Double.parseDouble(numStr);
-        if (Double.isNaN(value))
-          value = v;
-        else
-          value += v;
-        continue;
-      }
-
-      // get multipliers like "billion"
-      boolean found = false;
-      for (String moneyTag : moneyMultipliers.keySet()) {
-        if (part.equals(moneyTag)) {
-          // if (DEBUG) {err.println("Quantifiable: Found "+ moneyTag);}
-          if (Double.isNaN(value))
-            value = moneyMultipliers.get(moneyTag);
-          else
-            value *= moneyMultipliers.get(moneyTag);
-          found = true;
-          break;
-        } else {
-          EditDistance ed = new EditDistance();
-          if (isOneSubstitutionMatch(part,
-              moneyTag, ed)) {
-            if (Double.isNaN(value))
-              value = moneyMultipliers.get(moneyTag);
-            else
-              value *= moneyMultipliers.get(moneyTag);
-            found = true;
-            break;
-          }
-        }
-      }
-      if (found)
-        continue;
-      
-      if (wordsToValues.containsKey(part)) {
-        if (Double.isNaN(value))
-          value = wordsToValues.getCount(part);
-        else
-          value += wordsToValues.getCount(part);
-      } else {
-        String partMatch = getOneSubstitutionMatch(part, wordsToValues.keySet());
-        if (partMatch != null) {
-          if (Double.isNaN(value))
-            value = wordsToValues.getCount(part);
-          else
-            value += wordsToValues.getCount(part);
-        }
-      }
-    }
+    double value = numberGrammar.parse(s);
     if (!Double.isNaN(value))
       return Double.toString(value * multiplier);
     else
@@ -551,6 +475,8 @@ public class EnglishQuantifiableEntityNormalizer implements AbstractQuantifiable
   private static final Pattern numberPattern = Pattern.compile("([0-9.]+)");
 
   private static String normalizedOrdinalStringQuiet(String s) {
+    // the words as they are, to read "one hundred twenty first"
+    String words = s.toLowerCase();
     // clean up string
     s = s.replaceAll("[ \t\n\0\f\r,]", "");
     // remove parenthesis around numbers
@@ -570,12 +496,10 @@ public class EnglishQuantifiableEntityNormalizer implements AbstractQuantifiable
       matcher.find();
       // just parse number part, assuming last two letters are st/nd/rd
       return normalizedNumberStringQuiet(matcher.group(), 1.0);
-    } else if (ordinalsToValues.containsKey(s)) {
-      return Double.toString(ordinalsToValues.getCount(s));
     } else {
-      String val = getOneSubstitutionMatch(s, ordinalsToValues.keySet());
-      if (val != null)
-        return Double.toString(ordinalsToValues.getCount(val));
+      double val = numberGrammar.parseOrdinal(words);
+      if (!Double.isNaN(val))
+        return Double.toString(val);
       else
         return null;
     }
@@ -921,8 +845,7 @@ public class EnglishQuantifiableEntityNormalizer implements AbstractQuantifiable
       }
 
       //repairs mistagged multipliers after a numeric quantity
-      if (!curWord.equals("") && (moneyMultipliers.containsKey(curWord) ||
-          (getOneSubstitutionMatch(curWord, moneyMultipliers.keySet()) != null)) &&
+      if (!curWord.equals("") && moneyMultipliers.match(curWord) != null &&
           prevNerTag != null && (prevNerTag.equals("MONEY") || prevNerTag.equals("NUMBER"))) {
         wi.set(CoreAnnotations.NamedEntityTagAnnotation.class, prevNerTag);
       }
@@ -961,38 +884,27 @@ public class EnglishQuantifiableEntityNormalizer implements AbstractQuantifiable
   @Override
   public <E extends CoreLabel> List<E> applySpecializedNER(List<E> l) {
     int sz = l.size();
-    // copy l
-    List<CoreLabel> copyL = new ArrayList<>(sz);
-    for (int i = 0; i < sz; i++) {
-      if (DEBUG2) {
-        if (i == 1) {
-          String tag = l.get(i).get(CoreAnnotations.PartOfSpeechAnnotation.class);
-          if (tag == null || tag.equals("")) {
-            err.println("Quantifiable: error! tag is " + tag);
-          }
+    if (DEBUG2) {
+      if (sz > 1) {
+        String tag = l.get(1).get(CoreAnnotations.PartOfSpeechAnnotation.class);
+        if (tag == null || tag.equals("")) {
+          err.println("Quantifiable: error! tag is " + tag);
         }
       }
-      copyL.add(new CoreLabel(l.get(i)));
     }
-    // run NumberSequenceClassifier
-    AbstractSequenceClassifier<CoreLabel> nsc = new NumberSequenceClassifier();
-    copyL = nsc.classify(copyL);
+    // run NumberSequenceClassifier, which also applies its POS tag overrides
+    String[] answers = numberSequenceClassifier.classifyAnswers(l);
     // update entity only if it was not O
     for (int i = 0; i < sz; i++) {
       E before = l.get(i);
-      CoreLabel nscAnswer = copyL.get(i);
-
-      // copy over any POS tag override that NumberSequenceClassifier applied
-      before.setTag(nscAnswer.tag());
+      String nscAnswer = answers[i];
 
-      // copy over the NER tag too
+      // copy over the NER tag
       if ((before.get(CoreAnnotations.NamedEntityTagAnnotation.class) == null
           || before.get(CoreAnnotations.NamedEntityTagAnnotation.class).equals(BACKGROUND_SYMBOL)
           || before.get(CoreAnnotations.NamedEntityTagAnnotation.class).equals("MISC")) &&
-          (nscAnswer.get(CoreAnnotations.AnswerAnnotation.class) != null
-              && !nscAnswer.get(CoreAnnotations.AnswerAnnotation.class).equals(BACKGROUND_SYMBOL))) {
-        before.set(CoreAnnotations.NamedEntityTagAnnotation.class,
-            nscAnswer.get(CoreAnnotations.AnswerAnnotation.class));
+          (nscAnswer != null && !nscAnswer.equals(BACKGROUND_SYMBOL))) {
+        before.set(CoreAnnotations.NamedEntityTagAnnotation.class, nscAnswer);
       }
     }
 
@@ -6,14 +6,14 @@ import java.io.ObjectOutputStream;
 import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
-import java.util.regex.Pattern;
 
 import edu.stanford.nlp.ie.AbstractSequenceClassifier;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.sempre.NerRules;
+import edu.stanford.nlp.sempre.WordTrie;
 import edu.stanford.nlp.sequences.DocumentReaderAndWriter;
 import edu.stanford.nlp.util.CoreMap;
-import edu.stanford.nlp.util.PaddedList;
 
 /**
  * A copy of edu.stanford.nlp.ie.regexp.NumberSequenceClassifier, with
@@ -62,60 +62,311 @@ public class NumberSequenceClassifier extends AbstractSequenceClassifier<CoreLab
     super(new Properties());
   }
 
-  private static final boolean DEBUG = false;
-
-  private static final Pattern MONTH_PATTERN = Pattern.compile(
-      "january|jan\\.?|february|feb\\.?|march|mar\\.?|april|apr\\.?|may|june|jun\\.?|july|jul\\.?|august|aug\\.?|september|sept?\\.?|october|oct\\.?|november|nov\\.?|december|dec\\.",
-      Pattern.CASE_INSENSITIVE);
-
-  private static final Pattern NUMBER_PATTERN = Pattern.compile("[0-9]+");
-  private static final Pattern WORD_NUMBER_PATTERN = Pattern.compile("two|three|four|five|six|seven|eight|nine|ten|eleven|twelve|thirteen|fourteen|fifteen|sixteen|seventeen|eighteen|nineteen");
-
-  private static final Pattern YEAR_PATTERN = Pattern.compile("[1-3][0-9]{3}|'?[0-9]{2}");
-
-  private static final Pattern DAY_PATTERN = Pattern.compile("(?:[1-9]|[12][0-9]|3[01])(?:st|nd|rd)?");
+  // the classes of words that the rules look at, computed once per token
+  private static final int MONTH = 1;
+  private static final int WEEKDAY = 1 << 1;
+  // made of digits
+  private static final int NUMBER = 1 << 2;
+  // two to nineteen, in letters
+  private static final int WORD_NUMBER = 1 << 3;
+  // 2017, 17 or '17
+  private static final int YEAR = 1 << 4;
+  // 1 to 31, maybe followed by st, nd or rd
+  private static final int DAY = 1 << 5;
+  // 12/31/2017 or 2017-12-31
+  private static final int DATE = 1 << 6;
+  // 9:30, 9:30:15, 9:30pm, 930pm
+  private static final int TIME = 1 << 7;
+  private static final int AM_PM = 1 << 8;
+  // 0930
+  private static final int ARMY_TIME_MORNING = 1 << 9;
+  private static final int PART_OF_DAY = 1 << 10;
+  private static final int CURRENCY_WORD = 1 << 11;
+  private static final int CURRENCY_SYMBOL = 1 << 12;
+  // first, 21st, 100th
+  private static final int ORDINAL = 1 << 13;
+  private static final int ORDINAL_SUFFIX = 1 << 14;
+  private static final int MULTIPLIER = 1 << 15;
+  private static final int OF = 1 << 16;
+  private static final int O_CLOCK = 1 << 17;
+  private static final int AND = 1 << 18;
+  // the parts of speech
+  private static final int CD = 1 << 19;
+  private static final int COMMA = 1 << 20;
+  private static final int CC = 1 << 21;
+  private static final int NN = 1 << 22;
+  private static final int NNS = 1 << 23;
+  private static final int NNP = 1 << 24;
+  private static final int JJ = 1 << 25;
+  private static final int IN = 1 << 26;
+
+  // the closed classes, matched regardless of case, except the number words
+  private static final WordTrie WORDS = new WordTrie(true);
+  private static final WordTrie CASED_WORDS = new WordTrie(false);
+  static {
+    WORDS.addAll(MONTH, "january", "jan", "jan.", "february", "feb", "feb.", "march", "mar", "mar.", "april", "apr",
+        "apr.", "may", "june", "jun", "jun.", "july", "jul", "jul.", "august", "aug", "aug.", "september", "sep",
+        "sep.", "sept", "sept.", "october", "oct", "oct.", "november", "nov", "nov.", "december", "dec.");
+    WORDS.addAll(WEEKDAY, "monday", "mon", "tuesday", "tue", "tues", "wednesday", "wed", "thursday", "thu", "friday",
+        "fri", "saturday", "sat", "sunday", "sun");
+    CASED_WORDS.addAll(WORD_NUMBER, "two", "three", "four", "five", "six", "seven", "eight", "nine", "ten", "eleven",
+        "twelve", "thirteen", "fourteen", "fifteen", "sixteen", "seventeen", "eighteen", "nineteen");
+    WORDS.addAll(AM_PM, "am", "am.", "a.m", "a.m.", "pm", "pm.", "p.m", "p.m.");
+    WORDS.addAll(PART_OF_DAY, "noon", "midnight", "midday");
+    WORDS.addAll(CURRENCY_WORD, "dollar", "dollars", "cent", "cents", "euro", "euros", "buck", "bucks", "penny",
+        "pence", "yen", "yuan", "won");
+    // dollar, pound sign XML escapes; pound sign, yen sign, euro, won; other country dollars
+    // TODO: Delete # as currency.  But doing this involves changing PTBTokenizer currency normalization rules
+    // Code \u0023 '#' was used for pound '£' in the ISO version of ASCII (ISO 646), and this is found in very old materials
+    // e.g., the 1999 Penn Treebank, but we now don't recognize this, as it now doesn't occur and wrongly recognizes
+    // currency whenever someone refers to the #4 country etc.
+    WORDS.addAll(CURRENCY_SYMBOL, "$", "#", "&#163;", "&pound;", "\u00A3", "\u00A5", "\u20AC", "\u20A9", "us$",
+        "hk$", "a$", "c$", "nt$", "s$", "nz$");
+    WORDS.addAll(ORDINAL, "zeroth", "first", "second", "third", "fourth", "fifth", "sixth", "seventh", "eighth",
+        "ninth", "tenth", "eleventh", "twelfth", "thirteenth", "fourteenth", "fifteenth", "sixteenth", "seventeenth",
+        "eighteenth", "nineteenth", "twentieth", "twenty-first", "twenty-second", "twenty-third", "twenty-fourth",
+        "twenty-fifth", "twenty-sixth", "twenty-seventh", "twenty-eighth", "twenty-ninth", "thirtieth",
+        "thirty-first", "fortieth", "fiftieth", "sixtieth", "seventieth", "eightieth", "ninetieth", "hundredth",
+        "thousandth", "millionth");
+    WORDS.addAll(ORDINAL_SUFFIX, "st", "nd", "rd", "th");
+    WORDS.addAll(MULTIPLIER, "hundred", "thousand", "million", "billion", "trillion");
+    WORDS.add("of", OF);
+    CASED_WORDS.add("o'clock", O_CLOCK);
+    WORDS.add("and", AND);
+  }
 
-  private static final Pattern WEEKDAY_PATTERN = Pattern.compile(
-      "monday|mon|tuesday|tues?|wednesday|wed|thursday|thu|friday|fri|saturday|sat|sunday|sun",
-      Pattern.CASE_INSENSITIVE);
+  private static final WordTrie TAGS = new WordTrie(false);
+  static {
+    TAGS.add("CD", CD);
+    TAGS.add(",", COMMA);
+    TAGS.add("CC", CC);
+    TAGS.add("NN", NN);
+    TAGS.add("NNS", NNS);
+    TAGS.add("NNP", NNP);
+    TAGS.add("JJ", JJ);
+    TAGS.add("IN", IN);
+  }
 
-  private static final Pattern DATE_PATTERN = Pattern
-      .compile("(?:[1-9]|[0-3][0-9])\\\\?/(?:[1-9]|[0-3][0-9])\\\\?/(?:[1-3][0-9]{3}|[0-9]{2})");
+  // the rules, in order: the first one that fires on a token gives its answer,
+  // unless it lets the next ones fire too, and a rule without an answer stops
+  // the ones after it
+  private static final NerRules RULES = new NerRules();
+  static {
+    // dollar, pound, pound, yen, Penn Treebank ancient # as pound, euro
+    RULES.on(CURRENCY_SYMBOL).with(-1, CD).answer("MONEY");
+    RULES.on(CURRENCY_SYMBOL).with(1, CD).answer("MONEY");
+    RULES.on(TIME).answer("TIME");
+    RULES.on(DATE).answer("DATE");
+
+    // deterministically make DATE for British-style number before month, and
+    // for number after month
+    RULES.on(CD).with(0, DAY).with(1, MONTH).answer("DATE").markIf(-1, WEEKDAY, "DATE");
+    RULES.on(CD).with(-1, MONTH).with(0, DAY).answer("DATE");
+    RULES.on(CD).with(0, ARMY_TIME_MORNING).answer("TIME");
+    RULES.on(CD).with(0, YEAR).answered(-1, "DATE").with(-1, MONTH).answer("DATE");
+    RULES.on(CD).with(0, YEAR).answered(-1, "DATE").answered(-2, "DATE").answer("DATE");
+    RULES.on(CD).with(1, O_CLOCK).answer("TIME");
+    RULES.on(CD).answered(-1, "MONEY").answer("MONEY");
+    RULES.on(CD).answer("NUMBER");
+
+    RULES.on(AM_PM).answered(-1, "TIME", "NUMBER").mark(-1, "TIME").answer("TIME");
+    RULES.on(COMMA).answered(-1, "DATE").with(1, YEAR).answer("DATE");
+
+    // sometimes the POS tag of a month is NNP and sometimes it's NN (and
+    // sometimes it's a VBD, because the POS tagger really sucks), take both to
+    // be sure
+    RULES.on(MONTH).answered(-1, "DATE").answer("DATE").markIf(-1, WEEKDAY, "DATE");
+    RULES.on(MONTH).with(1, CD | JJ).answer("DATE").markIf(-1, WEEKDAY, "DATE");
+    RULES.on(MONTH);
+
+    RULES.on(AND).with(0, CC).with(-1, CD).with(-1, MULTIPLIER).with(1, CD).answer("NUMBER");
+    RULES.on(CC);
+
+    int noun = NN | NNS | NNP | JJ;
+    RULES.on(CURRENCY_WORD).with(0, noun).with(-1, CD).answered(-1, "NUMBER").answer("MONEY")
+        .spreadBack(CD, "NUMBER", "MONEY").andContinue();
+    RULES.on(ORDINAL).with(0, noun).with(1, MONTH).answer("DATE").andContinue();
+    RULES.on(ORDINAL).with(0, noun).with(1, OF).with(2, MONTH).answer("DATE").andContinue();
+    RULES.on(PART_OF_DAY).with(0, noun).answer("TIME").andContinue();
+    RULES.on(ORDINAL_SUFFIX).with(0, noun).answered(-1, "NUMBER").mark(-1, "ORDINAL").answer("ORDINAL");
+    RULES.on(ORDINAL_SUFFIX).with(0, noun).answered(-1, "DATE").answer("DATE");
+    RULES.on(noun);
+
+    RULES.on(OF).with(0, IN).with(-1, ORDINAL).with(1, MONTH).answer("DATE");
+    RULES.on(O_CLOCK).with(-1, CD).answer("TIME");
+    RULES.compile();
+  }
 
-  private static final Pattern DATE_PATTERN2 = Pattern.compile("[12][0-9]{3}[-/](?:0?[1-9]|1[0-2])[-/][0-3][0-9]");
+  /**
+   * The classes of a word: a lookup in the word lists, and a look at the
+   * characters for the numbers, dates and times.
+   */
+  static int wordClasses(String word) {
+    if (word == null || word.isEmpty())
+      return 0;
+    return WORDS.get(word) | CASED_WORDS.get(word) | shapeClasses(word);
+  }
 
-  private static final Pattern TIME_PATTERN = Pattern.compile("[0-2]?[0-9]:[0-5][0-9]");
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
 
-  private static final Pattern TIME_PATTERN2 = Pattern.compile("[0-2]?[0-9]:[0-5][0-9]:[0-5][0-9]");
+  private static boolean isDigit(String word, int i, char max) {
+    return i < word.length() && word.charAt(i) >= '0' && word.charAt(i) <= max;
+  }
 
-  private static final Pattern TIME_PATTERN3 = Pattern.compile("[0-2]?[0-9](:[0-5][0-9])?[ap]\\.?m\\.?",
-      Pattern.CASE_INSENSITIVE);
+  private static int shapeClasses(String word) {
+    int length = word.length();
+    int digits = 0;
+    while (digits < length && isDigit(word.charAt(digits)))
+      digits++;
+    if (digits == 0)
+      return length == 3 && word.charAt(0) == '\'' && isDigit(word.charAt(1)) && isDigit(word.charAt(2)) ? YEAR : 0;
+
+    char first = word.charAt(0);
+    boolean day = digits == 1 ? first != '0'
+        : digits == 2 && (first == '1' || first == '2' || first == '3' && word.charAt(1) <= '1');
+    if (digits == length) {
+      int classes = NUMBER;
+      if (length == 2 || length == 4 && first >= '1' && first <= '3')
+        classes |= YEAR;
+      if (day)
+        classes |= DAY;
+      if (length == 4 && first == '0')
+        classes |= ARMY_TIME_MORNING;
+      return classes;
+    }
 
-  private static final Pattern TIME_PATTERN4 = Pattern.compile("[0-2]?[0-9][0-5][0-9][ap]\\.?m?\\.?",
-      Pattern.CASE_INSENSITIVE);
+    int classes = 0;
+    if (day && length == digits + 2 && (word.endsWith("st") || word.endsWith("nd") || word.endsWith("rd")))
+      classes |= DAY;
+    if (length == digits + 2 && isOrdinalNumber(word, digits))
+      classes |= ORDINAL;
+    if (isTime(word, digits))
+      classes |= TIME;
+    if (isDate(word, digits))
+      classes |= DATE;
+    return classes;
+  }
 
-  private static final Pattern AM_PM = Pattern.compile("(a\\.?m\\.?)|(p\\.?m\\.?)", Pattern.CASE_INSENSITIVE);
+  // [2-9]?1st|[2-9]?2nd|[2-9]?3rd|1[0-9]th|[2-9]?[04-9]th|100+th, regardless of case
+  private static boolean isOrdinalNumber(String word, int digits) {
+    char first = word.charAt(0);
+    char last = word.charAt(digits - 1);
+    char s1 = Character.toLowerCase(word.charAt(digits));
+    char s2 = Character.toLowerCase(word.charAt(digits + 1));
+    if (s1 == 't' && s2 == 'h') {
+      if (digits == 2 && first == '1')
+        return true;
+      if (digits >= 3)
+        return first == '1' && endOfZeros(word, 1) == digits;
+      return (digits == 1 || first >= '2') && (last == '0' || last >= '4');
+    }
+    char expected;
+    if (s1 == 's' && s2 == 't')
+      expected = '1';
+    else if (s1 == 'n' && s2 == 'd')
+      expected = '2';
+    else if (s1 == 'r' && s2 == 'd')
+      expected = '3';
+    else
+      return false;
+    return last == expected && (digits == 1 || digits == 2 && first >= '2');
+  }
 
-  public static final Pattern CURRENCY_WORD_PATTERN = Pattern.compile(
-      "(?:dollar|cent|euro|buck)s?|penny|pence|yen|yuan|won",
-      Pattern.CASE_INSENSITIVE);
+  private static int endOfZeros(String word, int i) {
+    while (i < word.length() && word.charAt(i) == '0')
+      i++;
+    return i;
+  }
 
-  // pattern matches: dollar, pound sign XML escapes; pound sign, yen sign, euro, won; other country dollars; now omit # for pound
-  // TODO: Delete # as currency.  But doing this involves changing PTBTokenizer currency normalization rules
-  // Code \u0023 '#' was used for pound '£' in the ISO version of ASCII (ISO 646), and this is found in very old materials
-  // e.g., the 1999 Penn Treebank, but we now don't recognize this, as it now doesn't occur and wrongly recognizes
-  // currency whenever someone refers to the #4 country etc.
-  public static final Pattern CURRENCY_SYMBOL_PATTERN = Pattern
-      .compile("\\$|#|&#163;|&pound;|\u00A3|\u00A5|\u20AC|\u20A9|(?:US|HK|A|C|NT|S|NZ)\\$", Pattern.CASE_INSENSITIVE); // TODO: No longer include archaic # for pound
+  // [0-2]?[0-9]:[0-5][0-9], the same followed by :[0-5][0-9], or by am or pm,
+  // [0-2]?[0-9] followed by am or pm, and [0-2]?[0-9][0-5][0-9] followed by a or
+  // p, and maybe m, with optional dots
+  private static boolean isTime(String word, int digits) {
+    boolean hour = digits == 1 || digits == 2 && word.charAt(0) <= '2';
+    if (hour && word.charAt(digits) == ':') {
+      int i = digits + 1;
+      if (!isDigit(word, i, '5') || !isDigit(word, i + 1, '9'))
+        return false;
+      i += 2;
+      if (i == word.length())
+        return true;
+      if (word.charAt(i) == ':')
+        return i + 3 == word.length() && isDigit(word, i + 1, '5') && isDigit(word, i + 2, '9');
+      return isAmPm(word, i, true);
+    }
+    if (hour)
+      return isAmPm(word, digits, true);
+    if (digits == 3 && word.charAt(1) <= '5' || digits == 4 && word.charAt(0) <= '2' && word.charAt(2) <= '5')
+      return isAmPm(word, digits, false);
+    return false;
+  }
 
-  private static final Pattern ORDINAL_PATTERN = Pattern.compile(
-      "(?i)[2-9]?1st|[2-9]?2nd|[2-9]?3rd|1[0-9]th|[2-9]?[04-9]th|100+th|zeroth|first|second|third|fourth|fifth|sixth|seventh|eighth|ninth|tenth|eleventh|twelfth|thirteenth|fourteenth|fifteenth|sixteenth|seventeenth|eighteenth|nineteenth|twentieth|twenty-first|twenty-second|twenty-third|twenty-fourth|twenty-fifth|twenty-sixth|twenty-seventh|twenty-eighth|twenty-ninth|thirtieth|thirty-first|fortieth|fiftieth|sixtieth|seventieth|eightieth|ninetieth|hundredth|thousandth|millionth");
+  // whether the end of the word from i is [ap]\.?m\.? regardless of case, or
+  // [ap]\.?m?\.? if the m is optional
+  private static boolean isAmPm(String word, int i, boolean needsM) {
+    int length = word.length();
+    if (i == length)
+      return false;
+    char c = Character.toLowerCase(word.charAt(i++));
+    if (c != 'a' && c != 'p')
+      return false;
+    if (i < length && word.charAt(i) == '.')
+      i++;
+    if (i < length && Character.toLowerCase(word.charAt(i)) == 'm')
+      i++;
+    else if (needsM)
+      return false;
+    if (i < length && word.charAt(i) == '.')
+      i++;
+    return i == length;
+  }
 
-  private static final Pattern ORDINAL_SUFFIX_PATTERN = Pattern.compile("st|nd|rd|th", Pattern.CASE_INSENSITIVE);
+  // (?:[1-9]|[0-3][0-9])\\?/(?:[1-9]|[0-3][0-9])\\?/(?:[1-3][0-9]{3}|[0-9]{2})
+  // or [12][0-9]{3}[-/](?:0?[1-9]|1[0-2])[-/][0-3][0-9]
+  private static boolean isDate(String word, int digits) {
+    int length = word.length();
+    if (digits == 4) {
+      if (word.charAt(0) != '1' && word.charAt(0) != '2')
+        return false;
+      int i = digits;
+      if (word.charAt(i) != '-' && word.charAt(i) != '/')
+        return false;
+      int end = endOfDigits(word, ++i);
+      if (end - i == 1 ? word.charAt(i) == '0'
+          : end - i != 2 || !(word.charAt(i) == '0' && word.charAt(i + 1) != '0'
+              || word.charAt(i) == '1' && word.charAt(i + 1) <= '2'))
+        return false;
+      i = end;
+      if (i == length || word.charAt(i) != '-' && word.charAt(i) != '/')
+        return false;
+      return i + 3 == length && isDigit(word, i + 1, '3') && isDigit(word, i + 2, '9');
+    }
 
-  private static final Pattern ARMY_TIME_MORNING = Pattern.compile("0([0-9])([0-9]){2}");
+    int i = 0;
+    for (int field = 0; field < 2; field++) {
+      int end = endOfDigits(word, i);
+      if (end - i == 1 ? word.charAt(i) == '0' : end - i != 2 || word.charAt(i) > '3')
+        return false;
+      i = end;
+      if (i < length && word.charAt(i) == '\\')
+        i++;
+      if (i == length || word.charAt(i) != '/')
+        return false;
+      i++;
+    }
+    int end = endOfDigits(word, i);
+    if (end != length)
+      return false;
+    return end - i == 2 || end - i == 4 && word.charAt(i) >= '1' && word.charAt(i) <= '3';
+  }
 
-  private static final Pattern PART_OF_DAY_PATTERN = Pattern.compile("noon|midnight|midday", Pattern.CASE_INSENSITIVE);
+  private static int endOfDigits(String word, int i) {
+    while (i < word.length() && isDigit(word.charAt(i)))
+      i++;
+    return i;
+  }
 
   /**
    * Classify a {@link List} of {@link CoreLabel}s.
@@ -127,186 +378,35 @@ public class NumberSequenceClassifier extends AbstractSequenceClassifier<CoreLab
    */
   @Override
   public List<CoreLabel> classify(List<CoreLabel> document) {
-    // if (DEBUG) { System.err.println("NumberSequenceClassifier tagging"); }
+    String[] answers = classifyAnswers(document);
+    for (int i = 0; i < answers.length; i++)
+      document.get(i).set(CoreAnnotations.AnswerAnnotation.class, answers[i]);
+    return document;
+  }
 
-    for (CoreLabel me : document) {
+  /**
+   * Classify the tokens, and return their answers instead of annotating them.
+   * The tokens made of numbers get the part of speech CD.
+   *
+   * This does not change the classifier, so one instance can be shared by
+   * all threads.
+   *
+   * @return the answer of each token
+   */
+  public String[] classifyAnswers(List<? extends CoreLabel> document) {
+    int[] classes = new int[document.size()];
+    for (int i = 0; i < classes.length; i++) {
+      CoreLabel me = document.get(i);
+      classes[i] = wordClasses(me.word());
       // a thing made of numbers is a number, let's not be stupid about it
-      if (NUMBER_PATTERN.matcher(me.word()).matches() || WORD_NUMBER_PATTERN.matcher(me.word()).matches())
+      if ((classes[i] & (NUMBER | WORD_NUMBER)) != 0)
         me.setTag("CD");
+      classes[i] |= TAGS.get(me.tag());
     }
 
-    PaddedList<CoreLabel> pl = new PaddedList<>(document, pad);
-    for (int i = 0, sz = pl.size(); i < sz; i++) {
-      CoreLabel me = pl.get(i);
-      CoreLabel prev = pl.get(i - 1);
-      CoreLabel next = pl.get(i + 1);
-      CoreLabel next2 = pl.get(i + 2);
-      //if (DEBUG) { System.err.println("Tagging:" + me.word()); }
-      me.set(CoreAnnotations.AnswerAnnotation.class, flags.backgroundSymbol);
-
-      /*if ("morning".equals(me.word()) || "evening".equals(me.word())) {
-        if ("at".equals(next.word()) &&
-            (TIME_PATTERN.matcher(next2.word()).matches() || TIME_PATTERN2.matcher(next2.word()).matches()
-                || TIME_PATTERN3.matcher(next2.word()).matches())) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-          next.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-          next2.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-        }
-      }*/
-      if (CURRENCY_SYMBOL_PATTERN.matcher(me.word()).matches() &&
-          (prev.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("CD") ||
-              next.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("CD"))) {
-        // dollar, pound, pound, yen,
-        // Penn Treebank ancient # as pound, euro,
-        if (DEBUG) {
-          System.err.println("Found currency sign:" + me.word());
-        }
-        me.set(CoreAnnotations.AnswerAnnotation.class, "MONEY");
-      } else if (TIME_PATTERN.matcher(me.word()).matches() || TIME_PATTERN2.matcher(me.word()).matches()
-          || TIME_PATTERN3.matcher(me.word()).matches() || TIME_PATTERN4.matcher(me.word()).matches()) {
-        me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-      } else if (DATE_PATTERN.matcher(me.word()).matches() || DATE_PATTERN2.matcher(me.word()).matches()) {
-        me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-      } else if (me.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("CD")) {
-        if (DEBUG) {
-          System.err.println("Tagging CD:" + me.word());
-        }
-
-        if (next.get(CoreAnnotations.TextAnnotation.class) != null &&
-            me.get(CoreAnnotations.TextAnnotation.class) != null &&
-            DAY_PATTERN.matcher(me.get(CoreAnnotations.TextAnnotation.class)).matches() &&
-            MONTH_PATTERN.matcher(next.get(CoreAnnotations.TextAnnotation.class)).matches()) {
-          // deterministically make DATE for British-style number before month
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-          if (prev.word() != null &&
-              WEEKDAY_PATTERN.matcher(prev.word()).matches())
-            prev.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        } else if (prev.get(CoreAnnotations.TextAnnotation.class) != null &&
-            MONTH_PATTERN.matcher(prev.get(CoreAnnotations.TextAnnotation.class)).matches() &&
-            me.get(CoreAnnotations.TextAnnotation.class) != null &&
-            DAY_PATTERN.matcher(me.get(CoreAnnotations.TextAnnotation.class)).matches()) {
-          // deterministically make DATE for number after month
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        } else if (ARMY_TIME_MORNING.matcher(me.word()).matches()) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-        } else if (YEAR_PATTERN.matcher(me.word()).matches() &&
-            prev.getString(CoreAnnotations.AnswerAnnotation.class).equals("DATE") &&
-            (MONTH_PATTERN.matcher(prev.word()).matches() ||
-                pl.get(i - 2).get(CoreAnnotations.AnswerAnnotation.class).equals("DATE"))) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        } else if ("o'clock".equals(next.word())) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-        } else {
-          if (DEBUG) {
-            System.err.println("Found number:" + me.word());
-          }
-          if (prev.getString(CoreAnnotations.AnswerAnnotation.class).equals("MONEY")) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "MONEY");
-          } else {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "NUMBER");
-          }
-        }
-      } else if (AM_PM.matcher(me.word()).matches() &&
-          (prev.get(CoreAnnotations.AnswerAnnotation.class).equals("TIME") ||
-              prev.get(CoreAnnotations.AnswerAnnotation.class).equals("NUMBER"))) {
-        prev.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-        me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-      } else if (me.getString(CoreAnnotations.PartOfSpeechAnnotation.class) != null &&
-          me.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals(",") &&
-          prev.getString(CoreAnnotations.AnswerAnnotation.class).equals("DATE") &&
-          next.word() != null && YEAR_PATTERN.matcher(next.word()).matches()) {
-        me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-      } else if (MONTH_PATTERN.matcher(me.word()).matches()) {
-        // sometimes the POS tag of a month is NNP and sometimes it's NN (and sometimes it's a VBD, because the POS tagger really sucks), take both to be sure
-        if (prev.getString(CoreAnnotations.AnswerAnnotation.class).equals("DATE") ||
-            next.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("CD") ||
-            next.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("JJ")) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-
-          if (prev.word() != null &&
-              WEEKDAY_PATTERN.matcher(prev.word()).matches())
-            prev.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        }
-      } else if (me.getString(CoreAnnotations.PartOfSpeechAnnotation.class) != null &&
-          me.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("CC")) {
-        if (prev.tag() != null && prev.tag().equals("CD") &&
-            next.tag() != null && next.tag().equals("CD") &&
-            me.get(CoreAnnotations.TextAnnotation.class) != null &&
-            me.get(CoreAnnotations.TextAnnotation.class).equalsIgnoreCase("and")) {
-          if (DEBUG) {
-            System.err.println("Found number and:" + me.word());
-          }
-          String wd = prev.word();
-          if (wd.equalsIgnoreCase("hundred") ||
-              wd.equalsIgnoreCase("thousand") ||
-              wd.equalsIgnoreCase("million") ||
-              wd.equalsIgnoreCase("billion") ||
-              wd.equalsIgnoreCase("trillion")) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "NUMBER");
-          }
-        }
-      } else if (me.getString(CoreAnnotations.PartOfSpeechAnnotation.class) != null &&
-          (me.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("NN") ||
-              me.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("NNS") ||
-              me.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("NNP") ||
-              me.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("JJ"))) {
-        if (CURRENCY_WORD_PATTERN.matcher(me.word()).matches()) {
-          if (prev.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("CD") &&
-              prev.getString(CoreAnnotations.AnswerAnnotation.class).equals("NUMBER")) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "MONEY");
-
-            for (int j = i - 1; j >= 0; j--) {
-              CoreLabel prev2 = pl.get(j);
-              if (prev2.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("CD") &&
-                  prev2.getString(CoreAnnotations.AnswerAnnotation.class).equals("NUMBER"))
-                prev2.set(CoreAnnotations.AnswerAnnotation.class, "MONEY");
-              else
-                break;
-            }
-          }
-        } else if (ORDINAL_PATTERN.matcher(me.word()).matches()) {
-          if ((next.word() != null && MONTH_PATTERN.matcher(next.word()).matches()) ||
-              (next.word() != null && next.word().equalsIgnoreCase("of") &&
-                  next2.word() != null && MONTH_PATTERN.matcher(next2.word()).matches())) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-          }
-        }
-        if (PART_OF_DAY_PATTERN.matcher(me.word()).matches()) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-        }
-        if (ORDINAL_SUFFIX_PATTERN.matcher(me.word()).matches()) {
-          if ("NUMBER".equals(prev.get(CoreAnnotations.AnswerAnnotation.class))) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "ORDINAL");
-            prev.set(CoreAnnotations.AnswerAnnotation.class, "ORDINAL");
-          } else if ("DATE".equals(prev.get(CoreAnnotations.AnswerAnnotation.class))) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-          }
-        }
-      } else if (me.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("JJ")) {
-        if ((next.word() != null && MONTH_PATTERN.matcher(next.word()).matches()) ||
-            next.word() != null && next.word().equalsIgnoreCase("of") &&
-                next2.word() != null && MONTH_PATTERN.matcher(next2.word()).matches()) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        } else if (prev.word() != null && MONTH_PATTERN.matcher(prev.word()).matches()) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        } else if (ORDINAL_PATTERN.matcher(me.word()).matches()) {
-          // don't do other tags: don't want 'second' as noun, or 'first' as adverb
-          // introducing reasons
-          me.set(CoreAnnotations.AnswerAnnotation.class, "ORDINAL");
-        }
-      } else if (me.getString(CoreAnnotations.PartOfSpeechAnnotation.class).equals("IN") &&
-          me.word().equalsIgnoreCase("of")) {
-        if (prev.get(CoreAnnotations.TextAnnotation.class) != null &&
-            ORDINAL_PATTERN.matcher(prev.get(CoreAnnotations.TextAnnotation.class)).matches() &&
-            next.get(CoreAnnotations.TextAnnotation.class) != null &&
-            MONTH_PATTERN.matcher(next.get(CoreAnnotations.TextAnnotation.class)).matches()) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        }
-      } else if ("o'clock".equals(me.word()) && "CD".equals(prev.getString(CoreAnnotations.PartOfSpeechAnnotation.class))) {
-        me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-      }
-    }
-    return document;
+    String[] answers = new String[document.size()];
+    RULES.apply(classes, answers, flags.backgroundSymbol);
+    return answers;
   }
 
   // Implement other methods of AbstractSequenceClassifier interface
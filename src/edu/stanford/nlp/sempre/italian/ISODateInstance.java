@@ -1,6 +1,7 @@
 package edu.stanford.nlp.sempre.italian;
 
 import edu.stanford.nlp.ie.QuantifiableEntityNormalizer;
+import edu.stanford.nlp.sempre.WordTrie;
 import edu.stanford.nlp.util.logging.Redwood;
 
 import java.util.ArrayList;
@@ -35,30 +36,31 @@ class ISODateInstance  {
   private static final boolean DEBUG = false;
   private final ArrayList<String> tokens = new ArrayList<>(); //each token contains some piece of the date, from our input.
   
-  private static final Pattern[] monthArray = {
-      Pattern.compile("gennaio|gen\\.?", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("febbraio|feb\\.?", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("marzo|mar\\.?", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("aprile|apr\\.?", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("maggio|mag\\.?", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("giugno|giu\\.?", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("luglio|lug\\.?", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("agosto|ago?\\.", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("settembre|sett?\\.?", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("ottobre|ott\\.?", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("novembre|nov\\.?", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("dicembre|dic\\.?", Pattern.CASE_INSENSITIVE)
-  };
-  
-  private static final Pattern[] weekdayArray = {
-      Pattern.compile("domenica", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("lunedì", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("martedì", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("mercoledì", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("giovedì", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("venerdì", Pattern.CASE_INSENSITIVE),
-      Pattern.compile("sabato", Pattern.CASE_INSENSITIVE)
-  };
+  // the words of each month, with the bit of the month's number minus one
+  private static final WordTrie MONTHS = new WordTrie(true);
+  static {
+    MONTHS.addAll(1, "gennaio", "gen", "gen.");
+    MONTHS.addAll(1 << 1, "febbraio", "feb", "feb.");
+    MONTHS.addAll(1 << 2, "marzo", "mar", "mar.");
+    MONTHS.addAll(1 << 3, "aprile", "apr", "apr.");
+    MONTHS.addAll(1 << 4, "maggio", "mag", "mag.");
+    MONTHS.addAll(1 << 5, "giugno", "giu", "giu.");
+    MONTHS.addAll(1 << 6, "luglio", "lug", "lug.");
+    MONTHS.addAll(1 << 7, "agosto", "ag.", "ago.");
+    MONTHS.addAll(1 << 8, "settembre", "set", "set.", "sett", "sett.");
+    MONTHS.addAll(1 << 9, "ottobre", "ott", "ott.");
+    MONTHS.addAll(1 << 10, "novembre", "nov", "nov.");
+    MONTHS.addAll(1 << 11, "dicembre", "dic", "dic.");
+  }
+
+  private static final String[] WEEKDAY_NAMES = { "domenica", "luned\u00EC", "marted\u00EC", "mercoled\u00EC",
+      "gioved\u00EC", "venerd\u00EC", "sabato" };
+  // the weekdays, each with the bit of its index in WEEKDAY_NAMES
+  private static final WordTrie WEEKDAYS = new WordTrie(true);
+  static {
+    for (int i = 0; i < WEEKDAY_NAMES.length; i++)
+      WEEKDAYS.add(WEEKDAY_NAMES[i], 1 << i);
+  }
 
   /**
    * String of the format {@literal <year><month><day>}.  Representations
@@ -275,30 +277,20 @@ class ISODateInstance  {
   }
 
   private boolean extractMonth(String inputDate) {
-    boolean foundMonth = false;
-
-    for (int i = 0; i < 12; i++) {
-      String extract = "";
-      Matcher m = monthArray[i].matcher(inputDate);
-      if (m.find()) {
-        extract = m.group(0);
-      }
-      if ( ! "".equals(extract)) {
-        if (!foundMonth) {
-          if (DEBUG) {
-            log.info("month extracted: " + extract);
-          }
-          int monthNum = i + 1;
-          if (isoDate.length() != 4) {
-            isoDate = "****";
-          }
-          String month = (monthNum < 10) ? "0" + monthNum : String.valueOf(monthNum);
-          isoDate += month;
-          foundMonth = true;
-        }
-      }
+    // the first month of the year that the date mentions
+    int months = MONTHS.occurrences(inputDate);
+    if (months == 0)
+      return false;
+    int monthNum = Integer.numberOfTrailingZeros(months) + 1;
+    if (DEBUG) {
+      log.info("month extracted: " + monthNum);
+    }
+    if (isoDate.length() != 4) {
+      isoDate = "****";
     }
-    return foundMonth;
+    String month = (monthNum < 10) ? "0" + monthNum : String.valueOf(monthNum);
+    isoDate += month;
+    return true;
   }
 
   private boolean extractDay(String inputDate) {
@@ -340,14 +332,10 @@ class ISODateInstance  {
    *
    */
   private boolean extractWeekday(String inputDate) {
-    for (Pattern p : weekdayArray) {
-      Matcher m = p.matcher(inputDate);
-      if (m.find()) {
-        String extract = m.group(0);
-        isoDate = extract.toLowerCase();
-        return true;
-      }
-    }
-    return false;
+    int weekdays = WEEKDAYS.occurrences(inputDate);
+    if (weekdays == 0)
+      return false;
+    isoDate = WEEKDAY_NAMES[Integer.numberOfTrailingZeros(weekdays)];
+    return true;
   }
 }
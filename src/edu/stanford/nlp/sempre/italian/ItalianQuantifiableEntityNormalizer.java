@@ -3,19 +3,20 @@ package edu.stanford.nlp.sempre.italian;
 import static java.lang.System.err;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import edu.stanford.nlp.ie.AbstractSequenceClassifier;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.sempre.AbstractQuantifiableEntityNormalizer;
+import edu.stanford.nlp.sempre.NumberGrammar;
+import edu.stanford.nlp.sempre.OneEditIndex;
 import edu.stanford.nlp.stats.ClassicCounter;
 import edu.stanford.nlp.util.CoreMap;
-import edu.stanford.nlp.util.EditDistance;
 import edu.stanford.nlp.util.Generics;
 import edu.stanford.nlp.util.StringUtils;
 
@@ -59,16 +60,20 @@ public class ItalianQuantifiableEntityNormalizer implements AbstractQuantifiable
   private static final Pattern timePattern = Pattern
       .compile("([0-2]?[0-9])((?::?[0-5][0-9]){0,2})");
 
-  // note: the pattern assumes the input is already Americanized
-  private static final Pattern decimalPattern = Pattern.compile("^[0-9]+(?:\\.[0-9]+)?");
-
   //Collections of entity types
   private static final Set<String> quantifiable;  //Entity types that are quantifiable
-  private static final Map<String, String> timeUnitWords;
-  private static final Map<String, Double> moneyMultipliers;
+  private static final OneEditIndex<String> timeUnitWords;
   private static final Map<String, Character> currencyWords;
   public static final ClassicCounter<String> wordsToValues;
   public static final ClassicCounter<String> ordinalsToValues;
+  // the words of the multipliers and the ordinals, to match them despite a typo
+  private static final OneEditIndex<Double> multiplierWords;
+  private static final OneEditIndex<Double> ordinalWords;
+  // the numbers spelled out in one word, like duecentotrentacinque
+  private static final NumberGrammar numberGrammar;
+
+  // the rules run by applySpecializedNER, shared by all threads
+  private static final NumberSequenceClassifier numberSequenceClassifier = new NumberSequenceClassifier();
 
   static {
 
@@ -81,21 +86,21 @@ public class ItalianQuantifiableEntityNormalizer implements AbstractQuantifiable
     quantifiable.add("ORDINAL");
     quantifiable.add("DURATION");
 
-    timeUnitWords = Generics.newHashMap();
-    timeUnitWords.put("secondo", "S");
-    timeUnitWords.put("secondi", "S");
-    timeUnitWords.put("minuto", "m");
-    timeUnitWords.put("minuti", "m");
-    timeUnitWords.put("ora", "H");
-    timeUnitWords.put("ore", "H");
-    timeUnitWords.put("giorno", "D");
-    timeUnitWords.put("giorni", "D");
-    timeUnitWords.put("settimana", "W");
-    timeUnitWords.put("settimane", "W");
-    timeUnitWords.put("mese", "M");
-    timeUnitWords.put("mesi", "M");
-    timeUnitWords.put("anno", "Y");
-    timeUnitWords.put("anni", "Y");
+    Map<String, String> timeUnits = Generics.newHashMap();
+    timeUnits.put("secondo", "S");
+    timeUnits.put("secondi", "S");
+    timeUnits.put("minuto", "m");
+    timeUnits.put("minuti", "m");
+    timeUnits.put("ora", "H");
+    timeUnits.put("ore", "H");
+    timeUnits.put("giorno", "D");
+    timeUnits.put("giorni", "D");
+    timeUnits.put("settimana", "W");
+    timeUnits.put("settimane", "W");
+    timeUnits.put("mese", "M");
+    timeUnits.put("mesi", "M");
+    timeUnits.put("anno", "Y");
+    timeUnits.put("anni", "Y");
 
     currencyWords = Generics.newHashMap();
     currencyWords.put("dollar[oi]", '$');
@@ -119,10 +124,12 @@ public class ItalianQuantifiableEntityNormalizer implements AbstractQuantifiable
     currencyWords.put("\u20A9", '\u20A9');  // Won
     currencyWords.put("yuan", '\u5143');   // Yuan
 
-    moneyMultipliers = Generics.newHashMap();
-    moneyMultipliers.put("^miliard[io]", 1000000000.0);
-    moneyMultipliers.put("^milion[ie]", 1000000.0);
-    moneyMultipliers.put("^mila", 1000.0);
+    Map<String, Double> multipliers = Generics.newHashMap();
+    multipliers.put("miliardo", 1000000000.0);
+    multipliers.put("miliardi", 1000000000.0);
+    multipliers.put("milione", 1000000.0);
+    multipliers.put("milioni", 1000000.0);
+    multipliers.put("mila", 1000.0);
 
     wordsToValues = new ClassicCounter<>();
     wordsToValues.setCount("zero", 0.0);
@@ -205,36 +212,64 @@ public class ItalianQuantifiableEntityNormalizer implements AbstractQuantifiable
     ordinalsToValues.setCount("millesim", 1000.0);
     ordinalsToValues.setCount("milionesim", 1000000.0);
     ordinalsToValues.setCount("miliardesim", 1000000000.0);
-  }
 
-  public ItalianQuantifiableEntityNormalizer() {
+    timeUnitWords = new OneEditIndex<>(timeUnits);
+    multiplierWords = new OneEditIndex<>(multipliers);
+    ordinalWords = new OneEditIndex<>(valuesOf(ordinalsToValues));
+
+    numberGrammar = new NumberGrammar(true);
+    for (String word : wordsToValues.keySet())
+      numberGrammar.addUnit(word, wordsToValues.getCount(word));
+    // mille is a scale, like mila (millecento)
+    numberGrammar.addMultiplier("mille", 1000.0);
+    numberGrammar.addMultiplier("cento", 100.0);
+    for (Map.Entry<String, Double> entry : multipliers.entrySet())
+      numberGrammar.addMultiplier(entry.getKey(), entry.getValue());
+    // un milione, ventitré, and the tens and cento without their last vowel
+    // before uno and otto (ventotto, centottanta)
+    numberGrammar.addUnit("un", 1.0);
+    numberGrammar.addUnit("tr\u00e9", 3.0);
+    numberGrammar.addUnit("vent", 20.0);
+    numberGrammar.addUnit("trent", 30.0);
+    numberGrammar.addUnit("quarant", 40.0);
+    numberGrammar.addUnit("cinquant", 50.0);
+    numberGrammar.addUnit("sessant", 60.0);
+    numberGrammar.addUnit("settant", 70.0);
+    numberGrammar.addUnit("ottant", 80.0);
+    numberGrammar.addUnit("novant", 90.0);
+    numberGrammar.addMultiplier("cent", 100.0);
+
+    // the ordinals are a stem and the ending of the gender and number; from
+    // twenty on, a cardinal and a unit ending (ventitre-esimo)
+    Map<String, Double> ordinalStems = valuesOf(ordinalsToValues);
+    // as well as the misspelled diciasettesim and ottanetesim
+    ordinalStems.put("diciassettesim", 17.0);
+    ordinalStems.put("ottantesim", 80.0);
+    ordinalStems.put("unesim", 1.0);
+    ordinalStems.put("duesim", 2.0);
+    ordinalStems.put("treesim", 3.0);
+    ordinalStems.put("quattresim", 4.0);
+    ordinalStems.put("cinquesim", 5.0);
+    ordinalStems.put("seiesim", 6.0);
+    ordinalStems.put("settesim", 7.0);
+    ordinalStems.put("ottesim", 8.0);
+    ordinalStems.put("novesim", 9.0);
+    for (Map.Entry<String, Double> entry : ordinalStems.entrySet()) {
+      for (String ending : new String[] { "o", "a", "i", "e" })
+        numberGrammar.addOrdinal(entry.getKey() + ending, entry.getValue());
+    }
+    numberGrammar.compile();
   }
 
-  /**
-   * This method returns the closest match in set such that the match
-   * has more than three letters and differs from word only by one substitution,
-   * deletion, or insertion. If not match exists, returns null.
-   */
-  private static String getOneSubstitutionMatch(String word, Set<String> set) {
-    // TODO (?) pass the EditDistance around more places to make this
-    // more efficient.  May not really matter.
-    EditDistance ed = new EditDistance();
-    for (String cur : set) {
-      if (isOneSubstitutionMatch(word, cur, ed))
-        return cur;
-    }
-    return null;
+  public ItalianQuantifiableEntityNormalizer() {
   }
 
-  private static boolean isOneSubstitutionMatch(String word, String match,
-      EditDistance ed) {
-    if (word.equalsIgnoreCase(match))
-      return true;
-    if (match.length() > 3) {
-      if (ed.score(word, match) <= 1)
-        return true;
-    }
-    return false;
+  // the words of the counter and their values, in the order of the counter
+  private static Map<String, Double> valuesOf(ClassicCounter<String> counter) {
+    Map<String, Double> values = new LinkedHashMap<>();
+    for (String word : counter.keySet())
+      values.put(word, counter.getCount(word));
+    return values;
   }
 
   /**
@@ -293,7 +328,7 @@ public class ItalianQuantifiableEntityNormalizer implements AbstractQuantifiable
     String timeword = s.substring(space+1);
     String numword = s.substring(0, space);
     
-    String multiplier = timeUnitWords.get(timeword);
+    String multiplier = timeUnitWords.matchValue(timeword);
     if (multiplier == null)
       return null;
     
@@ -422,74 +457,16 @@ public class ItalianQuantifiableEntityNormalizer implements AbstractQuantifiable
         err.println("Deleted (): " + s);
     }
     s = s.toLowerCase();
-    
-    // handle numbers written in words
-    
-    // concatenate everything together
-    s = s.replaceAll("[ -]", "");
+    // "e" joins the words of a number ("cento e venti"), like a space
+    s = s.replace(" e ", " ");
+
+    // handle numbers written in words, all together, and in digits
     if (DEBUG2)
       err.println("Looking for number words in |" + s + "|; multiplier is " + multiplier);
-    
-    double value = 0;
-    double currentTerm = 0;
-    
-    boolean first = true;
-    while (s.length() > 0) {
-      if (s.startsWith("cento")) {
-        if (currentTerm == 0.0)
-          currentTerm = 100;
-        else
-          currentTerm *= 100;
-        s = s.substring("cento".length());
-        first = false;
-        continue;
-      }
-      
-      boolean found = false;
-      if (!first) {
-        for (String mult : moneyMultipliers.keySet()) {
-          Matcher matcher = Pattern.compile(mult).matcher(s);
-          
-          if (matcher.find()) {
-            if (currentTerm == 0.0)
-              currentTerm = moneyMultipliers.get(mult);
-            else
-              currentTerm *= moneyMultipliers.get(mult);
-            found = true;
-            s = s.substring(matcher.end());
-            value += currentTerm;
-            currentTerm = 0;
-            break;
-          }
-        }
-        if (found)
-          continue;
-      }
-      
-      Matcher decimalMatcher = decimalPattern.matcher(s);
-      if (decimalMatcher.find()) {
-        currentTerm += Double.parseDouble(decimalMatcher.group());
-        s = s.substring(decimalMatcher.end());
-        first = false;
-        continue;
-      }
-      
-      for (String word : wordsToValues.keySet()) {
-        if (s.startsWith(word)) {
-          currentTerm += wordsToValues.getCount(word);
-          found = true;
-          s = s.substring(word.length());
-          break;
-        }
-      }
-      
-      if (!found)
-        break;
-
-      first = false;
-    }
-    
-    value += currentTerm;
+    double value = numberGrammar.parse(s);
+    // what does not start with a number is 0
+    if (Double.isNaN(value))
+      value = 0;
     return Double.toString(value);
   }
 
@@ -522,12 +499,16 @@ public class ItalianQuantifiableEntityNormalizer implements AbstractQuantifiable
       matcher.find();
       // just parse number part, assuming last two letters are st/nd/rd
       return normalizedNumberStringQuiet(matcher.group(), 1.0);
+    }
+    double ordinal = numberGrammar.parseOrdinal(s);
+    if (!Double.isNaN(ordinal)) {
+      return Double.toString(ordinal);
     } else if (ordinalsToValues.containsKey(s.substring(0, s.length()-1))) {
       return Double.toString(ordinalsToValues.getCount(s.substring(0, s.length()-1)));
     } else {
-      String val = getOneSubstitutionMatch(s, ordinalsToValues.keySet());
+      Double val = ordinalWords.matchValue(s);
       if (val != null)
-        return Double.toString(ordinalsToValues.getCount(val));
+        return Double.toString(val);
       else
         return null;
     }
@@ -810,8 +791,7 @@ public class ItalianQuantifiableEntityNormalizer implements AbstractQuantifiable
       }
 
       //repairs mistagged multipliers after a numeric quantity
-      if (!curWord.equals("") && (moneyMultipliers.containsKey(curWord) ||
-          (getOneSubstitutionMatch(curWord, moneyMultipliers.keySet()) != null)) &&
+      if (!curWord.equals("") && multiplierWords.match(curWord) != null &&
           prevNerTag != null && (prevNerTag.equals("MONEY") || prevNerTag.equals("NUMBER"))) {
         wi.setNER(prevNerTag);
       }
@@ -850,38 +830,27 @@ public class ItalianQuantifiableEntityNormalizer implements AbstractQuantifiable
   @Override
   public <E extends CoreLabel> List<E> applySpecializedNER(List<E> l) {
     int sz = l.size();
-    // copy l
-    List<CoreLabel> copyL = new ArrayList<>(sz);
-    for (int i = 0; i < sz; i++) {
-      if (DEBUG2) {
-        if (i == 1) {
-          String tag = l.get(i).get(CoreAnnotations.PartOfSpeechAnnotation.class);
-          if (tag == null || tag.equals("")) {
-            err.println("Quantifiable: error! tag is " + tag);
-          }
+    if (DEBUG2) {
+      if (sz > 1) {
+        String tag = l.get(1).get(CoreAnnotations.PartOfSpeechAnnotation.class);
+        if (tag == null || tag.equals("")) {
+          err.println("Quantifiable: error! tag is " + tag);
         }
       }
-      copyL.add(new CoreLabel(l.get(i)));
     }
-    // run NumberSequenceClassifier
-    AbstractSequenceClassifier<CoreLabel> nsc = new NumberSequenceClassifier();
-    copyL = nsc.classify(copyL);
+    // run NumberSequenceClassifier, which also applies its POS tag overrides
+    String[] answers = numberSequenceClassifier.classifyAnswers(l);
     // update entity only if it was not O
     for (int i = 0; i < sz; i++) {
       E before = l.get(i);
-      CoreLabel nscAnswer = copyL.get(i);
-
-      // copy over any POS tag override that NumberSequenceClassifier applied
-      before.setTag(nscAnswer.tag());
+      String nscAnswer = answers[i];
 
-      // copy over the NER tag too
+      // copy over the NER tag
       if ((before.get(CoreAnnotations.NamedEntityTagAnnotation.class) == null
           || before.get(CoreAnnotations.NamedEntityTagAnnotation.class).equals(BACKGROUND_SYMBOL)
           || before.get(CoreAnnotations.NamedEntityTagAnnotation.class).equals("MISC")) &&
-          (nscAnswer.get(CoreAnnotations.AnswerAnnotation.class) != null
-              && !nscAnswer.get(CoreAnnotations.AnswerAnnotation.class).equals(BACKGROUND_SYMBOL))) {
-        before.set(CoreAnnotations.NamedEntityTagAnnotation.class,
-            nscAnswer.get(CoreAnnotations.AnswerAnnotation.class));
+          (nscAnswer != null && !nscAnswer.equals(BACKGROUND_SYMBOL))) {
+        before.set(CoreAnnotations.NamedEntityTagAnnotation.class, nscAnswer);
       }
     }
 
@@ -6,16 +6,14 @@ import java.io.ObjectOutputStream;
 import java.util.Collection;
 import java.util.List;
 import java.util.Properties;
-import java.util.regex.Pattern;
-
-import com.google.common.base.Joiner;
 
 import edu.stanford.nlp.ie.AbstractSequenceClassifier;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.sempre.NerRules;
+import edu.stanford.nlp.sempre.WordTrie;
 import edu.stanford.nlp.sequences.DocumentReaderAndWriter;
 import edu.stanford.nlp.util.CoreMap;
-import edu.stanford.nlp.util.PaddedList;
 
 /**
  * A copy of edu.stanford.nlp.ie.regexp.NumberSequenceClassifier, with some
@@ -54,69 +52,287 @@ class NumberSequenceClassifier extends AbstractSequenceClassifier<CoreLabel> {
     super(new Properties());
   }
 
-  private static final boolean DEBUG = false;
-
-  private static final Pattern MONTH_PATTERN = Pattern.compile(
-      "gennaio|gen\\.?|febbraio|feb\\.?|marzo|mar\\.?|aprile|apr\\.?|maggio|mag\\.?|giugno|giu\\.?|luglio.|lug.\\.?|agosto|ago\\.?|settembre|sett?\\.?|ottobre|ott\\.?|novembre|nov\\.?|dicembre|dic\\.",
-      Pattern.CASE_INSENSITIVE);
+  // the classes of words that the rules look at, computed once per token
+  private static final int MONTH = 1;
+  private static final int WEEKDAY = 1 << 1;
+  // made of digits
+  private static final int NUMBER = 1 << 2;
+  // a number in letters, like "duecentotrentatre"
+  private static final int NUMBER_IN_WORDS = 1 << 3;
+  // 2017, 17 or '17
+  private static final int YEAR = 1 << 4;
+  // 1 to 31
+  private static final int DAY = 1 << 5;
+  // 31/12/2017 or 2017-12-31
+  private static final int DATE = 1 << 6;
+  // 9:30 or 09:30:15
+  private static final int TIME = 1 << 7;
+  private static final int CURRENCY_WORD = 1 << 8;
+  private static final int CURRENCY_SYMBOL = 1 << 9;
+  // primo, ventunesima
+  private static final int ORDINAL = 1 << 10;
+  private static final int ORDINAL_SUFFIX = 1 << 11;
+  private static final int DAY_POINT = 1 << 12;
+  private static final int PART_OF_DAY = 1 << 13;
+  private static final int MULTIPLIER = 1 << 14;
+  private static final int OF = 1 << 15;
+  private static final int COLON = 1 << 16;
+  private static final int AND = 1 << 17;
+  // the parts of speech
+  private static final int N = 1 << 18;
+  private static final int COMMA = 1 << 19;
+  private static final int CC = 1 << 20;
+  private static final int S = 1 << 21;
+  private static final int SP = 1 << 22;
+  private static final int A = 1 << 23;
+
+  // the closed classes matched regardless of case
+  private static final WordTrie WORDS = new WordTrie(true);
+  static {
+    WORDS.addAll(MONTH, "gennaio", "gen", "gen.", "febbraio", "feb", "feb.", "marzo", "mar", "mar.", "aprile", "apr",
+        "apr.", "maggio", "mag", "mag.", "giugno", "giu", "giu.", "luglio", "lug", "lug.", "agosto", "ago", "ago.",
+        "settembre", "set", "set.", "sett", "sett.", "ottobre", "ott", "ott.", "novembre", "nov", "nov.", "dicembre",
+        "dic.");
+    WORDS.addAll(WEEKDAY, "luned\u00EC", "lun", "marted\u00EC", "mar", "mercoled\u00EC", "mer", "gioved\u00EC",
+        "gio", "venerd\u00EC", "ven", "sabato", "sab", "domenica", "dom");
+    WORDS.addAll(CURRENCY_WORD, "dollaro", "dollari", "cent", "euro", "penny", "pence", "yen", "yuan", "won");
+    // dollar, pound sign XML escapes; pound sign, yen sign, euro, won; other
+    // country dollars
+    WORDS.addAll(CURRENCY_SYMBOL, "$", "&#163;", "&pound;", "\u00A3", "\u00A5", "\u20AC", "\u20A9", "us$", "hk$",
+        "a$", "c$", "nt$", "s$", "nz$");
+    WORDS.addAll(ORDINAL_SUFFIX, "\u00BA", "\u00AA", "\u00B0");
+    WORDS.addAll(DAY_POINT, "mezzogiorno", "mezzod\u00EC", "mezzanotte");
+    WORDS.addAll(PART_OF_DAY, "mattino", "mattina", "pomeriggio", "sera", "notte");
+    WORDS.addAll(MULTIPLIER, "cento", "mille", "milione", "milioni", "miliardo", "miliardi");
+    WORDS.addAll(OF, "di", "del", "della");
+    WORDS.add(":", COLON);
+    WORDS.add("e", AND);
+  }
 
-  private static final Pattern NUMBER_PATTERN = Pattern.compile("[0-9]+");
+  private static final WordTrie TAGS = new WordTrie(false);
+  static {
+    TAGS.add("N", N);
+    TAGS.add(",", COMMA);
+    TAGS.add("CC", CC);
+    TAGS.add("S", S);
+    TAGS.add("SP", SP);
+    TAGS.add("A", A);
+  }
 
-  private static final Pattern YEAR_PATTERN = Pattern.compile("[1-3][0-9]{3}|'?[0-9]{2}");
+  // the rules, in order: the first one that fires on a token gives its answer,
+  // unless it lets the next ones fire too, and a rule without an answer stops
+  // the ones after it
+  private static final NerRules RULES = new NerRules();
+  static {
+    RULES.on(CURRENCY_SYMBOL).with(-1, N).answer("MONEY");
+    RULES.on(CURRENCY_SYMBOL).with(1, N).answer("MONEY");
+    RULES.on(TIME).answer("TIME");
+    RULES.on(DATE).answer("DATE");
+
+    // number : number [: number]
+    // (they are tokenized into separate tokens, cause the tokenizer sucks...)
+    RULES.on(N).with(0, NUMBER).with(1, COLON).with(2, N).with(3, COLON).with(4, N).answer("TIME").mark(1, "TIME")
+        .mark(2, "TIME").mark(3, "TIME").mark(4, "TIME");
+    RULES.on(N).with(0, NUMBER).with(1, COLON).with(2, N).answer("TIME").mark(1, "TIME").mark(2, "TIME");
+    // deterministically make DATE for British-style number before month
+    RULES.on(N).with(0, DAY).with(1, MONTH).answer("DATE").markIf(-1, WEEKDAY, "DATE");
+    RULES.on(N).with(1, MONTH).answer("DATE");
+    RULES.on(N).with(1, OF).with(2, MONTH).answer("DATE");
+    RULES.on(N).with(1, OF).with(2, PART_OF_DAY).answer("TIME");
+    RULES.on(N).with(0, YEAR).answered(-1, "DATE").with(-1, MONTH).answer("DATE");
+    RULES.on(N).with(0, YEAR).answered(-1, "DATE").answered(-2, "DATE").answer("DATE");
+    RULES.on(N).answered(-1, "MONEY").answer("MONEY");
+    RULES.on(N).answer("NUMBER");
+
+    RULES.on(COMMA).answered(-1, "DATE").with(1, YEAR).answer("DATE");
+
+    RULES.on(MONTH).answered(-1, "DATE").answer("DATE").markIf(-1, WEEKDAY, "DATE");
+    RULES.on(MONTH).with(1, N | S | A).answer("DATE").markIf(-1, WEEKDAY, "DATE");
+    RULES.on(MONTH);
+
+    RULES.on(AND).with(0, CC).with(-1, N).with(-1, MULTIPLIER).with(1, N).answer("NUMBER");
+    RULES.on(CC);
+
+    int noun = S | SP | A;
+    RULES.on(CURRENCY_WORD).with(0, noun).with(-1, N).answered(-1, "NUMBER").answer("MONEY")
+        .spreadBack(S, "NUMBER", "MONEY").andContinue();
+    RULES.on(DAY_POINT).with(0, noun).answer("TIME").andContinue();
+    RULES.on(ORDINAL_SUFFIX).with(0, noun).answered(-1, "NUMBER").mark(-1, "ORDINAL").answer("ORDINAL");
+    RULES.on(ORDINAL_SUFFIX).with(0, noun).answered(-1, "DATE").answer("DATE");
+    RULES.on(noun);
+
+    RULES.on(OF).with(-1, N).with(1, MONTH).answer("DATE");
+    RULES.compile();
+  }
 
-  private static final Pattern DAY_PATTERN = Pattern.compile("(?:[1-9]|[12][0-9]|3[01])");
+  // the words that numbers in letters are made of
+  private static final WordTrie NUMBER_WORD_PIECES = new WordTrie(false);
+  static {
+    NUMBER_WORD_PIECES.addAll(NUMBER_IN_WORDS, "uno", "due", "tre", "quattro", "cinque", "sei", "sette", "otto",
+        "nove", "dieci", "undici", "dodici", "tredici", "quattordici", "quindici", "sedici", "diciassette", "diciotto",
+        "diciannove", "venti", "ventuno", "trenta", "trentuno", "quaranta", "quarantuno", "cinquanta", "cinquantuno",
+        "sessanta", "sessantuno", "settanta", "settantuno", "ottanta", "ottantuno", "novanta", "novantuno", "cento",
+        "mille", "mila", "milione", "milioni", "miliardo", "miliardi");
+  }
 
-  private static final Pattern WEEKDAY_PATTERN = Pattern.compile(
-      "lunedì|lun|martedì|mar|mercoledì|mer|giovedì|gio|venerdì|ven|sabato|sab|domenica|dom", Pattern.CASE_INSENSITIVE);
+  // the ordinals, without their last letter, which is o, a, i or e
+  private static final WordTrie ORDINAL_STEMS = new WordTrie(false);
+  static {
+    ORDINAL_STEMS.addAll(ORDINAL, "prim", "second", "terz", "quart", "quint", "sest", "settim", "ottav", "non", "decim",
+        "undicesim", "dodicesim", "tredicesim", "quattordicesim", "quindicesim", "sedicesim", "diciassettesim",
+        "diciottesim", "diciannovesim");
+  }
 
-  private static final Pattern DATE_PATTERN = Pattern
-      .compile("(?:[1-9]|[0-3][0-9])\\\\?/(?:[1-9]|[0-3][0-9])\\\\?/(?:[1-3][0-9]{3}|[0-9]{2})");
+  // how the stems of the ordinals from twenty on end, like ventun-esim-o
+  private static final String[] ORDINAL_STEM_ENDINGS = { "unesim", "duesim", "treesim", "quattresim", "cinquesim",
+      "seiesim", "settesim", "ottesim", "novesim" };
 
-  private static final Pattern DATE_PATTERN2 = Pattern.compile("[12][0-9]{3}[-/](?:0?[1-9]|1[0-2])[-/][0-3][0-9]");
+  /**
+   * The classes of a word: a lookup in the word lists, and a look at the
+   * characters for the numbers, dates and times.
+   */
+  static int wordClasses(String word) {
+    if (word == null || word.isEmpty())
+      return 0;
+    int classes = WORDS.get(word) | shapeClasses(word);
+    if (isNumberInWords(word, 0))
+      classes |= NUMBER_IN_WORDS;
+    if (isOrdinal(word))
+      classes |= ORDINAL;
+    return classes;
+  }
 
-  private static final Pattern TIME_PATTERN = Pattern.compile("[0-2]?[0-9]:[0-5][0-9]");
+  // whether the word from start is made of number pieces, trying each piece
+  // that starts there, like the regular expression (?:uno|due|...)+ would
+  // (which also matches a few non-sensical words like "duedue" or
+  // "quarantatrenta", but they won't appear in the input)
+  private static boolean isNumberInWords(String word, int start) {
+    int node = WordTrie.ROOT;
+    for (int i = start; i < word.length(); i++) {
+      node = NUMBER_WORD_PIECES.step(node, word.charAt(i));
+      if (node < 0)
+        return false;
+      if (NUMBER_WORD_PIECES.value(node) != 0 && (i + 1 == word.length() || isNumberInWords(word, i + 1)))
+        return true;
+    }
+    return false;
+  }
 
-  private static final Pattern TIME_PATTERN2 = Pattern.compile("[0-2][0-9]:[0-5][0-9]:[0-5][0-9]");
+  private static boolean isOrdinal(String word) {
+    int stemEnd = word.length() - 1;
+    char last = word.charAt(stemEnd);
+    if (last != 'o' && last != 'a' && last != 'i' && last != 'e')
+      return false;
+    if (ORDINAL_STEMS.get(word, 0, stemEnd) != 0)
+      return true;
+    // [a-z]+ followed by one of the endings
+    for (String ending : ORDINAL_STEM_ENDINGS) {
+      int prefixEnd = stemEnd - ending.length();
+      if (prefixEnd > 0 && word.startsWith(ending, prefixEnd)) {
+        for (int i = 0; i < prefixEnd; i++) {
+          if (word.charAt(i) < 'a' || word.charAt(i) > 'z')
+            return false;
+        }
+        return true;
+      }
+    }
+    return false;
+  }
 
-  public static final Pattern CURRENCY_WORD_PATTERN = Pattern.compile("dollar[oi]|cent|euro|penny|pence|yen|yuan|won",
-      Pattern.CASE_INSENSITIVE);
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
 
-  // pattern matches: dollar, pound sign XML escapes; pound sign, yen sign, euro,
-  // won; other country dollars
-  public static final Pattern CURRENCY_SYMBOL_PATTERN = Pattern
-      .compile("\\$|&#163;|&pound;|\u00A3|\u00A5|\u20AC|\u20A9|(?:US|HK|A|C|NT|S|NZ)\\$", Pattern.CASE_INSENSITIVE);
+  private static boolean isDigit(String word, int i, char max) {
+    return i < word.length() && word.charAt(i) >= '0' && word.charAt(i) <= max;
+  }
 
-  private static final String[] ALL_NUMBER_WORD_PIECES = { "uno", "due", "tre", "quattro", "cinque", "sei", "sette",
-      "otto", "nove", "dieci", "undici", "dodici", "tredici", "quattordici", "quindici", "sedici", "diciassette",
-      "diciotto", "diciannove", "venti", "ventuno", "trenta", "trentuno", "quaranta", "quarantuno", "cinquanta",
-      "cinquantuno", "sessanta", "sessantuno", "settanta", "settantuno", "ottanta", "ottantuno", "novanta", "novantuno",
-      "cento", "mille", "mila", "milione", "milioni", "miliardo", "miliardi" };
-  // matches all numbers written as words, and a few non-sensical words
-  // like "duedue" or "centotrecentoventimila" or "quarantatrenta"
-  // we don't need to worry about non-sensical words because they won't appear in
-  // the input
-  public static final Pattern NUMBER_IN_WORDS_PATTERN = Pattern
-      .compile("(?:" + Joiner.on('|').join(ALL_NUMBER_WORD_PIECES) + ")+");
+  private static int shapeClasses(String word) {
+    int length = word.length();
+    int digits = 0;
+    while (digits < length && isDigit(word.charAt(digits)))
+      digits++;
+    if (digits == 0)
+      return length == 3 && word.charAt(0) == '\'' && isDigit(word.charAt(1)) && isDigit(word.charAt(2)) ? YEAR : 0;
+
+    char first = word.charAt(0);
+    if (digits == length) {
+      int classes = NUMBER;
+      if (length == 2 || length == 4 && first >= '1' && first <= '3')
+        classes |= YEAR;
+      if (digits == 1 ? first != '0'
+          : digits == 2 && (first == '1' || first == '2' || first == '3' && word.charAt(1) <= '1'))
+        classes |= DAY;
+      return classes;
+    }
 
-  private static final Pattern ORDINAL_PATTERN = Pattern.compile(
-      "(?:prim|second|terz|quart|quint|sest|settim|ottav|non|decim|undicesim|dodicesim|tredicesim|quattordicesim|quindicesim|sedicesim|diciassettesim|diciottesim|diciannovesim|[a-z]+(?:unesim|duesim|treesim|quattresim|cinquesim|seiesim|settesim|ottesim|novesim))[oaie]");
+    int classes = 0;
+    if (isTime(word, digits))
+      classes |= TIME;
+    if (isDate(word, digits))
+      classes |= DATE;
+    return classes;
+  }
 
-  private static final Pattern ORDINAL_SUFFIX_PATTERN = Pattern.compile("[ºª°]", Pattern.CASE_INSENSITIVE);
+  // [0-2]?[0-9]:[0-5][0-9] or [0-2][0-9]:[0-5][0-9]:[0-5][0-9]
+  private static boolean isTime(String word, int digits) {
+    if (!(digits == 1 || digits == 2 && word.charAt(0) <= '2') || word.charAt(digits) != ':')
+      return false;
+    int i = digits + 1;
+    if (!isDigit(word, i, '5') || !isDigit(word, i + 1, '9'))
+      return false;
+    i += 2;
+    if (i == word.length())
+      return true;
+    return digits == 2 && word.charAt(i) == ':' && i + 3 == word.length() && isDigit(word, i + 1, '5')
+        && isDigit(word, i + 2, '9');
+  }
 
-  private static final Pattern DAY_POINT_PATTERN = Pattern.compile("mezzogiorno|mezzodì|mezzanotte",
-      Pattern.CASE_INSENSITIVE);
-  
-  private static final Pattern PART_OF_DAY_PATTERN = Pattern.compile("mattin[oa]|pomeriggio|sera|notte",
-      Pattern.CASE_INSENSITIVE);
+  // (?:[1-9]|[0-3][0-9])\\?/(?:[1-9]|[0-3][0-9])\\?/(?:[1-3][0-9]{3}|[0-9]{2})
+  // or [12][0-9]{3}[-/](?:0?[1-9]|1[0-2])[-/][0-3][0-9]
+  private static boolean isDate(String word, int digits) {
+    int length = word.length();
+    if (digits == 4) {
+      if (word.charAt(0) != '1' && word.charAt(0) != '2')
+        return false;
+      int i = digits;
+      if (word.charAt(i) != '-' && word.charAt(i) != '/')
+        return false;
+      int end = endOfDigits(word, ++i);
+      if (end - i == 1 ? word.charAt(i) == '0'
+          : end - i != 2 || !(word.charAt(i) == '0' && word.charAt(i + 1) != '0'
+              || word.charAt(i) == '1' && word.charAt(i + 1) <= '2'))
+        return false;
+      i = end;
+      if (i == length || word.charAt(i) != '-' && word.charAt(i) != '/')
+        return false;
+      return i + 3 == length && isDigit(word, i + 1, '3') && isDigit(word, i + 2, '9');
+    }
 
-  private static final Pattern OF_PATTERN = Pattern.compile("di|del|della", Pattern.CASE_INSENSITIVE);
+    int i = 0;
+    for (int field = 0; field < 2; field++) {
+      int end = endOfDigits(word, i);
+      if (end - i == 1 ? word.charAt(i) == '0' : end - i != 2 || word.charAt(i) > '3')
+        return false;
+      i = end;
+      if (i < length && word.charAt(i) == '\\')
+        i++;
+      if (i == length || word.charAt(i) != '/')
+        return false;
+      i++;
+    }
+    int end = endOfDigits(word, i);
+    if (end != length)
+      return false;
+    return end - i == 2 || end - i == 4 && word.charAt(i) >= '1' && word.charAt(i) <= '3';
+  }
 
-  private static String ensure(String str) {
-    if (str == null)
-      return "";
-    return str;
+  private static int endOfDigits(String word, int i) {
+    while (i < word.length() && isDigit(word.charAt(i)))
+      i++;
+    return i;
   }
-  
+
   /**
    * Classify a {@link List} of {@link CoreLabel}s.
    *
@@ -126,13 +342,28 @@ class NumberSequenceClassifier extends AbstractSequenceClassifier<CoreLabel> {
    */
   @Override
   public List<CoreLabel> classify(List<CoreLabel> document) {
-    // if (DEBUG) { System.err.println("NumberSequenceClassifier tagging"); }
+    String[] answers = classifyAnswers(document);
+    for (int i = 0; i < answers.length; i++)
+      document.get(i).set(CoreAnnotations.AnswerAnnotation.class, answers[i]);
+    return document;
+  }
 
+  /**
+   * Classify the tokens, and return their answers instead of annotating them.
+   * The tokens made of numbers get the part of speech N.
+   *
+   * This does not change the classifier, so one instance can be shared by
+   * all threads.
+   *
+   * @return the answer of each token
+   */
+  public String[] classifyAnswers(List<? extends CoreLabel> document) {
+    int[] classes = new int[document.size()];
     for (int i = 0, sz = document.size(); i < sz; i++) {
       CoreLabel me = document.get(i);
+      classes[i] = wordClasses(me.word());
       // a thing made of numbers is a number, let's not be stupid about it
-      if (NUMBER_PATTERN.matcher(me.word()).matches()
-          || (NUMBER_IN_WORDS_PATTERN.matcher(me.word()).matches() && !me.word().equals("uno")))
+      if ((classes[i] & NUMBER) != 0 || (classes[i] & NUMBER_IN_WORDS) != 0 && !me.word().equals("uno"))
         me.setTag("N");
       
       if (i > 0) {
@@ -142,155 +373,14 @@ class NumberSequenceClassifier extends AbstractSequenceClassifier<CoreLabel> {
       }
     }
 
-    PaddedList<CoreLabel> pl = new PaddedList<>(document, pad);
-    for (int i = 0, sz = pl.size(); i < sz; i++) {
-      CoreLabel me = pl.get(i);
-      CoreLabel prev = pl.get(i - 1);
-      CoreLabel next = pl.get(i + 1);
-      CoreLabel next2 = pl.get(i + 2);
-
-      if (me.get(CoreAnnotations.AnswerAnnotation.class) != null)
-        continue;
-      
-      // if (DEBUG) { System.err.println("Tagging:" + me.word()); }
-      me.set(CoreAnnotations.AnswerAnnotation.class, flags.backgroundSymbol);
-      
-      String myWord = me.word();
-      String prevWord = ensure(prev.word());
-      String nextWord = ensure(next.word());
-      String next2Word = ensure(next2.word());
-      
-      String myTag = me.tag();
-      String prevTag = ensure(prev.tag());
-      String nextTag = ensure(next.tag());
-      String next2Tag = ensure(next2.tag());
-
-      if (CURRENCY_SYMBOL_PATTERN.matcher(myWord).matches() && ("N".equals(prevTag) || "N".equals(nextTag))) {
-        // dollar, pound, pound, yen,
-        // Penn Treebank ancient # as pound, euro,
-        if (DEBUG) {
-          System.err.println("Found currency sign:" + me.word());
-        }
-        me.set(CoreAnnotations.AnswerAnnotation.class, "MONEY");
-      } else if (TIME_PATTERN.matcher(myWord).matches() || TIME_PATTERN2.matcher(myWord).matches()) {
-        me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-      } else if (DATE_PATTERN.matcher(myWord).matches() || DATE_PATTERN2.matcher(myWord).matches()) {
-        me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-      } else if (myTag.equals("N")) { // numeral
-        if (DEBUG) {
-          System.err.println("Tagging N:" + me.word());
-        }
-        
-        // number : number [: number]?
-        // (they are tokenized into separate tokens, cause the tokenizer sucks...)
-        if (NUMBER_PATTERN.matcher(myWord).matches() && ":".equals(nextWord) &&
-            next2Tag.equals("N")) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-          next.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-          next2.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-          
-          CoreLabel next3 = pl.get(i + 3);
-          CoreLabel next4 = pl.get(i + 4);
-          if (":".equals(next3.word()) &&
-              "N".equals(next4.tag())) {
-            next3.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-            next4.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-          }
-          continue;
-        }
-
-        if (DAY_PATTERN.matcher(myWord).matches() && MONTH_PATTERN.matcher(nextWord).matches()) {
-          // deterministically make DATE for British-style number before month
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-          if (WEEKDAY_PATTERN.matcher(prevWord).matches())
-            prev.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        } else if (MONTH_PATTERN.matcher(nextWord).matches()
-            || (OF_PATTERN.matcher(nextWord).matches() && MONTH_PATTERN.matcher(next2Word).matches())) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        } else if (OF_PATTERN.matcher(nextWord).matches() && PART_OF_DAY_PATTERN.matcher(next2Word).matches()) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-        } else if (YEAR_PATTERN.matcher(myWord).matches()
-            && prev.getString(CoreAnnotations.AnswerAnnotation.class).equals("DATE")
-            && (MONTH_PATTERN.matcher(prevWord).matches()
-                || pl.get(i - 2).get(CoreAnnotations.AnswerAnnotation.class).equals("DATE"))) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        } else {
-          if (DEBUG) {
-            System.err.println("Found number:" + myWord);
-          }
-          if (prev.getString(CoreAnnotations.AnswerAnnotation.class).equals("MONEY")) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "MONEY");
-          } else {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "NUMBER");
-          }
-        }
-      } else if (myTag.equals(",") && prev.getString(CoreAnnotations.AnswerAnnotation.class).equals("DATE")
-          && YEAR_PATTERN.matcher(nextWord).matches()) {
-        me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-      } else if (MONTH_PATTERN.matcher(myWord).matches()) {
-        if (prev.getString(CoreAnnotations.AnswerAnnotation.class).equals("DATE") || nextTag.equals("N")
-            || nextTag.equals("S") || nextTag.equals("A")) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-
-          if (WEEKDAY_PATTERN.matcher(prevWord).matches())
-            prev.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        }
-      } else if (myTag.equals("CC")) { // coordinating conjunction
-        if (prevTag.equals("N") && nextTag.equals("N")
-            && myWord.equalsIgnoreCase("e")) {
-          if (DEBUG) {
-            System.err.println("Found number and:" + myWord);
-          }
-          String wd = prevWord;
-          if (wd.equalsIgnoreCase("cento") || wd.equalsIgnoreCase("mille") || wd.equalsIgnoreCase("millione")
-              || wd.equalsIgnoreCase("millioni") || wd.equalsIgnoreCase("miliardo")
-              || wd.equalsIgnoreCase("miliardi")) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "NUMBER");
-          }
-        }
-      } else if (myTag.equals("S") || myTag.equals("SP") || myTag.equals("A")) {
-        if (CURRENCY_WORD_PATTERN.matcher(me.word()).matches()) {
-          if (prevTag.equals("N") && prev.getString(CoreAnnotations.AnswerAnnotation.class).equals("NUMBER")) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "MONEY");
-
-            for (int j = i - 1; j >= 0; j--) {
-              CoreLabel prev2 = pl.get(j);
-              if (ensure(prev2.tag()).equals("S") && prev2.getString(CoreAnnotations.AnswerAnnotation.class).equals("NUMBER"))
-                prev2.set(CoreAnnotations.AnswerAnnotation.class, "MONEY");
-              else
-                break;
-            }
-          }
-        }
-        if (DAY_POINT_PATTERN.matcher(myWord).matches()) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "TIME");
-        }
-        if (ORDINAL_SUFFIX_PATTERN.matcher(myWord).matches()) {
-          if ("NUMBER".equals(prev.get(CoreAnnotations.AnswerAnnotation.class))) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "ORDINAL");
-            prev.set(CoreAnnotations.AnswerAnnotation.class, "ORDINAL");
-          } else if ("DATE".equals(prev.get(CoreAnnotations.AnswerAnnotation.class))) {
-            me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-          }
-        }
-      } else if (myTag.equals("A")) { // adjective
-        if (MONTH_PATTERN.matcher(nextWord).matches()
-            || (OF_PATTERN.matcher(nextWord).matches() && MONTH_PATTERN.matcher(next2Word).matches())) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        } else if (MONTH_PATTERN.matcher(prevWord).matches()) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        } else if (ORDINAL_PATTERN.matcher(myWord).matches()) {
-          // don't do other tags: don't want 'second' as noun, or 'first' as adverb
-          // introducing reasons
-          me.set(CoreAnnotations.AnswerAnnotation.class, "ORDINAL");
-        }
-      } else if (OF_PATTERN.matcher(myWord).matches()) {
-        if (prevTag.equals("N") && MONTH_PATTERN.matcher(nextWord).matches()) {
-          me.set(CoreAnnotations.AnswerAnnotation.class, "DATE");
-        }
-      }
+    // keep the answers that the tokens already have
+    String[] answers = new String[document.size()];
+    for (int i = 0; i < answers.length; i++) {
+      answers[i] = document.get(i).get(CoreAnnotations.AnswerAnnotation.class);
+      classes[i] |= TAGS.get(document.get(i).tag());
     }
-    return document;
+    RULES.apply(classes, answers, flags.backgroundSymbol);
+    return answers;
   }
 
   // Implement other methods of AbstractSequenceClassifier interface